@@ -1,19 +1,52 @@
 package com.ctriposs.bigcache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.ctriposs.bigcache.CacheConfig.AllocationMode;
+import com.ctriposs.bigcache.CacheConfig.Durability;
+import com.ctriposs.bigcache.CacheConfig.EvictionPolicy;
+import com.ctriposs.bigcache.CacheConfig.IndexMode;
+import com.ctriposs.bigcache.CacheConfig.StorageMode;
+import com.ctriposs.bigcache.index.OffHeapIndex;
 import com.ctriposs.bigcache.lock.StripedReadWriteLock;
+import com.ctriposs.bigcache.storage.IStorageBlock;
 import com.ctriposs.bigcache.storage.Pointer;
+import com.ctriposs.bigcache.storage.RecordHandler;
+import com.ctriposs.bigcache.storage.RecordHeader;
 import com.ctriposs.bigcache.storage.StorageBlock;
 import com.ctriposs.bigcache.storage.StorageManager;
+import com.ctriposs.bigcache.storage.StorageSyncer;
+import com.ctriposs.bigcache.utils.CoarseTicker;
 import com.ctriposs.bigcache.utils.FileUtil;
+import com.ctriposs.bigcache.utils.FrequencySketch;
+import com.ctriposs.bigcache.utils.HashUtil;
+import com.ctriposs.bigcache.utils.ReferenceBits;
+import com.ctriposs.bigcache.utils.SerializationUtil;
+import com.ctriposs.bigcache.utils.StripedCounter;
+import com.ctriposs.bigcache.utils.Ticker;
 
 /**
  * The Class BigCache is a cache that uses persistent storage
@@ -36,42 +69,100 @@ public class BigCache<K> implements ICache<K> {
     /** The default merge interval which is 10 minutes. */
     public static final long DEFAULT_MERGE_INTERVAL = 10 * 60 * 1000;
 
+    /** The interval the expired entries are purged at, about a tick of the timer wheel. */
+    private static final long EXPIRATION_INTERVAL = 1000;
+
     /** The default threshold for dirty block recycling */
     public static final double DEFAULT_DIRTY_RATIO_THRESHOLD = 0.5;
 
 	/** The Constant DEFAULT_CONCURRENCY_LEVEL. */
 	public static final int DEFAULT_CONCURRENCY_LEVEL = 8; // 256 concurrent level
 
+    /** The default interval between two syncs of the storage which is 10 milliseconds. */
+    public static final long DEFAULT_SYNC_INTERVAL = 10;
+
+    /** The cost hint of the entries put without one. */
+    public static final int DEFAULT_COST = 1;
+
     /** The length of value can't be greater than 4m */
     public static final int MAX_VALUE_LENGTH = 4 * 1024 * 1024;
 
-	/** The hit counter. */
-	protected AtomicLong hitCounter = new AtomicLong();
+    /** The size of the key length ahead of the key and the value in a record, in OffHeapPlusKey index mode. */
+    private static final int KEY_LENGTH_SIZE = 4;
+
+    /** The number of lock free attempts of a read before taking the read lock. */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    /** The stored key of the keys identified by their fingerprints. */
+    private static final byte[] EMPTY_KEY = new byte[0];
+
+    /** The number of entries sampled to pick one to evict. */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /** The percentage of the entries kept in the admission window of WTinyLFU. */
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    /** The number of keys the frequency sketch is sized for before the cache grows, unless max entries is set. */
+    private static final int INITIAL_SKETCH_CAPACITY = 1024;
+
+    /** The file of the index snapshot in the cache directory, in persistent mode. */
+    private static final String SNAPSHOT_FILE_NAME = "index.snapshot";
+
+    /** The first int of a snapshot. */
+    private static final int SNAPSHOT_MAGIC = 0x42434958;
+
+    /** The version of the snapshot format. */
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /** The number of keys written between two resets of the object stream, so it doesn't keep them all. */
+    private static final int SNAPSHOT_RESET_INTERVAL = 1024;
+
+    /** The prefix of the checkpoint files in the cache directory, followed by the epoch and the number. */
+    private static final String CHECKPOINT_FILE_PREFIX = "index.checkpoint.";
+
+    /** The first int of a checkpoint, and the last one once complete. */
+    private static final int CHECKPOINT_MAGIC = 0x42434350;
+
+    /** The version of the checkpoint format. */
+    private static final int CHECKPOINT_VERSION = 2;
+
+    /** The number of checkpoints with the changed entries only, after one with all the entries. */
+    private static final int CHECKPOINT_DELTAS_PER_BASE = 16;
 
-	/** The miss counter. */
-	protected AtomicLong missCounter = new AtomicLong();
+    /** The number of offheap index slots scanned with a lock held by the daemon workers. */
+    private static final int INDEX_SCAN_CHUNK_SIZE = 4096;
 
-    /** The get counter. */
-    protected AtomicLong getCounter = new AtomicLong();
+    /** The number of entries moved out of a dirty block by the merger with a lock held. */
+    private static final int MOVE_BATCH_SIZE = 16;
 
-    /** The put counter. */
-    protected AtomicLong putCounter = new AtomicLong();
+    /**
+     * The max number of victims the clock hand keeps picked ahead of the evictions with CLOCK, and the fraction
+     * of the entries they may be at most, so the hand seldom comes back to a victim still waiting.
+     */
+    private static final int VICTIM_QUEUE_SIZE = 64;
+    private static final int VICTIM_QUEUE_FRACTION = 16;
 
-    /** The delete counter. */
-    protected AtomicLong deleteCounter = new AtomicLong();
+    /** The number of entries the clock hand visits with a lock held, with CLOCK. */
+    private static final int SWEEP_STEP_SIZE = 1024;
 
-    /** The # of purges due to expiration. */
-    protected AtomicLong purgeCounter = new AtomicLong();
+    /** The reference bits kept per entry with CLOCK, so few keys share a bit. */
+    private static final int REFERENCE_BITS_PER_ENTRY = 8;
 
-    /** The # of moves for dirty block recycle. */
-    protected AtomicLong moveCounter = new AtomicLong();
+	/** The recorder of hits, misses, gets, puts, deletes, purges due to expiration and moves for dirty block recycle. */
+	protected final StatsRecorder stats;
 
     /** The total storage size we have used, including the expired ones which are still in the pointermap */
-    protected AtomicLong usedSize = new AtomicLong();
+    protected final StripedCounter usedSize = new StripedCounter();
 
 	/** The internal map. */
 	protected final ConcurrentMap<K, CacheValueWrapper> pointerMap = new ConcurrentHashMap<K, CacheValueWrapper>();
 
+	/** The offheap index keyed by key fingerprint, which replaces the internal map in OffHeap index mode. */
+	protected final OffHeapIndex offHeapIndex;
+
+	/** Whether the keys are stored along with the values, in OffHeapPlusKey index mode. */
+	private final boolean storeKeys;
+
 	/** Managing the storages. */
 	/* package for ut */ final StorageManager storageManager;
 
@@ -93,7 +184,109 @@ public class BigCache<K> implements ICache<K> {
     /** dirty ratio which controls block recycle */
     private final double dirtyRatioThreshold;
 
+    /** The source of the current time. */
+    private final Ticker ticker;
+
+    /** The clock created for the access time granularity, which is closed with the cache. */
+    private final CoarseTicker coarseTicker;
+
+    /** Access times updated within the granularity are not updated again on hits. */
+    private final long accessTimeGranularity;
+
+    /** The max bytes of the entries, 0 for unlimited. */
+    private final long maxStorageSize;
+
+    /** The max number of entries, 0 for unlimited. */
+    private final long maxEntries;
+
+    /** Only one thread evicts at a time, the others beyond the limits wait for it. */
+    private final Lock evictionLock = new ReentrantLock();
+
+    /** Where the eviction samples the internal map from, guarded by the eviction lock. */
+    private Iterator<K> evictionIterator;
+
+    /** Where the eviction samples the offheap index from, guarded by the eviction lock. */
+    private long evictionSlot;
+
+    /** The access frequencies of the keys, only for the WTinyLFU eviction policy. */
+    private final FrequencySketch sketch;
+
+    /**
+     * The admission window of WTinyLFU, the keys(or the fingerprints in offheap index modes) in the order they
+     * were inserted. Deleted keys are left in it until they are polled.
+     */
+    private final Queue<Object> window;
+
+    /** The size of the window, which is not cheap to count. */
+    private final AtomicLong windowSize = new AtomicLong();
+
+    /** Whether the entries are kept across restarts. */
+    private final boolean persistent;
+
+    /** The size of the {@link RecordHeader} ahead of the records, 0 unless the cache recovers from crashes. */
+    private final int recordHeaderSize;
+
+    /** The sequence number of the last record written, which tells the newest record of a key on recovery. */
+    private final AtomicLong recordSequence = new AtomicLong();
+
+    /** Forces the writes to the disk, null in None durability. */
+    private final StorageSyncer syncer;
+
+    /** The type of the integral keys in the offheap index modes, taken from the first one. */
+    private final AtomicReference<Class<?>> integralKeyType = new AtomicReference<Class<?>>();
+
+    /** The key fingerprints whose entries were set since the last checkpoint, null unless checkpoints are written. */
+    private final ConcurrentMap<Long, Boolean> changedFingerprints;
+
+    /** The epoch of the last checkpoint, a new one starts with each checkpoint of all the entries. */
+    private long checkpointEpoch;
+
+    /** The number of the next checkpoint in the epoch, 0 for a new epoch. */
+    private int checkpointNumber;
+
+    /** Whether the size and the cost of the entries are weighed by the eviction, as GDSF does. */
+    private final boolean gdsf;
+
+    /** The reference bits set on hits, only for the CLOCK eviction policy. */
+    private final ReferenceBits referenceBits;
+
+    /**
+     * The victims picked by the clock hand ahead of the evictions, the keys(or the fingerprints in offheap index
+     * modes), only for the CLOCK eviction policy. Deleted keys are left in it until they are polled.
+     */
+    private final Queue<Object> victims;
+
+    /** The size of the victim queue, which is not cheap to count. */
+    private final AtomicInteger victimCount = new AtomicInteger();
+
+    /** Whether the sweeper is topping up the victim queue. */
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    /** Whether the entries read in the blocks going to be recycled are moved, in ring mode. */
+    private final boolean ringReinsert;
+
+    /**
+     * The keys of the entries by storage block, for the merger and the purge of the recycled blocks in ring mode,
+     * null when there is nothing to merge, which is never in ring mode.
+     */
+    /* package for ut */ final BlockKeys blockKeys;
+
+    /** The keys of the entries by expiration time, for the purge. */
+    private final TimerWheel timerWheel;
+
 	public BigCache(String dir, CacheConfig config) throws IOException {
+		this(dir, config, config.getIndexMode());
+	}
+
+	/**
+	 * Creates the cache with the given index mode instead of the configured one.
+	 *
+	 * @param dir the directory to store cached data
+	 * @param config the config
+	 * @param indexMode the index mode
+	 * @throws IOException
+	 */
+	BigCache(String dir, CacheConfig config, IndexMode indexMode) throws IOException {
 		this.cacheDir = dir;
 		if (!this.cacheDir.endsWith(File.separator)) {
 			this.cacheDir += File.separator;
@@ -103,16 +296,159 @@ public class BigCache<K> implements ICache<K> {
 			throw new IllegalArgumentException("Invalid cache data directory : " + this.cacheDir);
 		}
 		
-		// clean up old cache data if exists
-		FileUtil.deleteDirectory(new File(this.cacheDir));
-		
-		this.storageManager = new StorageManager(this.cacheDir, config.getCapacityPerBlock(),
-				config.getInitialNumberOfBlocks(), config.getStorageMode(), config.getMaxOffHeapMemorySize());
+		this.recordHeaderSize = config.isCrashRecovery() ? RecordHeader.SIZE : 0;
+		if (recordHeaderSize > 0 && (config.getStorageMode() != StorageMode.PureFile || indexMode == IndexMode.OnHeap)) {
+			throw new IllegalArgumentException("crash recovery needs the PureFile storage mode and an offheap index mode!");
+		}
+		if (config.getCheckpointInterval() > 0 && recordHeaderSize == 0) {
+			throw new IllegalArgumentException("checkpoints need crash recovery!");
+		}
+		if (config.getDurability() != Durability.None && recordHeaderSize == 0) {
+			throw new IllegalArgumentException("durability needs crash recovery!");
+		}
+		if (config.getRingBlockCount() > 0 && config.getRingBlockCount() <= config.getActiveBlockCount()) {
+			throw new IllegalArgumentException("ringBlockCount must be > activeBlockCount!");
+		}
+		if (config.getAllocationMode() == AllocationMode.Slab
+				&& (config.getRingBlockCount() > 0 || config.isPersistent() || recordHeaderSize > 0)) {
+			throw new IllegalArgumentException("slab allocation works neither in ring mode nor in persistent mode nor with crash recovery!");
+		}
+		if (config.getAllocationMode() == AllocationMode.HoleReuse && (config.getRingBlockCount() > 0 || recordHeaderSize > 0)) {
+			throw new IllegalArgumentException("hole reuse works neither in ring mode nor with crash recovery!");
+		}
+		if (config.isExpiryPlacement() && (config.getRingBlockCount() > 0 || config.getAllocationMode() == AllocationMode.Slab)) {
+			throw new IllegalArgumentException("expiry placement works neither in ring mode nor with slab allocation!");
+		}
+		this.changedFingerprints = config.getCheckpointInterval() > 0 ? new ConcurrentHashMap<Long, Boolean>() : null;
+		this.ringReinsert = config.getRingBlockCount() > 0 && config.isRingReinsert();
 		this.readWriteLock = new StripedReadWriteLock(config.getConcurrencyLevel());
+		if (indexMode == IndexMode.OffHeap || indexMode == IndexMode.OffHeapPlusKey) {
+			this.offHeapIndex = new OffHeapIndex(config.getInitialIndexCapacity());
+		} else {
+			this.offHeapIndex = null;
+		}
+		this.storeKeys = indexMode == IndexMode.OffHeapPlusKey;
+		if (config.getAllocationMode() != AllocationMode.Slab) {
+			this.blockKeys = new BlockKeys(readWriteLock.size(), offHeapIndex != null, new BlockKeys.Membership() {
+				@Override
+				public boolean isIn(long fingerprint, int blockIndex, int generation) {
+					long slot = offHeapIndex.find(fingerprint);
+					return slot != OffHeapIndex.NOT_FOUND && BigCache.this.isIn(slot, blockIndex, generation);
+				}
+
+				@Override
+				public boolean isIn(Object key, int blockIndex, int generation) {
+					CacheValueWrapper wrapper = pointerMap.get(key);
+					return wrapper != null && BigCache.this.isIn(wrapper, blockIndex, generation);
+				}
+			});
+		} else {
+			this.blockKeys = null; // nothing to merge
+		}
+
+        stats = config.isStatsEnabled() ? new StatsRecorder() : StatsRecorder.DISABLED;
+        maxStorageSize = config.getMaxStorageSize();
+        maxEntries = config.getMaxEntries();
+        if (config.getEvictionPolicy() == EvictionPolicy.WTinyLFU || config.getEvictionPolicy() == EvictionPolicy.GDSF) {
+            sketch = new FrequencySketch(maxEntries > 0 ? maxEntries : INITIAL_SKETCH_CAPACITY);
+        } else {
+            sketch = null;
+        }
+        window = config.getEvictionPolicy() == EvictionPolicy.WTinyLFU ? new ConcurrentLinkedQueue<Object>() : null;
+        gdsf = config.getEvictionPolicy() == EvictionPolicy.GDSF;
+        if (config.getEvictionPolicy() == EvictionPolicy.CLOCK) {
+            referenceBits = new ReferenceBits(REFERENCE_BITS_PER_ENTRY * config.getInitialIndexCapacity());
+            victims = new ConcurrentLinkedQueue<Object>();
+        } else {
+            referenceBits = null;
+            victims = null;
+        }
+        accessTimeGranularity = config.getAccessTimeGranularity();
+        if (accessTimeGranularity > 0 && config.getTicker() == Ticker.systemTicker()) {
+            coarseTicker = new CoarseTicker(accessTimeGranularity);
+            ticker = coarseTicker;
+        } else {
+            coarseTicker = null;
+            ticker = config.getTicker();
+        }
+        timerWheel = new TimerWheel(readWriteLock.size(), offHeapIndex != null, new TimerWheel.Expiry() {
+            @Override
+            public long expire(long fingerprint, long now) throws IOException {
+                return expireByFingerprint(fingerprint, now);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public long expire(Object key, long now) throws IOException {
+                return BigCache.this.expire((K) key, now);
+            }
+        }, ticker.read());
 
-        ses = new ScheduledThreadPoolExecutor(2);
+        // load the blocks back in persistent mode, or scan them after a crash
+        this.persistent = config.isPersistent();
+        File snapshotFile = new File(this.cacheDir + SNAPSHOT_FILE_NAME);
+        ObjectInputStream snapshot = persistent ? openSnapshot(snapshotFile, config, indexMode) : null;
+        StorageManager storageManager = null;
+        if (snapshot != null) {
+            try {
+                storageManager = new StorageManager(this.cacheDir, config.getCapacityPerBlock(), config.getStorageMode(),
+                        config.getMaxOffHeapMemorySize(), config.getRingBlockCount(), recordHeaderSize > 0, snapshot);
+            } catch (IOException e) {
+                closeSnapshot(snapshot, snapshotFile);
+                snapshot = null; // start empty
+            }
+        }
+        boolean recovering = false;
+        if (snapshot == null && recordHeaderSize > 0 && new File(this.cacheDir).isDirectory()) {
+            try {
+                storageManager = new StorageManager(this.cacheDir, config.getCapacityPerBlock(), config.getStorageMode(),
+                        config.getMaxOffHeapMemorySize(), config.getRingBlockCount());
+                recovering = true;
+            } catch (IOException e) {
+                // start empty
+            }
+        }
+
+        if (snapshot == null && !recovering) {
+            // clean up old cache data if exists
+            FileUtil.deleteDirectory(new File(this.cacheDir));
+
+            storageManager = new StorageManager(this.cacheDir, config.getCapacityPerBlock(),
+                    config.getInitialNumberOfBlocks(), config.getStorageMode(), config.getMaxOffHeapMemorySize(),
+                    config.getRingBlockCount(), recordHeaderSize > 0);
+        }
+        this.storageManager = storageManager;
+
+        if (snapshot != null) {
+            loadSnapshot(snapshot, snapshotFile);
+        } else if (recovering) {
+            recover();
+        }
+        if (changedFingerprints != null) {
+            changedFingerprints.clear(); // all in the first checkpoint
+        }
+        storageManager.setActiveBlockCount(config.getActiveBlockCount());
+        storageManager.setAllocationMode(config.getAllocationMode());
+        storageManager.setExpiryPlacement(config.isExpiryPlacement());
+        storageManager.setPreallocatedBlocks(config.getPreallocatedBlocks());
+        if (config.getDurability() != Durability.None) {
+            syncer = new StorageSyncer(storageManager, config.getDurability(), config.getSyncInterval());
+        } else {
+            syncer = null;
+        }
+
+        // one more thread for the sweeper of CLOCK
+        ses = new ScheduledThreadPoolExecutor((changedFingerprints != null ? 4 : 3) + (referenceBits != null ? 1 : 0));
         ses.scheduleWithFixedDelay(new CacheCleaner(this), config.getPurgeInterval(), config.getPurgeInterval(), TimeUnit.MILLISECONDS);
-        ses.scheduleWithFixedDelay(new CacheMerger(this), config.getMergeInterval(), config.getMergeInterval(), TimeUnit.MILLISECONDS);
+        long expirationInterval = Math.min(EXPIRATION_INTERVAL, config.getPurgeInterval());
+        ses.scheduleWithFixedDelay(new CacheExpirer(this), expirationInterval, expirationInterval, TimeUnit.MILLISECONDS);
+        if (config.getAllocationMode() != AllocationMode.Slab) { // nothing to merge
+            ses.scheduleWithFixedDelay(new CacheMerger(this), config.getMergeInterval(), config.getMergeInterval(), TimeUnit.MILLISECONDS);
+        }
+        if (changedFingerprints != null) {
+            ses.scheduleWithFixedDelay(new CacheCheckpointer(this), config.getCheckpointInterval(),
+                    config.getCheckpointInterval(), TimeUnit.MILLISECONDS);
+        }
         dirtyRatioThreshold = config.getDirtyRatioThreshold();
 	}
 	
@@ -124,87 +460,1257 @@ public class BigCache<K> implements ICache<K> {
 
 	@Override
 	public void put(K key, byte[] value, long tti) throws IOException {
-        putCounter.incrementAndGet();
-        if (value == null || value.length > MAX_VALUE_LENGTH) {
-            throw new IllegalArgumentException("value is null or too long");
+		this.put(key, value, tti, DEFAULT_COST);
+	}
+
+	/**
+	 * Puts the value with specified key, time to idle in milliseconds and cost hint.
+	 *
+	 * The cost hint is what it takes to get the value again on a miss, only the GDSF eviction weighs it.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param tti the time to idle value in milliseconds
+	 * @param cost the cost hint, {@link #DEFAULT_COST} by default
+	 * @throws IOException
+	 */
+	public void put(K key, byte[] value, long tti, int cost) throws IOException {
+		this.putWithTimeToLive(key, value, -1, tti, cost);
+	}
+
+	@Override
+	public void putWithTimeToLive(K key, byte[] value, long ttl, long tti) throws IOException {
+		this.putWithTimeToLive(key, value, ttl, tti, DEFAULT_COST);
+	}
+
+	/**
+	 * Puts the value with specified key, time to live and time to idle in milliseconds and cost hint.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to live in milliseconds, 0 or less for none
+	 * @param tti the time to idle in milliseconds, 0 or less for none
+	 * @param cost the cost hint, {@link #DEFAULT_COST} by default
+	 * @throws IOException
+	 * @see ICache#putWithTimeToLive(Object, byte[], long, long)
+	 */
+	public void putWithTimeToLive(K key, byte[] value, long ttl, long tti, int cost) throws IOException {
+        if (offHeapIndex != null) {
+            putByFingerprint(fingerprintOf(key), keyBytes(key), value, ttl, tti, cost);
+            return;
+        }
+        stats.recordPut();
+        checkValue(value);
+        checkCost(cost);
+        checkKey(key);
+        if (sketch != null) {
+            sketch.increment(HashUtil.fingerprint(key));
         }
 
+        boolean inserted;
 		writeLock(key);
 		try {
 			CacheValueWrapper wrapper = pointerMap.get(key);
             Pointer newPointer; // pointer with new storage info
 
-			if (wrapper == null) {
+            inserted = wrapper == null;
+            boolean stored = !inserted;
+            long now = ticker.read();
+            long deadline = ttl > 0 ? now + ttl : -1;
+            long oldExpirationTime = inserted ? -1 : wrapper.getExpirationTime(now);
+			if (inserted) {
                 // create a new one
-                wrapper = new CacheValueWrapper();
-				newPointer = storageManager.store(value);
+                wrapper = CacheValueWrapper.withDeadline(cost, deadline);
+				newPointer = storageManager.store(value, lifetimeOf(ttl, tti), storageDeadline(deadline));
 			} else {
                 // update and get the new storage
-                Pointer oldPointer = wrapper.getPointer();
-				newPointer = storageManager.update(oldPointer, value);
-                usedSize.addAndGet(oldPointer.getLength() * -1);
+                Pointer oldPointer = pointerOf(wrapper);
+				newPointer = storageManager.update(oldPointer, value, lifetimeOf(ttl, tti), storageDeadline(deadline));
+                usedSize.add(oldPointer.getLength() * -1);
+                if (wrapper.getCost() != cost || wrapper.getDeadline() != deadline) {
+                    wrapper = CacheValueWrapper.withDeadline(cost, deadline); // all its fields are set below
+                    stored = false;
+                }
 			}
-            wrapper.setPointer(newPointer);
+            setPointer(key, wrapper, newPointer, stored);
 			wrapper.setTimeToIdle(tti);
-            wrapper.setLastAccessTime(System.currentTimeMillis());
-            usedSize.addAndGet(newPointer.getLength());
+            wrapper.setLastAccessTime(now);
+            usedSize.add(newPointer.getLength());
             pointerMap.put(key, wrapper);
+            long expirationTime = wrapper.getExpirationTime(now);
+            if (expirationTime >= 0 && (oldExpirationTime < 0 || expirationTime < oldExpirationTime)) {
+                // scheduled already otherwise, and rescheduled once due
+                schedule(key, expirationTime);
+            }
 		} finally {
 			writeUnlock(key);
 		}
+        if (inserted) {
+            addToWindow(key);
+        }
+        evictIfNeeded();
 	}
 
 	@Override
 	public byte[] get(K key) throws IOException {
-        getCounter.incrementAndGet();
+        if (offHeapIndex != null) {
+            return getByFingerprint(fingerprintOf(key), keyBytes(key));
+        }
+        stats.recordGet();
+        if (sketch != null) {
+            sketch.increment(HashUtil.fingerprint(key));
+        }
+
+        // read without the lock first. The storage is never freed underneath, so the worst case is copying
+        // the bytes of an entry being updated or moved, which is caught by the validation.
+        int lockId = Math.abs(key.hashCode());
+        for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+            long stamp = readWriteLock.tryOptimisticRead(lockId);
+            CacheValueWrapper wrapper = pointerMap.get(key);
+            if (wrapper == null) {
+                stats.recordMiss();
+                return null;
+            }
+
+            long now = ticker.read();
+            Pointer pointer = pointerOf(wrapper);
+            boolean expired = wrapper.isExpired(now);
+            byte[] payload = expired ? null : retrieve(pointer);
+            if (readWriteLock.validate(lockId, stamp)) {
+                return reinsertIfNeeded(key, pointer, hitOrMiss(key, wrapper, payload, now));
+            }
+        }
+
+        // writers keep getting in the way, wait for them
+        Pointer pointer;
+        byte[] payload;
 		readLock(key);
 		try {
 			CacheValueWrapper wrapper = pointerMap.get(key);
 
-            if (wrapper == null) {
-                missCounter.incrementAndGet();
-                return null;
+            if (wrapper == null) {
+                stats.recordMiss();
+                return null;
+            }
+
+            long now = ticker.read();
+            pointer = pointerOf(wrapper);
+            boolean expired = wrapper.isExpired(now);
+            payload = hitOrMiss(key, wrapper, expired ? null : retrieve(pointer), now);
+		} finally {
+			readUnlock(key);
+		}
+        return reinsertIfNeeded(key, pointer, payload);
+	}
+
+    /**
+     * Counts a read of the on-heap index and touches the entry if it is a hit.
+     *
+     * @param key the key read
+     * @param wrapper the entry read
+     * @param payload the value read, or null if the entry is expired or stale
+     * @param now the time of the read
+     * @return the payload
+     */
+    private byte[] hitOrMiss(K key, CacheValueWrapper wrapper, byte[] payload, long now) {
+        if (payload == null) {
+            stats.recordMiss();
+            return null;
+        }
+        stats.recordHit();
+        wrapper.touch(now, accessTimeGranularity);
+        if (referenceBits != null) {
+            referenceBits.set(HashUtil.fingerprint(key));
+        }
+        return payload;
+    }
+
+    /**
+     * Reads the payload of a pointer.
+     *
+     * @param pointer the pointer
+     * @return the payload, or null if the block has been recycled
+     * @throws IOException
+     */
+    private byte[] retrieve(Pointer pointer) throws IOException {
+        byte[] payload = storageManager.retrieve(pointer);
+        // checked after the read, the block may be recycled while reading
+        return pointer.isStale() ? null : payload;
+    }
+
+    /**
+     * Moves an entry just read to the active block if its block is going to be recycled, in ring mode.
+     * Must be called without any lock held.
+     *
+     * @param key the key
+     * @param pointer the pointer read
+     * @param payload the payload read, or null for a miss
+     * @return the payload
+     * @throws IOException
+     */
+    private byte[] reinsertIfNeeded(K key, Pointer pointer, byte[] payload) throws IOException {
+        if (!ringReinsert || payload == null || !storageManager.isNearRecycling(pointer.getStorageBlock())) {
+            return payload;
+        }
+        writeLock(key);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(key);
+            // moved or updated meanwhile
+            if (wrapper == null || wrapper.getLocation() != storageManager.toLocation(pointer)
+                    || wrapper.getGeneration() != pointer.getGeneration()) {
+                return payload;
+            }
+            Pointer newPointer = storageManager.store(payload);
+            storageManager.removeLight(pointer);
+            setPointer(key, wrapper, newPointer, true);
+            stats.recordMove();
+        } finally {
+            writeUnlock(key);
+        }
+        return payload;
+    }
+
+    /**
+     * Builds the pointer of an entry in the internal map.
+     *
+     * @param wrapper the entry
+     * @return the pointer
+     */
+    private Pointer pointerOf(CacheValueWrapper wrapper) {
+        return storageManager.toPointer(wrapper.getLocation(), wrapper.getGeneration());
+    }
+
+    /**
+     * Keeps the pointer in an entry of the internal map, with the write lock of the key held.
+     *
+     * @param key the key
+     * @param wrapper the entry
+     * @param pointer the pointer
+     * @param stored false for a new entry, which is not listed in any block yet
+     */
+    private void setPointer(K key, CacheValueWrapper wrapper, Pointer pointer, boolean stored) {
+        int blockIndex = pointer.getStorageBlock().getIndex();
+        if (blockKeys != null && !(stored && isIn(wrapper, blockIndex, pointer.getGeneration()))) {
+            blockKeys.add(readWriteLock.indexOf(Math.abs(key.hashCode())), blockIndex, pointer.getGeneration(), key);
+        }
+        wrapper.setGeneration(pointer.getGeneration());
+        wrapper.setLocation(storageManager.toLocation(pointer));
+    }
+
+    /**
+     * Checks if an entry of the internal map is stored in a block, by the block index and the generation only, as
+     * the location of an empty value stored at the start of a block is 0.
+     *
+     * @param wrapper the entry
+     * @param blockIndex the index of the block
+     * @param generation the generation of the block
+     * @return true if stored in this generation of the block
+     */
+    private boolean isIn(CacheValueWrapper wrapper, int blockIndex, int generation) {
+        return storageManager.toBlockIndex(wrapper.getLocation()) == blockIndex && wrapper.getGeneration() == generation;
+    }
+
+    /**
+     * Gets how long a value is expected to live, so it is stored along with the values expiring alike in expiry
+     * placement.
+     *
+     * @param ttl the time to live in milliseconds, 0 or less for none
+     * @param tti the time to idle in milliseconds, 0 or less for none
+     * @return the shortest of both, 0 or less if none
+     */
+    private static long lifetimeOf(long ttl, long tti) {
+        if (ttl <= 0) return tti;
+        return tti > 0 ? Math.min(ttl, tti) : ttl;
+    }
+
+    /**
+     * Gets how long a value is expected to live from now on, see {@link #lifetimeOf(long, long)}.
+     *
+     * @param deadline the deadline of the entry, or -1 if no time to live
+     * @param tti the time to idle in milliseconds
+     * @param now the current time in milliseconds
+     * @return the lifetime
+     */
+    private static long lifetimeOf(long deadline, long tti, long now) {
+        return lifetimeOf(deadline >= 0 ? Math.max(1, deadline - now) : -1, tti);
+    }
+
+    /**
+     * Gets the time the storage of a value is dead after for sure, which is its deadline, as the time to idle
+     * moves on with every access.
+     *
+     * @param deadline the deadline of the entry, or -1 if no time to live
+     * @return the deadline of the storage
+     */
+    private static long storageDeadline(long deadline) {
+        return deadline >= 0 ? deadline : StorageManager.NO_DEADLINE;
+    }
+
+	@Override
+	public byte[] delete(K key) throws IOException {
+        if (offHeapIndex != null) {
+            return deleteByFingerprint(fingerprintOf(key), keyBytes(key));
+        }
+        stats.recordDelete();
+
+		writeLock(key);
+		try {
+			CacheValueWrapper wrapper = pointerMap.get(key);
+			if (wrapper != null) {
+				Pointer pointer = pointerOf(wrapper);
+				byte[] payload = storageManager.remove(pointer);
+				pointerMap.remove(key);
+                usedSize.add(pointer.getLength() * -1);
+				return pointer.isStale() ? null : payload;
+			}
+		} finally {
+			writeUnlock(key);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean contains(K key) {
+        if (offHeapIndex != null) {
+            return containsFingerprint(fingerprintOf(key), keyBytes(key));
+        }
+		CacheValueWrapper wrapper = pointerMap.get(key);
+		return wrapper != null && !pointerOf(wrapper).isStale();
+	}
+
+    /**
+     * Checks the key before putting it in the internal map, which is written to the snapshot on close in persistent
+     * mode, so a key failing to be serialized is rejected now rather than losing the snapshot then.
+     *
+     * @param key the key
+     */
+    private void checkKey(K key) {
+        if (persistent && !(key instanceof Serializable)) {
+            throw new IllegalArgumentException("the keys must be Serializable in persistent mode, not "
+                    + key.getClass().getName());
+        }
+    }
+
+    /**
+     * Checks the value before putting it.
+     *
+     * @param value the value
+     */
+    private static void checkValue(byte[] value) {
+        if (value == null || value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("value is null or too long");
+        }
+    }
+
+    /**
+     * Checks the cost hint before putting it.
+     *
+     * @param cost the cost hint
+     */
+    private static void checkCost(int cost) {
+        if (cost <= 0) {
+            throw new IllegalArgumentException("cost must be positive");
+        }
+    }
+
+    /**
+     * Gets the fingerprint of a key in the offheap index, checking that it tells the key apart from the others.
+     *
+     * Only the integral numbers, the strings and the byte arrays have a fingerprint of their whole content, the
+     * other keys have one of their 32 bits hash code, which collides too often to identify them without storing
+     * them, so they are only taken in OffHeapPlusKey index mode. The integral keys must all be of the same type,
+     * as an Integer and a Long of the same value share their fingerprint.
+     *
+     * @param key the key
+     * @return the fingerprint
+     * @throws IllegalArgumentException if the key can't be told apart by its fingerprint
+     */
+    private long fingerprintOf(K key) {
+        if (HashUtil.isExact(key)) {
+            Class<?> type = key.getClass();
+            if (!integralKeyType.compareAndSet(null, type) && integralKeyType.get() != type) {
+                throw new IllegalArgumentException("the integral keys must all be " + integralKeyType.get().getName()
+                        + " in the offheap index modes, not " + type.getName());
+            }
+        } else if (!storeKeys && !(key instanceof String) && !(key instanceof byte[])) {
+            throw new IllegalArgumentException("keys of " + key.getClass().getName()
+                    + " have no 64 bits fingerprint in OffHeap index mode, use OffHeapPlusKey to store them");
+        }
+        return HashUtil.fingerprint(key);
+    }
+
+    /**
+     * Gets the bytes of the key to be stored along with the value.
+     *
+     * @param key the key
+     * @return the bytes, which are empty when the fingerprint is exact, or null if keys are not stored
+     */
+    private byte[] keyBytes(K key) {
+        if (!storeKeys) return null;
+        if (HashUtil.isExact(key)) return EMPTY_KEY;
+        return SerializationUtil.toBytes(key);
+    }
+
+    /**
+     * Builds the record of a key and a value, laid out as the record header, the key length, the key and the value.
+     * The record header is only there when the cache recovers from crashes, and the key length and the key only
+     * when the keys are stored.
+     *
+     * @param fingerprint the key fingerprint
+     * @param key the key bytes, or null if keys are not stored
+     * @param value the value
+     * @param ttl the time to live in milliseconds
+     * @param tti the time to idle value in milliseconds
+     * @param cost the cost hint
+     * @return the record
+     */
+    private byte[] toRecord(long fingerprint, byte[] key, byte[] value, long ttl, long tti, int cost) {
+        if (key == null && recordHeaderSize == 0) return value;
+        int keySize = key == null ? 0 : KEY_LENGTH_SIZE + key.length;
+        byte[] record = new byte[recordHeaderSize + keySize + value.length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.position(recordHeaderSize);
+        if (key != null) {
+            buffer.putInt(key.length).put(key);
+        }
+        buffer.put(value);
+        if (recordHeaderSize > 0) {
+            RecordHeader.write(record, recordSequence.incrementAndGet(), fingerprint, tti, ttl, System.currentTimeMillis(),
+                    cost);
+        }
+        return record;
+    }
+
+    /**
+     * Checks if the record belongs to the key.
+     *
+     * @param record the record
+     * @param key the key bytes, or null if keys are not stored
+     * @return true, if the key matches or keys are not stored
+     */
+    private boolean keyMatches(byte[] record, byte[] key) {
+        if (key == null) return true;
+        if (ByteBuffer.wrap(record).getInt(recordHeaderSize) != key.length) return false;
+        int keyOffset = recordHeaderSize + KEY_LENGTH_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (record[keyOffset + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Extracts the value from the record.
+     *
+     * @param record the record
+     * @param key the key bytes, or null if keys are not stored
+     * @return the value
+     */
+    private byte[] toValue(byte[] record, byte[] key) {
+        if (key == null && recordHeaderSize == 0) return record;
+        int keySize = key == null ? 0 : KEY_LENGTH_SIZE + key.length;
+        return Arrays.copyOfRange(record, recordHeaderSize + keySize, record.length);
+    }
+
+    /**
+     * Puts the value with the key fingerprint in the offheap index.
+     *
+     * A key sharing the fingerprint is replaced when the keys are stored.
+     *
+     * @param fingerprint the key fingerprint
+     * @param key the key bytes to store, or null if the fingerprint identifies the key
+     * @param value the value
+     * @param ttl the time to live in milliseconds, 0 or less for none
+     * @param tti the time to idle value in milliseconds
+     * @param cost the cost hint
+     * @throws IOException
+     */
+    void putByFingerprint(long fingerprint, byte[] key, byte[] value, long ttl, long tti, int cost) throws IOException {
+        stats.recordPut();
+        checkValue(value);
+        checkCost(cost);
+        if (key != null && key.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("key is too long");
+        }
+        byte[] record = toRecord(fingerprint, key, value, ttl, tti, cost);
+        if (sketch != null) {
+            sketch.increment(fingerprint);
+        }
+
+        int lockId = lockId(fingerprint);
+        boolean inserted;
+        while (true) {
+            ensureIndexCapacity();
+            readWriteLock.writeLock(lockId);
+            try {
+                long slot = offHeapIndex.find(fingerprint);
+                Pointer newPointer; // pointer with new storage info
+
+                inserted = slot == OffHeapIndex.NOT_FOUND;
+                long now = ticker.read();
+                long deadline = ttl > 0 ? now + ttl : -1;
+                long oldExpirationTime = inserted ? -1 : offHeapIndex.getExpirationTime(slot);
+                if (inserted) {
+                    slot = offHeapIndex.insert(fingerprint);
+                    if (slot == OffHeapIndex.NOT_FOUND) {
+                        continue; // filled up by concurrent writers, grow it and retry
+                    }
+                    try {
+                        newPointer = storageManager.store(record, lifetimeOf(ttl, tti), storageDeadline(deadline));
+                    } catch (IOException e) {
+                        offHeapIndex.remove(slot);
+                        throw e;
+                    }
+                } else {
+                    // update and get the new storage
+                    Pointer oldPointer = getPointer(slot);
+                    newPointer = storageManager.update(oldPointer, record, lifetimeOf(ttl, tti), storageDeadline(deadline));
+                    usedSize.add(oldPointer.getLength() * -1);
+                }
+                setPointer(slot, newPointer, !inserted);
+                offHeapIndex.setTimeToIdle(slot, tti);
+                offHeapIndex.setLastAccessTime(slot, now);
+                offHeapIndex.setDeadline(slot, deadline);
+                offHeapIndex.setCost(slot, cost);
+                usedSize.add(newPointer.getLength());
+                long expirationTime = offHeapIndex.getExpirationTime(slot);
+                if (expirationTime >= 0 && (oldExpirationTime < 0 || expirationTime < oldExpirationTime)) {
+                    // scheduled already otherwise, and rescheduled once due
+                    schedule(fingerprint, expirationTime);
+                }
+                break;
+            } finally {
+                readWriteLock.writeUnlock(lockId);
+            }
+        }
+        if (syncer != null) {
+            syncer.commit();
+        }
+        if (inserted) {
+            addToWindow(fingerprint);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Gets the value with the key fingerprint in the offheap index.
+     *
+     * @param fingerprint the key fingerprint
+     * @param key the key bytes to check, or null if the fingerprint identifies the key
+     * @return the value
+     * @throws IOException
+     */
+    byte[] getByFingerprint(long fingerprint, byte[] key) throws IOException {
+        stats.recordGet();
+        if (sketch != null) {
+            sketch.increment(fingerprint);
+        }
+        int lockId = lockId(fingerprint);
+        Pointer pointer;
+        byte[] record;
+        readWriteLock.readLock(lockId);
+        try {
+            long slot = offHeapIndex.find(fingerprint);
+            long now = ticker.read();
+            if (slot == OffHeapIndex.NOT_FOUND || offHeapIndex.isExpired(slot, now)) {
+                stats.recordMiss();
+                return null;
+            }
+
+            // entries are only moved with the write lock held, so the storage info is stable here
+            pointer = getPointer(slot);
+            record = retrieve(pointer);
+            if (record == null || !keyMatches(record, key)) {
+                stats.recordMiss();
+                return null;
+            }
+            stats.recordHit();
+            offHeapIndex.touch(slot, now, accessTimeGranularity);
+            if (referenceBits != null) {
+                referenceBits.set(fingerprint);
+            }
+        } finally {
+            readWriteLock.readUnlock(lockId);
+        }
+        reinsertIfNeeded(fingerprint, pointer, record);
+        return toValue(record, key);
+    }
+
+    /**
+     * Moves an entry of the offheap index just read to the active block if its block is going to be
+     * recycled, in ring mode. Must be called without any lock held.
+     *
+     * @param fingerprint the key fingerprint
+     * @param pointer the pointer read
+     * @param record the record read
+     * @throws IOException
+     */
+    private void reinsertIfNeeded(long fingerprint, Pointer pointer, byte[] record) throws IOException {
+        if (!ringReinsert || !storageManager.isNearRecycling(pointer.getStorageBlock())) {
+            return;
+        }
+        int lockId = lockId(fingerprint);
+        readWriteLock.writeLock(lockId);
+        try {
+            long slot = offHeapIndex.find(fingerprint);
+            // moved or updated meanwhile
+            if (slot == OffHeapIndex.NOT_FOUND || offHeapIndex.getBlockIndex(slot) != pointer.getStorageBlock().getIndex()
+                    || offHeapIndex.getPosition(slot) != pointer.getPosition()
+                    || offHeapIndex.getGeneration(slot) != pointer.getGeneration()) {
+                return;
+            }
+            Pointer newPointer = storageManager.store(record);
+            storageManager.removeLight(pointer);
+            setPointer(slot, newPointer, true);
+            stats.recordMove();
+        } finally {
+            readWriteLock.writeUnlock(lockId);
+        }
+    }
+
+    /**
+     * Deletes the value with the key fingerprint in the offheap index.
+     *
+     * @param fingerprint the key fingerprint
+     * @param key the key bytes to check, or null if the fingerprint identifies the key
+     * @return the value
+     * @throws IOException
+     */
+    byte[] deleteByFingerprint(long fingerprint, byte[] key) throws IOException {
+        stats.recordDelete();
+        int lockId = lockId(fingerprint);
+        byte[] record;
+        readWriteLock.writeLock(lockId);
+        try {
+            long slot = offHeapIndex.find(fingerprint);
+            if (slot == OffHeapIndex.NOT_FOUND) {
+                return null;
+            }
+            Pointer pointer = getPointer(slot);
+            record = retrieve(pointer);
+            if (record != null && !keyMatches(record, key)) {
+                return null;
+            }
+            storageManager.removeLight(pointer);
+            offHeapIndex.remove(slot);
+            usedSize.add(pointer.getLength() * -1);
+        } finally {
+            readWriteLock.writeUnlock(lockId);
+        }
+        if (syncer != null) {
+            syncer.commit(); // the record is marked dead
+        }
+        return record == null ? null : toValue(record, key);
+    }
+
+    /**
+     * Checks if the offheap index contains the key fingerprint.
+     *
+     * @param fingerprint the key fingerprint
+     * @param key the key bytes to check, or null if the fingerprint identifies the key
+     * @return true, if successful
+     */
+    boolean containsFingerprint(long fingerprint, byte[] key) {
+        int lockId = lockId(fingerprint);
+        readWriteLock.readLock(lockId);
+        try {
+            long slot = offHeapIndex.find(fingerprint);
+            if (slot == OffHeapIndex.NOT_FOUND || isStale(slot)) return false;
+            if (key == null) return true;
+            byte[] record = retrieve(getPointer(slot));
+            return record != null && keyMatches(record, key);
+        } catch (IOException e) {
+            throw new IllegalStateException("Fail to read the key", e);
+        } finally {
+            readWriteLock.readUnlock(lockId);
+        }
+    }
+
+    /**
+     * Gets the lock id of a key fingerprint.
+     *
+     * @param fingerprint the key fingerprint
+     * @return the lock id
+     */
+    private static int lockId(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    /**
+     * Builds the pointer from the storage info kept in the slot.
+     *
+     * @param slot the slot of the offheap index
+     * @return the pointer
+     */
+    private Pointer getPointer(long slot) {
+        StorageBlock block = storageManager.getBlock(offHeapIndex.getBlockIndex(slot));
+        return new Pointer(offHeapIndex.getPosition(slot), offHeapIndex.getLength(slot), block,
+                offHeapIndex.getGeneration(slot));
+    }
+
+    /**
+     * Checks if the block of the entry in the slot has been recycled since the entry was stored.
+     *
+     * @param slot the slot of the offheap index
+     * @return true if the entry is gone
+     */
+    private boolean isStale(long slot) {
+        return storageManager.getBlock(offHeapIndex.getBlockIndex(slot)).getGeneration() != offHeapIndex.getGeneration(slot);
+    }
+
+    /**
+     * Keeps the storage info of the pointer in the slot.
+     *
+     * @param slot the slot of the offheap index
+     * @param pointer the pointer
+     * @param stored false for a slot just inserted, which is not listed in any block yet
+     */
+    private void setPointer(long slot, Pointer pointer, boolean stored) {
+        int blockIndex = pointer.getStorageBlock().getIndex();
+        if (blockKeys != null && !(stored && isIn(slot, blockIndex, pointer.getGeneration()))) {
+            long fingerprint = offHeapIndex.getKey(slot);
+            blockKeys.add(readWriteLock.indexOf(lockId(fingerprint)), blockIndex, pointer.getGeneration(), fingerprint);
+        }
+        offHeapIndex.setLocation(slot, blockIndex, pointer.getPosition(), pointer.getLength());
+        offHeapIndex.setGeneration(slot, pointer.getGeneration());
+        if (changedFingerprints != null) {
+            changedFingerprints.put(offHeapIndex.getKey(slot), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Checks if the entry of a slot is stored in a block, by the block index and the generation only, as an empty
+     * value has no length.
+     *
+     * @param slot the slot of the offheap index
+     * @param blockIndex the index of the block
+     * @param generation the generation of the block
+     * @return true if stored in this generation of the block
+     */
+    private boolean isIn(long slot, int blockIndex, int generation) {
+        return offHeapIndex.getBlockIndex(slot) == blockIndex && offHeapIndex.getGeneration(slot) == generation;
+    }
+
+    /**
+     * Schedules the expiration of an entry of the internal map, with the write lock of the key held.
+     *
+     * @param key the key
+     * @param expirationTime the expiration time of the entry
+     */
+    private void schedule(K key, long expirationTime) {
+        timerWheel.schedule(readWriteLock.indexOf(Math.abs(key.hashCode())), key, expirationTime);
+    }
+
+    /**
+     * Schedules the expiration of an entry of the offheap index, with the write lock of the key held.
+     *
+     * @param fingerprint the key fingerprint
+     * @param expirationTime the expiration time of the entry
+     */
+    private void schedule(long fingerprint, long expirationTime) {
+        timerWheel.schedule(readWriteLock.indexOf(lockId(fingerprint)), fingerprint, expirationTime);
+    }
+
+    /**
+     * Frees the blocks nothing is stored in anymore and the blocks whose entries are all dead, then drops the keys
+     * listed in the blocks freed or recycled, so the keys deleted from them are not kept by the lists until the
+     * blocks are stored into again.
+     *
+     * The keys still in a recycled block, in ring mode, were evicted along with it: they are purged here through
+     * the lists, instead of scanning all the keys of the cache, and read as missing until then.
+     *
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    void clean() throws IOException {
+        storageManager.clean(ticker.read());
+        if (blockKeys == null) {
+            return;
+        }
+        for (int blockIndex = 0; blockIndex < blockKeys.getBlockCount(); blockIndex++) {
+            if (!blockKeys.isListed(blockIndex)) {
+                continue; // maybe no block with the index yet
+            }
+            StorageBlock block = storageManager.getBlock(blockIndex);
+            for (int lock = 0; lock < readWriteLock.size(); lock++) {
+                if (blockKeys.isStale(lock, blockIndex, block.getGeneration())) {
+                    long now = ticker.read();
+                    readWriteLock.writeLock(lock);
+                    try {
+                        if (offHeapIndex != null) {
+                            for (long fingerprint : blockKeys.removeStaleFingerprints(lock, blockIndex, block.getGeneration())) {
+                                expireByFingerprint(fingerprint, now);
+                            }
+                        } else {
+                            for (Object key : blockKeys.removeStaleKeys(lock, blockIndex, block.getGeneration())) {
+                                expire((K) key, now);
+                            }
+                        }
+                    } finally {
+                        readWriteLock.writeUnlock(lock);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Purges the entries of the timer wheel which are due.
+     *
+     * @throws IOException
+     */
+    void purgeExpired() throws IOException {
+        long now = ticker.read();
+        for (int lock = 0; lock < readWriteLock.size(); lock++) {
+            readWriteLock.writeLock(lock);
+            try {
+                timerWheel.advance(lock, now);
+            } finally {
+                readWriteLock.writeUnlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Purges the entry of the internal map handed back by the timer wheel if expired, with the write lock of the
+     * key held.
+     *
+     * @param key the key
+     * @param now the current time in milliseconds
+     * @return the expiration time of the entry, or -1 if purged, gone or never expiring
+     * @throws IOException
+     */
+    private long expire(K key, long now) throws IOException {
+        CacheValueWrapper wrapper = pointerMap.get(key);
+        if (wrapper == null) {
+            return -1;
+        }
+        Pointer oldPointer = pointerOf(wrapper);
+        if (wrapper.isExpired(now)) { // its block may be freed already, past its deadline
+            usedSize.add(oldPointer.getLength() * -1);
+            storageManager.removeLight(oldPointer);
+            pointerMap.remove(key);
+            stats.recordPurge();
+            return -1;
+        }
+        if (oldPointer.isStale()) { // evicted along with its block
+            usedSize.add(oldPointer.getLength() * -1);
+            pointerMap.remove(key);
+            stats.recordEvict();
+            return -1;
+        }
+        return wrapper.getExpirationTime(now);
+    }
+
+    /**
+     * Purges the entry of the offheap index handed back by the timer wheel if expired, with the write lock of the
+     * key held.
+     *
+     * @param fingerprint the key fingerprint
+     * @param now the current time in milliseconds
+     * @return the expiration time of the entry, or -1 if purged, gone or never expiring
+     * @throws IOException
+     */
+    private long expireByFingerprint(long fingerprint, long now) throws IOException {
+        long slot = offHeapIndex.find(fingerprint);
+        if (slot == OffHeapIndex.NOT_FOUND) {
+            return -1;
+        }
+        Pointer oldPointer = getPointer(slot);
+        if (offHeapIndex.isExpired(slot, now)) { // its block may be freed already, past its deadline
+            usedSize.add(oldPointer.getLength() * -1);
+            storageManager.removeLight(oldPointer);
+            offHeapIndex.remove(slot);
+            stats.recordPurge();
+            return -1;
+        }
+        if (oldPointer.isStale()) { // evicted along with its block
+            usedSize.add(oldPointer.getLength() * -1);
+            offHeapIndex.remove(slot);
+            stats.recordEvict();
+            return -1;
+        }
+        return offHeapIndex.getExpirationTime(slot);
+    }
+
+    /**
+     * Grows the offheap index before it gets full, must be called without any lock held.
+     */
+    private void ensureIndexCapacity() {
+        if (offHeapIndex.needsResize()) {
+            readWriteLock.writeLockForAll();
+            try {
+                offHeapIndex.resize();
+            } finally {
+                readWriteLock.writeUnlockForAll();
+            }
+        }
+    }
+
+    /**
+     * Checks if the cache is beyond its max storage size or max entries.
+     *
+     * @return true if some entries should be evicted
+     */
+    private boolean isOverflow() {
+        return (maxStorageSize > 0 && usedSize.sum() > maxStorageSize) || (maxEntries > 0 && count() > maxEntries);
+    }
+
+    /**
+     * Evicts entries until the cache is within its limits, must be called without any lock held.
+     *
+     * With the LRU policy, the entry idle for the longest time among the next {@link #EVICTION_SAMPLE_SIZE}
+     * entries in the map or the index is evicted. With WTinyLFU, the least frequently accessed entry of the
+     * sample is picked instead, and it is evicted only if it was accessed less often than the oldest entry
+     * of the window, otherwise the entry of the window is evicted. With GDSF, the entry of the sample with the
+     * lowest frequency times cost per byte is evicted. With CLOCK, the entry evicted is the next one of
+     * the victims picked ahead by the sweeper, see {@link #sweepAhead()}.
+     */
+    private void evictIfNeeded() throws IOException {
+        if (sketch != null) {
+            sketch.ensureCapacity(count());
+        }
+        if (referenceBits != null) {
+            referenceBits.ensureSize(REFERENCE_BITS_PER_ENTRY * count());
+        }
+        if (!isOverflow()) return;
+        sweepAhead();
+        evictionLock.lock();
+        try {
+            while (isOverflow()) {
+                boolean evicted = offHeapIndex != null ? evictFromIndex() : evictFromMap();
+                if (!evicted) {
+                    break; // nothing left to evict
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a key just inserted to the admission window of WTinyLFU.
+     *
+     * The oldest keys beyond the size of the window move to the main region without a contest while
+     * the cache is within its limits, so the window is only one key over its size when an eviction starts.
+     *
+     * @param key the key, or the fingerprint in offheap index modes
+     */
+    private void addToWindow(Object key) {
+        if (window != null) {
+            while (pollWindow() != null) {
+                // admitted
+            }
+            window.add(key);
+            windowSize.incrementAndGet();
+        }
+    }
+
+    /**
+     * Polls the oldest key of the admission window if the window is beyond its size.
+     *
+     * @return the key, or the fingerprint in offheap index modes, or null if none should leave the window
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T pollWindow() {
+        if (window == null || windowSize.get() <= Math.max(1, count() * WINDOW_PERCENTAGE / 100)) {
+            return null;
+        }
+        Object key = window.poll();
+        if (key != null) {
+            windowSize.decrementAndGet();
+        }
+        return (T) key;
+    }
+
+    /**
+     * Gets the access frequency of a key fingerprint.
+     *
+     * @param fingerprint the key fingerprint
+     * @return the frequency, always 0 unless the eviction policy is WTinyLFU or GDSF
+     */
+    private int frequency(long fingerprint) {
+        return sketch == null ? 0 : sketch.frequency(fingerprint);
+    }
+
+    /**
+     * Gets the priority of a sampled entry to stay in the cache, the entry of the lowest priority is evicted.
+     *
+     * With GDSF, the priority is the frequency times the cost per byte of the record, so a large entry has
+     * to be accessed more often than a small one to stay. Otherwise it is the frequency.
+     *
+     * @param fingerprint the key fingerprint
+     * @param cost the cost hint
+     * @param length the length of the record
+     * @return the priority
+     */
+    private double priority(long fingerprint, int cost, int length) {
+        if (!gdsf) {
+            return frequency(fingerprint);
+        }
+        // an entry never accessed again still weighs its cost per byte
+        return (frequency(fingerprint) + 1.0) * cost / Math.max(1, length);
+    }
+
+    /**
+     * Evicts an entry of the internal map.
+     *
+     * @return false if the map is empty
+     */
+    private boolean evictFromMap() throws IOException {
+        K candidate = pollWindow();
+        if (candidate != null && !pointerMap.containsKey(candidate)) {
+            return true; // deleted already, try the next one
+        }
+
+        long now = ticker.read();
+        K victim = null;
+        if (referenceBits != null) {
+            victim = pollVictim(false);
+            if (victim == null) {
+                // the sweeper is behind, take a step of the hand here
+                K swept = sweepMap();
+                victim = pollVictim(false);
+                if (victim == null) victim = swept;
+            }
+        }
+        double minPriority = Double.MAX_VALUE;
+        long maxIdleTime = Long.MIN_VALUE;
+        for (int i = 0; referenceBits == null && i < EVICTION_SAMPLE_SIZE; i++) {
+            if (evictionIterator == null || !evictionIterator.hasNext()) {
+                evictionIterator = pointerMap.keySet().iterator();
+                if (!evictionIterator.hasNext()) break;
+            }
+            K key = evictionIterator.next();
+            CacheValueWrapper wrapper = pointerMap.get(key);
+            if (wrapper == null) continue;
+            Pointer pointer = pointerOf(wrapper);
+            // the entries of the recycled blocks go first
+            double priority = pointer.isStale() ? -1 : sketch == null ? 0
+                    : priority(HashUtil.fingerprint(key), wrapper.getCost(), pointer.getLength());
+            long idleTime = wrapper.getIdleTime(now);
+            if (priority < minPriority || (priority == minPriority && idleTime > maxIdleTime)) {
+                victim = key;
+                minPriority = priority;
+                maxIdleTime = idleTime;
+            }
+        }
+        if (candidate != null && frequency(HashUtil.fingerprint(candidate)) <= minPriority) {
+            victim = candidate; // not admitted
+        }
+        if (victim == null) {
+            return !pointerMap.isEmpty();
+        }
+
+        writeLock(victim);
+        try {
+            CacheValueWrapper wrapper = pointerMap.get(victim);
+            if (wrapper != null) {
+                Pointer pointer = pointerOf(wrapper);
+                usedSize.add(pointer.getLength() * -1);
+                storageManager.removeLight(pointer);
+                pointerMap.remove(victim);
+                stats.recordEvict();
+            }
+        } finally {
+            writeUnlock(victim);
+        }
+        return true;
+    }
+
+    /**
+     * Starts the sweeper of CLOCK unless it runs already or enough victims are picked.
+     *
+     * The sweeper moves the clock hand {@link #SWEEP_STEP_SIZE} entries at a time with the eviction lock held,
+     * so the writers evicting only wait for a step, until the victim queue is full or the hand went around
+     * twice, since the bits may be set again behind the hand.
+     */
+    private void sweepAhead() {
+        if (victimCount.get() >= (victimQueueSize() + 1) / 2 || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ses.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long limit = 2 * count() + 1;
+                        for (long i = 0; i < limit && victimCount.get() < victimQueueSize(); i += SWEEP_STEP_SIZE) {
+                            evictionLock.lock();
+                            try {
+                                if ((offHeapIndex != null ? sweepIndex() : sweepMap()) == null) break; // empty
+                            } finally {
+                                evictionLock.unlock();
+                            }
+                        }
+                    } finally {
+                        sweeping.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sweeping.set(false); // closed
+        }
+    }
+
+    private int victimQueueSize() {
+        return (int) Math.max(1, Math.min(VICTIM_QUEUE_SIZE, count() / VICTIM_QUEUE_FRACTION));
+    }
+
+    /**
+     * Polls the next victim picked by the clock hand, skipping the ones referenced since they were picked.
+     *
+     * @param index whether the victims are the fingerprints of the offheap index
+     * @return the key, or the fingerprint in offheap index modes, or null if none is left
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T pollVictim(boolean index) {
+        Object victim;
+        while ((victim = victims.poll()) != null) {
+            victimCount.decrementAndGet();
+            // a referenced victim keeps its bit until the hand passes it again
+            if (!referenceBits.get(index ? (Long) victim : HashUtil.fingerprint(victim))) {
+                return (T) victim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the clock hand over up to {@link #SWEEP_STEP_SIZE} entries of the internal map, picking the entries
+     * not referenced since the hand passed them last time as victims, and clearing the reference bits on the way.
+     * Must be called with the eviction lock held.
+     *
+     * @return the last entry visited, or null if the map is empty
+     */
+    private K sweepMap() {
+        K key = null;
+        int queueSize = victimQueueSize();
+        for (int i = 0; i < SWEEP_STEP_SIZE && victimCount.get() < queueSize; i++) {
+            if (evictionIterator == null || !evictionIterator.hasNext()) {
+                evictionIterator = pointerMap.keySet().iterator();
+                if (!evictionIterator.hasNext()) return null;
+            }
+            key = evictionIterator.next();
+            CacheValueWrapper wrapper = pointerMap.get(key);
+            if (wrapper == null) continue;
+            // the entries of the recycled blocks go first
+            if (pointerOf(wrapper).isStale() || !referenceBits.clear(HashUtil.fingerprint(key))) {
+                victims.add(key);
+                victimCount.incrementAndGet();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Moves the clock hand over the offheap index, as {@link #sweepMap()} does.
+     *
+     * @return the fingerprint of the last entry visited, or null if the index is empty
+     */
+    private Long sweepIndex() {
+        Long fingerprint = null;
+        // hold a lock so the index is not resized while sweeping
+        readWriteLock.readLock(0);
+        try {
+            long slot = evictionSlot;
+            int queueSize = victimQueueSize();
+            for (int i = 0; i < SWEEP_STEP_SIZE && victimCount.get() < queueSize; i++) {
+                slot = offHeapIndex.nextSlot(slot);
+                if (slot == OffHeapIndex.NOT_FOUND) {
+                    slot = offHeapIndex.nextSlot(0);
+                    if (slot == OffHeapIndex.NOT_FOUND) break;
+                }
+                fingerprint = offHeapIndex.getKey(slot);
+                if (isStale(slot) || !referenceBits.clear(fingerprint)) {
+                    victims.add(fingerprint);
+                    victimCount.incrementAndGet();
+                }
+                slot++;
+            }
+            evictionSlot = slot == OffHeapIndex.NOT_FOUND ? 0 : slot;
+        } finally {
+            readWriteLock.readUnlock(0);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Evicts an entry of the offheap index.
+     *
+     * @return false if the index is empty
+     */
+    private boolean evictFromIndex() throws IOException {
+        Long candidate = pollWindow();
+        if (candidate != null && !containsFingerprint(candidate, null)) {
+            return true; // deleted already, try the next one
+        }
+
+        long now = ticker.read();
+        Long swept = null;
+        if (referenceBits != null) {
+            swept = pollVictim(true);
+            if (swept == null) {
+                // the sweeper is behind, take a step of the hand here
+                Long last = sweepIndex();
+                swept = pollVictim(true);
+                if (swept == null) swept = last;
             }
-
-            synchronized (wrapper) { // this object may be modified in move thread, use lock here
-                if (!wrapper.isExpired()) {
-                    // access time updated, the following change will not be lost
-                    hitCounter.incrementAndGet();
-                    wrapper.setLastAccessTime(System.currentTimeMillis());
-                    return storageManager.retrieve(wrapper.getPointer());
-                } else {
-                    missCounter.incrementAndGet();
-                    return null;
+        }
+        long victim = swept != null ? swept : 0;
+        boolean found = swept != null;
+        double minPriority = Double.MAX_VALUE;
+        long maxIdleTime = Long.MIN_VALUE;
+        // hold a lock so the index is not resized while sampling
+        readWriteLock.readLock(0);
+        try {
+            long slot = evictionSlot;
+            for (int i = 0; referenceBits == null && i < EVICTION_SAMPLE_SIZE; i++) {
+                slot = offHeapIndex.nextSlot(slot);
+                if (slot == OffHeapIndex.NOT_FOUND) {
+                    slot = offHeapIndex.nextSlot(0);
+                    if (slot == OffHeapIndex.NOT_FOUND) break;
+                }
+                long fingerprint = offHeapIndex.getKey(slot);
+                // the entries of the recycled blocks go first
+                double priority = isStale(slot) ? -1
+                        : priority(fingerprint, offHeapIndex.getCost(slot), offHeapIndex.getLength(slot));
+                long idleTime = now - offHeapIndex.getLastAccessTime(slot);
+                if (priority < minPriority || (priority == minPriority && idleTime > maxIdleTime)) {
+                    victim = fingerprint;
+                    found = true;
+                    minPriority = priority;
+                    maxIdleTime = idleTime;
                 }
+                slot++;
             }
+            evictionSlot = slot == OffHeapIndex.NOT_FOUND ? 0 : slot;
+        } finally {
+            readWriteLock.readUnlock(0);
+        }
+        if (candidate != null && frequency(candidate) <= minPriority) {
+            victim = candidate; // not admitted
+            found = true;
+        }
+        if (!found) {
+            return offHeapIndex.size() > 0;
+        }
 
-		} finally {
-			readUnlock(key);
-		}
-	}
-
-	@Override
-	public byte[] delete(K key) throws IOException {
-        deleteCounter.incrementAndGet();
-		writeLock(key);
-		try {
-			CacheValueWrapper wrapper = pointerMap.get(key);
-			if (wrapper != null) {
-				byte[] payload = storageManager.remove(wrapper.getPointer());
-				pointerMap.remove(key);
-                usedSize.addAndGet(payload.length * -1);
-				return payload;
-			}
-		} finally {
-			writeUnlock(key);
-		}
-		return null;
-	}
-
-	@Override
-	public boolean contains(K key) {
-		return pointerMap.containsKey(key);
-	}
+        int lockId = lockId(victim);
+        readWriteLock.writeLock(lockId);
+        try {
+            long slot = offHeapIndex.find(victim);
+            if (slot != OffHeapIndex.NOT_FOUND) {
+                Pointer pointer = getPointer(slot);
+                usedSize.add(pointer.getLength() * -1);
+                storageManager.removeLight(pointer);
+                offHeapIndex.remove(slot);
+                stats.recordEvict();
+            }
+        } finally {
+            readWriteLock.writeUnlock(lockId);
+        }
+        return true;
+    }
 
     /**
      * Clear the cache and the underlying storage.
@@ -223,12 +1729,21 @@ public class BigCache<K> implements ICache<K> {
          * not see this if they behave right.
          */
         this.pointerMap.clear();
-        this.usedSize.set(0);
+        if (this.offHeapIndex != null) {
+            readWriteLock.writeLockForAll();
+            try {
+                this.offHeapIndex.clear();
+            } finally {
+                readWriteLock.writeUnlockForAll();
+            }
+        }
+        this.usedSize.reset();
 	}
 
 	@Override
 	public double hitRatio() {
-		return 1.0 * hitCounter.get() / (hitCounter.get() + missCounter.get());
+		long hitCount = stats.getHitCount();
+		return 1.0 * hitCount / (hitCount + stats.getMissCount());
 	}
 
 	/**
@@ -269,6 +1784,9 @@ public class BigCache<K> implements ICache<K> {
 
     /**
      * Get the internal lock.
+     *
+     * The write lock should be taken by {@link #writeLock(Object)} instead, which lets the lock free
+     * readers know about the change.
      * @param key
      * @return
      */
@@ -278,12 +1796,496 @@ public class BigCache<K> implements ICache<K> {
 
 	@Override
 	public void close() throws IOException {
-        this.clear();
-        this.ses.shutdownNow();
-		this.storageManager.close();
+        try {
+            if (this.persistent) {
+                this.ses.shutdownNow();
+                awaitDaemons();
+                writeSnapshot();
+            } else {
+                this.clear();
+                this.ses.shutdownNow();
+            }
+        } finally {
+            if (this.coarseTicker != null) {
+                this.coarseTicker.close();
+            }
+            if (this.syncer != null) {
+                this.syncer.close();
+            }
+            this.storageManager.close();
+            if (this.offHeapIndex != null) {
+                readWriteLock.writeLockForAll();
+                try {
+                    this.offHeapIndex.close();
+                    if (this.blockKeys != null) {
+                        this.blockKeys.close();
+                    }
+                } finally {
+                    readWriteLock.writeUnlockForAll();
+                }
+            }
+            if (this.referenceBits != null) {
+                this.referenceBits.close();
+            }
+        }
 	}
+
+    /**
+     * Waits for the cleaner and the merger to finish their current run, so they don't move entries
+     * while the snapshot is written.
+     */
+    private void awaitDaemons() throws IOException {
+        try {
+            this.ses.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the daemons to stop");
+        }
+    }
+
+    /**
+     * Writes the storage blocks to their files and the index to the snapshot file, which is written aside
+     * and renamed once complete.
+     *
+     * The snapshot holds a header checked on load, the state of the storage blocks written by
+     * {@link StorageManager#persist(java.io.DataOutput)}, the time it was written and then the entries. Each
+     * entry is preceded by true and the entries are followed by false.
+     */
+    private void writeSnapshot() throws IOException {
+        File snapshotFile = new File(this.cacheDir + SNAPSHOT_FILE_NAME);
+        File tempFile = new File(this.cacheDir + SNAPSHOT_FILE_NAME + ".tmp");
+        IndexMode indexMode = offHeapIndex == null ? IndexMode.OnHeap
+                : storeKeys ? IndexMode.OffHeapPlusKey : IndexMode.OffHeap;
+        new File(this.cacheDir).mkdirs(); // none yet with offheap blocks only
+        readWriteLock.writeLockForAll();
+        try {
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(indexMode.name());
+                out.writeInt(storageManager.getCapacityPerBlock());
+                storageManager.persist(out);
+                out.writeLong(System.currentTimeMillis());
+
+                long now = ticker.read();
+                if (offHeapIndex != null) {
+                    for (long slot = offHeapIndex.nextSlot(0); slot != OffHeapIndex.NOT_FOUND;
+                            slot = offHeapIndex.nextSlot(slot + 1)) {
+                        if (isStale(slot)) continue;
+                        out.writeBoolean(true);
+                        out.writeLong(offHeapIndex.getKey(slot));
+                        writeEntry(out, getPointer(slot), offHeapIndex.getTimeToIdle(slot),
+                                now - offHeapIndex.getLastAccessTime(slot), offHeapIndex.getDeadline(slot), now,
+                                offHeapIndex.getCost(slot));
+                    }
+                } else {
+                    int written = 0;
+                    for (Map.Entry<K, CacheValueWrapper> entry : pointerMap.entrySet()) {
+                        CacheValueWrapper wrapper = entry.getValue();
+                        Pointer pointer = pointerOf(wrapper);
+                        if (pointer.isStale()) continue;
+                        out.writeBoolean(true);
+                        out.writeUnshared(entry.getKey());
+                        writeEntry(out, pointer, wrapper.getTimeToIdle(), wrapper.getIdleTime(now), wrapper.getDeadline(),
+                                now, wrapper.getCost());
+                        if (++written % SNAPSHOT_RESET_INTERVAL == 0) {
+                            out.reset();
+                        }
+                    }
+                }
+                out.writeBoolean(false);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(snapshotFile)) {
+                throw new IOException("rename file failed: " + tempFile);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            readWriteLock.writeUnlockForAll();
+        }
+    }
+
+    /**
+     * Writes an entry of the snapshot, with the time to live left rather than the deadline, as the ticker may
+     * not go on from the same time once loaded.
+     */
+    private void writeEntry(ObjectOutputStream out, Pointer pointer, long tti, long idleTime, long deadline, long now,
+            int cost) throws IOException {
+        out.writeLong(storageManager.toLocation(pointer));
+        out.writeInt(pointer.getGeneration());
+        out.writeLong(tti);
+        out.writeLong(idleTime);
+        out.writeLong(deadline >= 0 ? Math.max(0, deadline - now) : -1);
+        out.writeInt(cost);
+    }
+
+    /**
+     * Opens the snapshot and checks its header.
+     *
+     * @param file the snapshot file
+     * @param config the config
+     * @param indexMode the index mode
+     * @return the snapshot positioned after the header, or null if it is missing, unreadable or written with
+     * another index mode or capacity per block
+     */
+    private static ObjectInputStream openSnapshot(File file, CacheConfig config, IndexMode indexMode) {
+        if (!file.isFile()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == SNAPSHOT_MAGIC && in.readInt() == SNAPSHOT_VERSION
+                    && in.readUTF().equals(indexMode.name()) && in.readInt() == config.getCapacityPerBlock()) {
+                return in;
+            }
+        } catch (IOException e) {
+            // unreadable, start empty
+        }
+        closeSnapshot(in, file);
+        return null;
+    }
+
+    /**
+     * Closes the snapshot and deletes it, so the cache starts empty if it is not closed properly next time.
+     */
+    private static void closeSnapshot(ObjectInputStream in, File file) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        FileUtil.deleteFile(file);
+    }
+
+    /**
+     * Loads the entries of the snapshot whose storage blocks are loaded already. The entries which expired
+     * meanwhile are dropped, and the cache is cleared if the snapshot is broken.
+     *
+     * @param in the snapshot positioned after the storage blocks
+     * @param file the snapshot file
+     */
+    @SuppressWarnings("unchecked")
+    private void loadSnapshot(ObjectInputStream in, File file) throws IOException {
+        try {
+            long downtime = Math.max(0, System.currentTimeMillis() - in.readLong());
+            long now = ticker.read();
+            while (in.readBoolean()) {
+                K key = null;
+                long fingerprint = 0;
+                if (offHeapIndex != null) {
+                    fingerprint = in.readLong();
+                } else {
+                    key = (K) in.readObject();
+                }
+                Pointer pointer = storageManager.toPointer(in.readLong(), in.readInt());
+                long tti = in.readLong();
+                long idleTime = in.readLong() + downtime;
+                long ttl = in.readLong();
+                int cost = in.readInt();
+                if (tti > 0 && idleTime > tti || ttl >= 0 && ttl <= downtime) {
+                    storageManager.removeLight(pointer); // expired while the cache was closed
+                    continue;
+                }
+                long deadline = ttl >= 0 ? now + ttl - downtime : -1;
+                if (offHeapIndex != null) {
+                    ensureIndexCapacity();
+                    long slot = offHeapIndex.insert(fingerprint);
+                    setPointer(slot, pointer, false);
+                    offHeapIndex.setTimeToIdle(slot, tti);
+                    offHeapIndex.setLastAccessTime(slot, now - idleTime);
+                    offHeapIndex.setDeadline(slot, deadline);
+                    offHeapIndex.setCost(slot, cost);
+                    long expirationTime = offHeapIndex.getExpirationTime(slot);
+                    if (expirationTime >= 0) {
+                        schedule(fingerprint, expirationTime);
+                    }
+                } else {
+                    CacheValueWrapper wrapper = CacheValueWrapper.withDeadline(cost, deadline);
+                    setPointer(key, wrapper, pointer, false);
+                    wrapper.setTimeToIdle(tti);
+                    wrapper.setLastAccessTime(now - idleTime);
+                    pointerMap.put(key, wrapper);
+                    long expirationTime = wrapper.getExpirationTime(now);
+                    if (expirationTime >= 0) {
+                        schedule(key, expirationTime);
+                    }
+                }
+                usedSize.add(pointer.getLength());
+            }
+        } catch (IOException e) {
+            clear(); // broken, start empty
+        } catch (ClassNotFoundException e) {
+            clear();
+        } finally {
+            closeSnapshot(in, file);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Rebuilds the offheap index from the records in the blocks after a crash, or starts empty if the blocks
+     * fail to be scanned. Only the records stored since the last checkpoint are scanned, if any.
+     *
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        if (changedFingerprints != null) {
+            loadCheckpoints();
+        }
+        try {
+            long maxSequence = storageManager.recover(new RecordHandler() {
+                @Override
+                public boolean accept(RecordHeader header, Pointer pointer) throws IOException {
+                    return recoverRecord(header, pointer);
+                }
+            });
+            recordSequence.set(Math.max(0, maxSequence));
+        } catch (IOException e) {
+            clear(); // broken, start empty
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Puts a record found in the blocks after a crash in the offheap index, unless it has expired or the index
+     * has a newer record of the key already.
+     *
+     * The access time is lost, so the entry is taken as last accessed when it was written. The time to live runs
+     * from the write.
+     *
+     * @param header the header of the record
+     * @param pointer the pointer to the record
+     * @return true if the record is kept
+     * @throws IOException
+     */
+    private boolean recoverRecord(RecordHeader header, Pointer pointer) throws IOException {
+        long tti = header.getTimeToIdle();
+        long ttl = header.getTimeToLive();
+        long idleTime = Math.max(0, System.currentTimeMillis() - header.getWriteTime());
+        if (tti > 0 && idleTime > tti || ttl > 0 && idleTime > ttl) {
+            return false; // expired while the cache was down
+        }
+        long fingerprint = header.getFingerprint();
+        long sequence = header.getSequence();
+        int lockId = lockId(fingerprint);
+        while (true) {
+            ensureIndexCapacity();
+            readWriteLock.writeLock(lockId);
+            try {
+                long slot = offHeapIndex.find(fingerprint);
+                boolean stored = slot != OffHeapIndex.NOT_FOUND;
+                if (!stored) {
+                    slot = offHeapIndex.insert(fingerprint);
+                    if (slot == OffHeapIndex.NOT_FOUND) {
+                        continue; // filled up by the other blocks, grow it and retry
+                    }
+                } else {
+                    Pointer oldPointer = getPointer(slot);
+                    if (oldPointer.getStorageBlock() == pointer.getStorageBlock()
+                            && oldPointer.getPosition() == pointer.getPosition()) {
+                        return false; // found already
+                    }
+                    Pointer oldHeader = new Pointer(oldPointer.getPosition(), RecordHeader.SIZE,
+                            oldPointer.getStorageBlock(), oldPointer.getGeneration());
+                    if (new RecordHeader(storageManager.retrieve(oldHeader)).getSequence() > sequence) {
+                        return false;
+                    }
+                    storageManager.removeLight(oldPointer);
+                    usedSize.add(oldPointer.getLength() * -1);
+                }
+                setPointer(slot, pointer, stored);
+                long writeTime = ticker.read() - idleTime;
+                offHeapIndex.setTimeToIdle(slot, tti);
+                offHeapIndex.setLastAccessTime(slot, writeTime);
+                offHeapIndex.setDeadline(slot, ttl > 0 ? writeTime + ttl : -1);
+                offHeapIndex.setCost(slot, header.getCost());
+                usedSize.add(pointer.getLength());
+                long expirationTime = offHeapIndex.getExpirationTime(slot);
+                if (expirationTime >= 0) {
+                    schedule(fingerprint, expirationTime);
+                }
+                return true;
+            } finally {
+                readWriteLock.writeUnlock(lockId);
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the offheap index, with all the entries once every {@link #CHECKPOINT_DELTAS_PER_BASE}
+     * checkpoints and otherwise only the entries set since the last one. The entries removed are left out, as
+     * their records are marked dead. Only one stripe is locked at a time, so the puts and the gets go on.
+     *
+     * @throws IOException
+     */
+    synchronized void checkpoint() throws IOException {
+        if (syncer != null) {
+            syncer.sync(); // the records in the checkpoint are on the disk
+        }
+        boolean full = checkpointNumber == 0;
+        long epoch = full ? checkpointEpoch + 1 : checkpointEpoch;
+        File file = checkpointFile(epoch, checkpointNumber);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeInt(storageManager.getCapacityPerBlock());
+                storageManager.writeCheckpoint(out); // before the entries, which may be stored after it
+                if (full) {
+                    long slot = 0;
+                    for (int chunk = 0; slot != OffHeapIndex.NOT_FOUND; chunk++) {
+                        readWriteLock.readLock(chunk);
+                        try {
+                            long end = slot + INDEX_SCAN_CHUNK_SIZE;
+                            for (slot = offHeapIndex.nextSlot(slot); slot != OffHeapIndex.NOT_FOUND && slot < end;
+                                 slot = offHeapIndex.nextSlot(slot + 1)) {
+                                writeCheckpointEntry(out, slot);
+                            }
+                        } finally {
+                            readWriteLock.readUnlock(chunk);
+                        }
+                    }
+                }
+                // with their own lock held, so the ones set while the others are written are seen
+                for (Long fingerprint : changedFingerprints.keySet()) {
+                    changedFingerprints.remove(fingerprint);
+                    int lockId = lockId(fingerprint);
+                    readWriteLock.readLock(lockId);
+                    try {
+                        long slot = offHeapIndex.find(fingerprint);
+                        if (slot != OffHeapIndex.NOT_FOUND) {
+                            writeCheckpointEntry(out, slot);
+                        }
+                    } finally {
+                        readWriteLock.readUnlock(lockId);
+                    }
+                }
+                out.writeBoolean(false);
+                out.writeInt(CHECKPOINT_MAGIC); // complete
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("rename file failed: " + tempFile);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            checkpointNumber = 0; // the changed entries taken are lost, start a new epoch
+            throw e;
+        }
+        checkpointEpoch = epoch;
+        checkpointNumber = checkpointNumber == CHECKPOINT_DELTAS_PER_BASE ? 0 : checkpointNumber + 1;
+        if (full) {
+            deleteCheckpoints(epoch);
+        }
+    }
+
+    private void writeCheckpointEntry(DataOutputStream out, long slot) throws IOException {
+        if (isStale(slot)) return;
+        out.writeBoolean(true);
+        out.writeLong(storageManager.toLocation(getPointer(slot)));
+        out.writeInt(offHeapIndex.getGeneration(slot));
+    }
+
+    private File checkpointFile(long epoch, int number) {
+        return new File(this.cacheDir + CHECKPOINT_FILE_PREFIX + epoch + "." + number);
+    }
+
+    /**
+     * Gets the epoch of a checkpoint file.
+     *
+     * @param name the file name
+     * @return the epoch, or -1 if not a checkpoint file
+     */
+    private static long epochOf(String name) {
+        if (!name.startsWith(CHECKPOINT_FILE_PREFIX)) return -1;
+        int end = name.indexOf('.', CHECKPOINT_FILE_PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(CHECKPOINT_FILE_PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint files of the epochs before the given one.
+     *
+     * @param epoch the epoch
+     */
+    private void deleteCheckpoints(long epoch) {
+        File[] files = new File(this.cacheDir).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            long fileEpoch = epochOf(file.getName());
+            if (fileEpoch >= 0 && fileEpoch < epoch) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Passes the records known by the checkpoints of the last epoch to the storage manager, so the blocks are
+     * only scanned past the last checkpoint. If a checkpoint fails to be read, all the records are scanned.
+     */
+    private void loadCheckpoints() {
+        long epoch = -1;
+        File[] files = new File(this.cacheDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".0")) {
+                    epoch = Math.max(epoch, epochOf(file.getName()));
+                }
+            }
+        }
+        if (epoch < 0) return;
+        checkpointEpoch = epoch;
+        try {
+            for (int number = 0; checkpointFile(epoch, number).isFile(); number++) {
+                readCheckpoint(checkpointFile(epoch, number));
+            }
+        } catch (IOException e) {
+            storageManager.resetCheckpoint();
+        }
+    }
+
+    private void readCheckpoint(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION
+                    || in.readInt() != storageManager.getCapacityPerBlock()) {
+                throw new IOException("incompatible checkpoint: " + file);
+            }
+            storageManager.readCheckpoint(in);
+            while (in.readBoolean()) {
+                storageManager.addCheckpointRecord(in.readLong(), in.readInt());
+            }
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("incomplete checkpoint: " + file);
+            }
+        } finally {
+            in.close();
+        }
+    }
 	
 	public long count(){
+		if (offHeapIndex != null) {
+			return offHeapIndex.size();
+		}
 		return pointerMap.size();
 	}
 
@@ -293,8 +2295,8 @@ public class BigCache<K> implements ICache<K> {
      * @return all stats.
      */
     public BigCacheStats getStats() {
-        return new BigCacheStats(hitCounter.get(), missCounter.get(), getCounter.get(),
-                putCounter.get(), deleteCounter.get(), purgeCounter.get(), moveCounter.get(),
+        return new BigCacheStats(stats.getHitCount(), stats.getMissCount(), stats.getGetCount(),
+                stats.getPutCount(), stats.getDeleteCount(), stats.getPurgeCount(), stats.getMoveCount(), stats.getEvictCount(),
                 count(), storageManager.getUsed(), storageManager.getDirty(),
                 storageManager.getCapacity(), storageManager.getUsedBlockCount(), storageManager.getFreeBlockCount(),
                 storageManager.getTotalBlockCount());
@@ -326,14 +2328,19 @@ public class BigCache<K> implements ICache<K> {
                 e.printStackTrace();
             }
 
-            cache.storageManager.clean();
+            try {
+                cache.clean();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
         abstract void process(BigCache<K> cache) throws IOException;
     }
 
     /**
-     * Clean the expired keys.
+     * Clean the expired keys. The keys evicted along with their blocks in ring mode are dropped by
+     * {@link BigCache#clean()} after each run, through the keys listed in the recycled blocks.
      *
      * @param <K>
      */
@@ -344,52 +2351,52 @@ public class BigCache<K> implements ICache<K> {
 
         @Override
         public void process(BigCache<K> cache) throws IOException {
-            Set<K> keys = cache.pointerMap.keySet();
-
-            // store the expired keys according to their associated lock
-            Map<ReadWriteLock, List<K>> expiredKeys = new HashMap<ReadWriteLock, List<K>>();
-
-            // find all the keys that may be expired. It's lock less as we will validate later.
-            for(K key : keys) {
-                CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                if (wrapper != null && wrapper.isExpired()) {
-                    ReadWriteLock lock = cache.getLock(key);
-                    List<K> keyList = expiredKeys.get(lock);
-                    if (keyList == null) {
-                        keyList = new ArrayList<K>();
-                        expiredKeys.put(lock, keyList);
-                    }
-                    keyList.add(key);
-                }
-            }
+            cache.purgeExpired();
+            cache.NO_OF_PURGE_RUN.incrementAndGet();
+        }
+    }
 
-            // expire keys with write lock, this will complete quickly.
-            for (ReadWriteLock lock : expiredKeys.keySet()) {
-                List<K> keyList = expiredKeys.get(lock);
-                if (keyList == null || keyList.isEmpty()) {
-                    continue;
-                }
+    /**
+     * Purges the expired keys found by the timer wheel, more often than the cleaner as it only visits the keys
+     * which may be due.
+     *
+     * @param <K>
+     */
+    static class CacheExpirer<K> extends CacheDaemonWorker<K> {
+        CacheExpirer(BigCache<K> cache) {
+            super(cache);
+        }
 
-                lock.writeLock().lock();
-                try {
-                    for(K key : keyList) {
-                        CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                        if (wrapper != null && wrapper.isExpired()) { // double check
-                            Pointer oldPointer = wrapper.getPointer();
-                            cache.usedSize.addAndGet(oldPointer.getLength() * -1);
-                            cache.storageManager.removeLight(oldPointer);
-                            cache.pointerMap.remove(key);
-                            cache.purgeCounter.incrementAndGet();
-                        }
-                    }
-                } finally {
-                    lock.writeLock().unlock();
-                }
-            }
-            cache.NO_OF_PURGE_RUN.incrementAndGet();
+        @Override
+        void process(BigCache<K> cache) throws IOException {
+            cache.purgeExpired();
+        }
+    }
+
+    /**
+     * Writes the checkpoints of the offheap index.
+     *
+     * @param <K>
+     */
+    static class CacheCheckpointer<K> extends CacheDaemonWorker<K> {
+        CacheCheckpointer(BigCache<K> cache) {
+            super(cache);
+        }
+
+        @Override
+        public void process(BigCache<K> cache) throws IOException {
+            cache.checkpoint();
         }
     }
 
+    /**
+     * Moves the entries out of the dirty blocks, so the blocks get freed. The entries are found through the keys
+     * listed by block, so the cost of a run is in proportion to the keys of the dirty blocks only. The keys of a
+     * stripe are copied, then moved a few at a time with the write lock of the stripe held, so the readers and
+     * writers of the stripe only wait for a few moves.
+     *
+     * @param <K>
+     */
     static class CacheMerger<K> extends CacheDaemonWorker<K> {
         CacheMerger(BigCache<K> cache) {
             super(cache);
@@ -397,60 +2404,134 @@ public class BigCache<K> implements ICache<K> {
 
         @Override
         void process(BigCache<K> cache) throws IOException {
-            Set<K> keys = cache.pointerMap.keySet();
-
-            // store the keys in dirty block according to the block index
-            Map<Integer, List<K>> keysInDirtyBlock = new HashMap<Integer, List<K>>();
-
-            // find all the keys that need to be moved. It's lock less as we will validate later.
-            for(K key : keys) {
-                CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                StorageBlock sb;
-                Pointer pointer;
-                if (wrapper != null
-                        && ((pointer = wrapper.getPointer()) != null)
-                        && ((sb = pointer.getStorageBlock()) != null)
-                        && (sb.getDirtyRatio() > cache.dirtyRatioThreshold)) {
-                    Integer index = sb.getIndex();
-                    List<K> keyList = keysInDirtyBlock.get(index);
-                    if (keyList == null) {
-                        keyList = new ArrayList<K>();
-                        keysInDirtyBlock.put(index, keyList);
+            for (IStorageBlock block : cache.storageManager.getUsedBlocks()) {
+                StorageBlock sb = cache.storageManager.getBlock(block.getIndex());
+                if (sb.getDirtyRatio() > cache.dirtyRatioThreshold) {
+                    if (cache.offHeapIndex != null) {
+                        processIndex(cache, sb);
+                    } else {
+                        process(cache, sb);
                     }
-                    keyList.add(key);
                 }
             }
+            cache.NO_OF_MERGE_RUN.incrementAndGet();
+        }
 
-            // move keys index by index, we will always work on the block in memory.
-            for(List<K> keyList : keysInDirtyBlock.values()) {
-                if (keyList == null || keyList.isEmpty()) {
-                    continue;
+        @SuppressWarnings("unchecked")
+        private void process(BigCache<K> cache, StorageBlock sb) throws IOException {
+            int generation = sb.getGeneration();
+            for (int lock = 0; lock < cache.readWriteLock.size(); lock++) {
+                Object[] keys;
+                cache.readWriteLock.writeLock(lock);
+                try {
+                    keys = cache.blockKeys.getKeys(lock, sb.getIndex(), generation);
+                } finally {
+                    cache.readWriteLock.writeUnlock(lock);
                 }
-                for(K key : keyList) {
-                    cache.readLock(key);
+                for (int from = 0; from < keys.length; from += MOVE_BATCH_SIZE) {
+                    long now = cache.ticker.read();
+                    // readers may go without the read lock, so the keys are moved with the write lock held.
+                    cache.readWriteLock.writeLock(lock);
                     try {
+                        for (int i = from; i < Math.min(from + MOVE_BATCH_SIZE, keys.length); i++) {
+                            Object key = keys[i];
+                            CacheValueWrapper wrapper = cache.pointerMap.get(key);
+                            if (wrapper == null || !cache.isIn(wrapper, sb.getIndex(), generation)) {
+                                // moved or removed meanwhile, continue with next key;
+                                continue;
+                            }
+                            Pointer pointer = cache.pointerOf(wrapper);
+                            byte[] payload = cache.retrieve(pointer);
+                            if (payload == null) {
+                                // the block is recycled, leave the entry to the cleaner
+                                continue;
+                            }
+                            cache.storageManager.removeLight(pointer);
+                            long deadline = wrapper.getDeadline();
+                            cache.setPointer((K) key, wrapper, cache.storageManager.storeExcluding(payload, sb,
+                                    lifetimeOf(deadline, wrapper.getTimeToIdle(), now), storageDeadline(deadline)), true);
+                            cache.stats.recordMove();
+                        }
+                    } finally {
+                        cache.readWriteLock.writeUnlock(lock);
+                    }
+                }
+                cache.readWriteLock.writeLock(lock);
+                try {
+                    // unless keys were stored into the block since they were copied
+                    boolean moved = true;
+                    for (Object key : cache.blockKeys.getKeys(lock, sb.getIndex(), generation)) {
                         CacheValueWrapper wrapper = cache.pointerMap.get(key);
-                        if (wrapper == null) {
-                            // not exist now and do nothing, continue with next key;
-                            continue;
+                        if (wrapper != null && cache.isIn(wrapper, sb.getIndex(), generation)) {
+                            moved = false;
+                            break;
                         }
+                    }
+                    if (moved) {
+                        cache.blockKeys.remove(lock, sb.getIndex());
+                    }
+                } finally {
+                    cache.readWriteLock.writeUnlock(lock);
+                }
+            }
+        }
 
-                        // wrapper is accessed/modified by reader and the merger, use lock here
-                        synchronized (wrapper) {
-                            StorageBlock sb = wrapper.getPointer().getStorageBlock();
-                            if (sb.getDirtyRatio() > cache.dirtyRatioThreshold) {
-                                byte[] payload = cache.storageManager.remove(wrapper.getPointer());
-                                Pointer newPointer = cache.storageManager.storeExcluding(payload, sb);
-                                wrapper.setPointer(newPointer);
-                                cache.moveCounter.incrementAndGet();
+        private void processIndex(BigCache<K> cache, StorageBlock sb) throws IOException {
+            OffHeapIndex index = cache.offHeapIndex;
+            int generation = sb.getGeneration();
+            for (int lock = 0; lock < cache.readWriteLock.size(); lock++) {
+                long[] fingerprints;
+                cache.readWriteLock.writeLock(lock);
+                try {
+                    fingerprints = cache.blockKeys.getFingerprints(lock, sb.getIndex(), generation);
+                } finally {
+                    cache.readWriteLock.writeUnlock(lock);
+                }
+                for (int from = 0; from < fingerprints.length; from += MOVE_BATCH_SIZE) {
+                    long now = cache.ticker.read();
+                    // there is no wrapper to synchronize on, so the keys are moved with the write lock held.
+                    cache.readWriteLock.writeLock(lock);
+                    try {
+                        for (int i = from; i < Math.min(from + MOVE_BATCH_SIZE, fingerprints.length); i++) {
+                            long slot = index.find(fingerprints[i]);
+                            if (slot == OffHeapIndex.NOT_FOUND || !cache.isIn(slot, sb.getIndex(), generation)) {
+                                // moved or removed meanwhile, continue with next key;
+                                continue;
                             }
+                            Pointer pointer = cache.getPointer(slot);
+                            byte[] payload = cache.retrieve(pointer);
+                            if (payload == null) {
+                                // the block is recycled, leave the entry to the cleaner
+                                continue;
+                            }
+                            cache.storageManager.removeLight(pointer);
+                            long deadline = index.getDeadline(slot);
+                            cache.setPointer(slot, cache.storageManager.storeExcluding(payload, sb,
+                                    lifetimeOf(deadline, index.getTimeToIdle(slot), now), storageDeadline(deadline)), true);
+                            cache.stats.recordMove();
                         }
                     } finally {
-                        cache.readUnlock(key);
+                        cache.readWriteLock.writeUnlock(lock);
+                    }
+                }
+                cache.readWriteLock.writeLock(lock);
+                try {
+                    // unless keys were stored into the block since they were copied
+                    boolean moved = true;
+                    for (long fingerprint : cache.blockKeys.getFingerprints(lock, sb.getIndex(), generation)) {
+                        long slot = index.find(fingerprint);
+                        if (slot != OffHeapIndex.NOT_FOUND && cache.isIn(slot, sb.getIndex(), generation)) {
+                            moved = false;
+                            break;
+                        }
+                    }
+                    if (moved) {
+                        cache.blockKeys.remove(lock, sb.getIndex());
                     }
+                } finally {
+                    cache.readWriteLock.writeUnlock(lock);
                 }
             }
-            cache.NO_OF_MERGE_RUN.incrementAndGet();
         }
     }
 }
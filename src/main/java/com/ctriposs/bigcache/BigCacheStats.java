@@ -13,6 +13,7 @@ public class BigCacheStats {
 
     private final long cacheExpire;
     private final long cacheMove;
+    private final long cacheEvict;
     private final long cacheTotalEntries;
 
     private final long storageUsed;
@@ -27,6 +28,15 @@ public class BigCacheStats {
                          long cacheMove, long cacheTotalEntries, long storageUsed,
                          long storageDirty, long storageCapacity,
                          long storageUsedBlocks, long storageFreeBlocks, long storageTotalBlocks) {
+        this(cacheHit, cacheMiss, cacheGet, cachePut, cacheDelete, cacheExpire, cacheMove, 0L, cacheTotalEntries,
+                storageUsed, storageDirty, storageCapacity, storageUsedBlocks, storageFreeBlocks, storageTotalBlocks);
+    }
+
+    public BigCacheStats(long cacheHit, long cacheMiss, long cacheGet,
+                         long cachePut, long cacheDelete, long cacheExpire,
+                         long cacheMove, long cacheEvict, long cacheTotalEntries, long storageUsed,
+                         long storageDirty, long storageCapacity,
+                         long storageUsedBlocks, long storageFreeBlocks, long storageTotalBlocks) {
         this.cacheHit = cacheHit;
         this.cacheMiss = cacheMiss;
 
@@ -36,6 +46,7 @@ public class BigCacheStats {
 
         this.cacheExpire = cacheExpire;
         this.cacheMove = cacheMove;
+        this.cacheEvict = cacheEvict;
 
         this.cacheTotalEntries = cacheTotalEntries;
 
@@ -49,7 +60,7 @@ public class BigCacheStats {
     }
 
     public BigCacheStats() {
-        this(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L);
+        this(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L);
     }
 
     public BigCacheStats getDeltaStats(BigCacheStats previousStats) {
@@ -65,6 +76,7 @@ public class BigCacheStats {
                 this.cacheDelete - previousStats.cacheDelete,
                 this.cacheExpire - previousStats.cacheExpire,
                 this.cacheMove - previousStats.cacheMove,
+                this.cacheEvict - previousStats.cacheEvict,
 
                 /*$(current value): latest value which is more meaningful*/
                 this.cacheTotalEntries,
@@ -105,6 +117,15 @@ public class BigCacheStats {
         return cacheMove;
     }
 
+    /**
+     * Gets the number of entries evicted to keep the cache within its max storage size and max entries.
+     *
+     * @return the number of evictions
+     */
+    public long getCacheEvict() {
+        return cacheEvict;
+    }
+
     public long getCacheTotalEntries() {
         return cacheTotalEntries;
     }
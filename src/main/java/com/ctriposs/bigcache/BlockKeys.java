@@ -0,0 +1,429 @@
+package com.ctriposs.bigcache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import sun.misc.Unsafe;
+
+import com.ctriposs.bigcache.utils.UnsafeUtil;
+
+/**
+ * The keys of the entries stored in each storage block, so the merger goes straight to the keys of the dirty
+ * blocks instead of scanning all the keys of the cache.
+ *
+ * The keys are listed by block and by lock stripe, and a key is only added to or dropped from the list of its
+ * stripe with the write lock of the stripe held, so the lists need no lock of their own. The keys are never
+ * removed one by one: a key moved, updated out of the block or deleted is left in the list, and dropped once the
+ * list is full if it is not in the block anymore or listed twice, as a key may come back to a block, so a list is
+ * at most about twice as long as the keys of its stripe in the block. A list belongs to a generation of its block,
+ * and is dropped once the block is freed, so the keys deleted are not kept by the lists of the blocks freed. The
+ * keys still in the generation a list was dropped for were evicted along with their block, in ring mode, so they
+ * are handed back to be purged; a list replaced by the one of a newer generation is kept until then.
+ *
+ * The keys are kept as references with the internal map, and as fingerprints with the offheap index, whose lists
+ * are in offheap memory so its entries cost no heap. A list of fingerprints is freed once dropped or replaced, and
+ * all of them when closed.
+ */
+class BlockKeys implements Closeable {
+
+	private static final Unsafe UNSAFE = UnsafeUtil.getUnsafe();
+	private static final long LONG_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(long[].class);
+
+	private static final int INITIAL_LIST_SIZE = 16;
+
+	private static final long[] NO_FINGERPRINTS = new long[0];
+
+	private static final Object[] NO_KEYS = new Object[0];
+
+	/**
+	 * Tells if a key is still in a block.
+	 */
+	interface Membership {
+
+		/**
+		 * @param fingerprint the key fingerprint in the offheap index
+		 * @param blockIndex the index of the block
+		 * @param generation the generation of the block
+		 * @return true if the entry of the key is stored in this generation of the block
+		 */
+		boolean isIn(long fingerprint, int blockIndex, int generation);
+
+		/**
+		 * @param key the key in the internal map
+		 * @param blockIndex the index of the block
+		 * @param generation the generation of the block
+		 * @return true if the entry of the key is stored in this generation of the block
+		 */
+		boolean isIn(Object key, int blockIndex, int generation);
+	}
+
+	private final int stripeCount;
+
+	/** True for the fingerprints of the offheap index, false for the keys of the internal map. */
+	private final boolean fingerprints;
+
+	private final Membership membership;
+
+	/** The lists by block index then by stripe, the table is only grown under the lock of this. */
+	private volatile KeyList[][] table = new KeyList[0][];
+
+	/**
+	 * @param stripeCount the number of lock stripes
+	 * @param fingerprints true to list the fingerprints of the offheap index, false the keys of the internal map
+	 * @param membership tells the keys still in a block
+	 */
+	BlockKeys(int stripeCount, boolean fingerprints, Membership membership) {
+		this.stripeCount = stripeCount;
+		this.fingerprints = fingerprints;
+		this.membership = membership;
+	}
+
+	/**
+	 * Adds the key fingerprint of an entry stored in a block, with the write lock of its stripe held.
+	 *
+	 * @param stripe the lock stripe of the key
+	 * @param blockIndex the index of the block
+	 * @param generation the generation of the block when the entry was stored
+	 * @param fingerprint the key fingerprint
+	 */
+	void add(int stripe, int blockIndex, int generation, long fingerprint) {
+		KeyList list = listOf(stripe, blockIndex, generation);
+		if (list.count == list.capacity) {
+			long[] fingerprints = list.getFingerprints();
+			Arrays.sort(fingerprints);
+			int count = 0;
+			for (int i = 0; i < fingerprints.length; i++) {
+				if ((count == 0 || fingerprints[i] != fingerprints[count - 1])
+						&& membership.isIn(fingerprints[i], blockIndex, generation)) {
+					fingerprints[count++] = fingerprints[i];
+				}
+			}
+			if (count > list.capacity / 2) {
+				list.grow();
+			}
+			list.setFingerprints(fingerprints, count);
+		}
+		UNSAFE.putLong(list.address + (long) list.count * 8, fingerprint);
+		list.count++;
+	}
+
+	/**
+	 * Adds the key of an entry stored in a block, with the write lock of its stripe held.
+	 *
+	 * @param stripe the lock stripe of the key
+	 * @param blockIndex the index of the block
+	 * @param generation the generation of the block when the entry was stored
+	 * @param key the key
+	 */
+	void add(int stripe, int blockIndex, int generation, Object key) {
+		KeyList list = listOf(stripe, blockIndex, generation);
+		if (list.count == list.keys.length) {
+			Set<Object> kept = new HashSet<Object>();
+			int count = 0;
+			for (int i = 0; i < list.count; i++) {
+				if (membership.isIn(list.keys[i], blockIndex, generation) && kept.add(list.keys[i])) {
+					list.keys[count++] = list.keys[i];
+				}
+			}
+			Arrays.fill(list.keys, count, list.count, null);
+			list.count = count;
+			if (count > list.keys.length / 2) {
+				list.keys = Arrays.copyOf(list.keys, list.keys.length * 2);
+			}
+		}
+		list.keys[list.count++] = key;
+	}
+
+	/**
+	 * Gets the key fingerprints listed in a block, with the write lock of the stripe held. Some of them may
+	 * not be in the block anymore.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return the key fingerprints
+	 */
+	long[] getFingerprints(int stripe, int blockIndex, int generation) {
+		KeyList list = get(stripe, blockIndex, generation);
+		return list == null ? NO_FINGERPRINTS : list.getFingerprints();
+	}
+
+	/**
+	 * Gets the keys listed in a block, with the write lock of the stripe held. Some of them may not be in the
+	 * block anymore.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return the keys
+	 */
+	Object[] getKeys(int stripe, int blockIndex, int generation) {
+		KeyList list = get(stripe, blockIndex, generation);
+		return list == null ? NO_KEYS : Arrays.copyOf(list.keys, list.count);
+	}
+
+	/**
+	 * Drops the keys listed in a block once they are all moved out of it, with the write lock of the stripe held.
+	 * The lists of the generations before are left to {@link #removeStaleKeys(int, int, int)}.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 */
+	void remove(int stripe, int blockIndex) {
+		KeyList[][] table = this.table;
+		if (blockIndex < table.length && table[blockIndex][stripe] != null) {
+			KeyList list = table[blockIndex][stripe];
+			list.free();
+			table[blockIndex][stripe] = list.previous;
+		}
+	}
+
+	/**
+	 * Checks if the keys of a stripe listed in a block belong to a generation of the block before the current one,
+	 * which is only a hint without the write lock of the stripe.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return true if some keys should be dropped by {@link #removeStaleKeys(int, int, int)}
+	 */
+	boolean isStale(int stripe, int blockIndex, int generation) {
+		KeyList[][] table = this.table;
+		if (blockIndex >= table.length) {
+			return false;
+		}
+		KeyList list = table[blockIndex][stripe];
+		return list != null && (list.generation != generation || list.previous != null);
+	}
+
+	/**
+	 * Drops the key fingerprints of a stripe listed in the generations of a block before the current one, with the
+	 * write lock of the stripe held.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return the fingerprints still in the generations they were listed in, whose entries are gone with the block
+	 */
+	long[] removeStaleFingerprints(int stripe, int blockIndex, int generation) {
+		long[] stale = NO_FINGERPRINTS;
+		int count = 0;
+		for (KeyList list : removeStale(stripe, blockIndex, generation)) {
+			for (long fingerprint : list.getFingerprints()) {
+				if (membership.isIn(fingerprint, blockIndex, list.generation)) {
+					if (count == stale.length) {
+						stale = Arrays.copyOf(stale, Math.max(INITIAL_LIST_SIZE, count * 2));
+					}
+					stale[count++] = fingerprint;
+				}
+			}
+			list.free();
+		}
+		return Arrays.copyOf(stale, count);
+	}
+
+	/**
+	 * Drops the keys of a stripe listed in the generations of a block before the current one, with the write lock of
+	 * the stripe held.
+	 *
+	 * @param stripe the lock stripe
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return the keys still in the generations they were listed in, whose entries are gone with the block
+	 */
+	Object[] removeStaleKeys(int stripe, int blockIndex, int generation) {
+		List<Object> stale = new ArrayList<Object>();
+		for (KeyList list : removeStale(stripe, blockIndex, generation)) {
+			for (int i = 0; i < list.count; i++) {
+				if (membership.isIn(list.keys[i], blockIndex, list.generation)) {
+					stale.add(list.keys[i]);
+				}
+			}
+		}
+		return stale.toArray();
+	}
+
+	/**
+	 * Unlinks the lists of a stripe in a block of the generations before the current one.
+	 *
+	 * @return the lists unlinked, to be freed by the caller
+	 */
+	private List<KeyList> removeStale(int stripe, int blockIndex, int generation) {
+		List<KeyList> stale = new ArrayList<KeyList>();
+		if (!isStale(stripe, blockIndex, generation)) {
+			return stale;
+		}
+		KeyList[][] table = this.table;
+		KeyList list = table[blockIndex][stripe];
+		if (list.generation == generation) {
+			list = list.previous;
+			table[blockIndex][stripe].previous = null;
+		} else {
+			table[blockIndex][stripe] = null;
+		}
+		for (; list != null; list = list.previous) {
+			stale.add(list);
+		}
+		return stale;
+	}
+
+	/**
+	 * Gets the number of block indexes the keys are listed by, some of which may have no block yet.
+	 *
+	 * @return the block count
+	 */
+	int getBlockCount() {
+		return table.length;
+	}
+
+	/**
+	 * Checks if any keys are listed in a block, which is only a hint without the write locks of the stripes.
+	 *
+	 * @param blockIndex the index of the block
+	 * @return true if there is a list in the block, of any generation
+	 */
+	boolean isListed(int blockIndex) {
+		KeyList[][] table = this.table;
+		if (blockIndex < table.length) {
+			for (KeyList list : table[blockIndex]) {
+				if (list != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Counts the keys listed in a block, including the ones not in the block anymore.
+	 *
+	 * @param blockIndex the index of the block
+	 * @param generation the current generation of the block
+	 * @return the count
+	 */
+	int count(int blockIndex, int generation) {
+		KeyList[][] table = this.table;
+		int count = 0;
+		if (blockIndex < table.length) {
+			for (KeyList list : table[blockIndex]) {
+				if (list != null && list.generation == generation) {
+					count += list.count;
+				}
+			}
+		}
+		return count;
+	}
+
+	private KeyList get(int stripe, int blockIndex, int generation) {
+		KeyList[][] table = this.table;
+		if (blockIndex >= table.length) {
+			return null;
+		}
+		KeyList list = table[blockIndex][stripe];
+		return list != null && list.generation == generation ? list : null;
+	}
+
+	private KeyList listOf(int stripe, int blockIndex, int generation) {
+		KeyList[][] table = this.table;
+		if (blockIndex >= table.length) {
+			table = grow(blockIndex);
+		}
+		KeyList list = table[blockIndex][stripe];
+		if (list == null || list.generation != generation) {
+			// dropped by the merger, or left by a generation of the block before, which is kept to be purged
+			KeyList previous = list;
+			list = new KeyList(generation, fingerprints);
+			list.previous = previous;
+			table[blockIndex][stripe] = list;
+		}
+		return list;
+	}
+
+	private synchronized KeyList[][] grow(int blockIndex) {
+		KeyList[][] table = this.table;
+		if (blockIndex >= table.length) {
+			int length = table.length;
+			table = Arrays.copyOf(table, Math.max(length * 2, blockIndex + 1));
+			for (int i = length; i < table.length; i++) {
+				table[i] = new KeyList[stripeCount];
+			}
+			this.table = table; // publish
+		}
+		return table;
+	}
+
+	/**
+	 * Frees the lists of fingerprints, with the write locks of all the stripes held.
+	 */
+	@Override
+	public synchronized void close() {
+		KeyList[][] table = this.table;
+		this.table = new KeyList[0][]; // a late lookup finds nothing instead of touching freed memory
+		for (KeyList[] lists : table) {
+			for (KeyList list : lists) {
+				for (; list != null; list = list.previous) {
+					list.free();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The keys of a stripe in a generation of a block, either as references in an array, or as fingerprints in
+	 * offheap memory.
+	 */
+	private static class KeyList {
+
+		private final int generation;
+
+		private int count;
+
+		/** The list of a generation of the block before, left until its keys are purged. */
+		private KeyList previous;
+
+		/** The address of the fingerprints, 0 once freed. */
+		private long address;
+
+		/** The number of fingerprints fitting at the address. */
+		private int capacity;
+
+		private Object[] keys;
+
+		KeyList(int generation, boolean fingerprints) {
+			this.generation = generation;
+			if (fingerprints) {
+				this.address = UNSAFE.allocateMemory(INITIAL_LIST_SIZE * 8);
+				this.capacity = INITIAL_LIST_SIZE;
+			} else {
+				this.keys = new Object[INITIAL_LIST_SIZE];
+			}
+		}
+
+		long[] getFingerprints() {
+			long[] fingerprints = new long[count];
+			UNSAFE.copyMemory(null, address, fingerprints, LONG_ARRAY_OFFSET, (long) count * 8);
+			return fingerprints;
+		}
+
+		void setFingerprints(long[] fingerprints, int count) {
+			UNSAFE.copyMemory(fingerprints, LONG_ARRAY_OFFSET, null, address, (long) count * 8);
+			this.count = count;
+		}
+
+		void grow() {
+			address = UNSAFE.reallocateMemory(address, (long) capacity * 2 * 8);
+			capacity *= 2;
+		}
+
+		void free() {
+			if (address != 0) {
+				UNSAFE.freeMemory(address);
+				address = 0;
+			}
+		}
+	}
+}
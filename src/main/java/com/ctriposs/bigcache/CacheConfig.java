@@ -1,17 +1,38 @@
 package com.ctriposs.bigcache;
 
+import com.ctriposs.bigcache.index.OffHeapIndex;
 import com.ctriposs.bigcache.storage.StorageManager;
+import com.ctriposs.bigcache.utils.Ticker;
 
 public class CacheConfig {
 	
 	private int concurrencyLevel = BigCache.DEFAULT_CONCURRENCY_LEVEL;
 	private int capacityPerBlock = StorageManager.DEFAULT_CAPACITY_PER_BLOCK;
 	private int initialNumberOfBlocks = StorageManager.DEFAULT_INITIAL_NUMBER_OF_BLOCKS;
+	private int preallocatedBlocks = StorageManager.DEFAULT_PREALLOCATED_BLOCKS;
+	private int activeBlockCount = StorageManager.DEFAULT_ACTIVE_BLOCK_COUNT;
     private long purgeInterval = BigCache.DEFAULT_PURGE_INTERVAL;
     private long mergeInterval = BigCache.DEFAULT_MERGE_INTERVAL;
     private double dirtyRatioThreshold = BigCache.DEFAULT_DIRTY_RATIO_THRESHOLD;
     private long maxOffHeapMemorySize = StorageManager.DEFAULT_MAX_OFFHEAP_MEMORY_SIZE;
     private StorageMode storageMode = StorageMode.PureFile;
+    private AllocationMode allocationMode = AllocationMode.Append;
+    private boolean expiryPlacement = false;
+    private IndexMode indexMode = IndexMode.OnHeap;
+    private long initialIndexCapacity = OffHeapIndex.DEFAULT_INITIAL_CAPACITY;
+    private Ticker ticker = Ticker.systemTicker();
+    private long accessTimeGranularity = 0;
+    private boolean statsEnabled = true;
+    private long maxStorageSize = 0;
+    private long maxEntries = 0;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private int ringBlockCount = 0;
+    private boolean ringReinsert = false;
+    private boolean persistent = false;
+    private boolean crashRecovery = false;
+    private long checkpointInterval = 0;
+    private Durability durability = Durability.None;
+    private long syncInterval = BigCache.DEFAULT_SYNC_INTERVAL;
 	
 	public int getConcurrencyLevel() {
 		return concurrencyLevel;
@@ -53,6 +74,45 @@ public class CacheConfig {
 		return this;
 	}
 
+	public int getPreallocatedBlocks() {
+		return preallocatedBlocks;
+	}
+
+	/**
+	 * Sets the number of free blocks kept ready by a background thread, so a full block is replaced without
+	 * waiting for a new one to be created. Off by default, as each block kept ready holds a block of memory or
+	 * disk and one more thread runs per cache.
+	 *
+	 * @param preallocatedBlocks the number of free blocks, 0 for none, 0 by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setPreallocatedBlocks(int preallocatedBlocks) {
+		if (preallocatedBlocks < 0) {
+			throw new IllegalArgumentException("preallocatedBlocks must be >= 0!");
+		}
+		this.preallocatedBlocks = preallocatedBlocks;
+		return this;
+	}
+
+	public int getActiveBlockCount() {
+		return activeBlockCount;
+	}
+
+	/**
+	 * Sets the number of blocks appended to at the same time, the writer threads being striped over them, so
+	 * the puts of many threads do not contend on the same block.
+	 *
+	 * @param activeBlockCount the number of active blocks, 1 by default, less than the ring block count if any
+	 * @return CacheConfig
+	 */
+	public CacheConfig setActiveBlockCount(int activeBlockCount) {
+		if (activeBlockCount <= 0) {
+			throw new IllegalArgumentException("activeBlockCount must be > 0!");
+		}
+		this.activeBlockCount = activeBlockCount;
+		return this;
+	}
+
     public long getPurgeInterval() {
         return purgeInterval;
     }
@@ -89,6 +149,40 @@ public class CacheConfig {
 		return this;
 	}
 
+	public AllocationMode getAllocationMode() {
+		return allocationMode;
+	}
+
+	/**
+	 * Sets how the values are allocated in the storage blocks.
+	 *
+	 * @param allocationMode the allocation mode, Append by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setAllocationMode(AllocationMode allocationMode) {
+		this.allocationMode = allocationMode;
+		return this;
+	}
+
+	public boolean isExpiryPlacement() {
+		return expiryPlacement;
+	}
+
+	/**
+	 * Sets whether the values are appended to separate storage blocks by expiry class: never expiring, living up
+	 * to a minute, up to an hour, or longer, so the values of a block tend to expire together and the block is
+	 * freed without moving live values out of it. Each active block becomes one per expiry class.
+	 *
+	 * Works neither in ring mode nor with the Slab allocation mode.
+	 *
+	 * @param expiryPlacement true to place the values by expiry class, false by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setExpiryPlacement(boolean expiryPlacement) {
+		this.expiryPlacement = expiryPlacement;
+		return this;
+	}
+
 	/**
 	 * Limiting Offheap memory usage.
 	 * 
@@ -110,9 +204,365 @@ public class CacheConfig {
 		return this.maxOffHeapMemorySize;
 	}
 
+	public IndexMode getIndexMode() {
+		return indexMode;
+	}
+
+	/**
+	 * Sets where the index of the cache lives.
+	 *
+	 * In OffHeap mode the index only keeps a 64 bits fingerprint of each key, see
+	 * {@link com.ctriposs.bigcache.utils.HashUtil#fingerprint(Object)}, so keys sharing a fingerprint
+	 * are taken as the same key. The keys must then be integral numbers all of the same type, strings or
+	 * byte arrays, the others are rejected with an IllegalArgumentException. OffHeapPlusKey mode stores the serialized keys along with the values
+	 * and checks them on lookup, so a fingerprint collision is no more than a miss, see
+	 * {@link com.ctriposs.bigcache.utils.SerializationUtil#toBytes(Object)} for the supported key types.
+	 *
+	 * The merger finds the entries of a dirty block through the keys listed by block, which take about 8 bytes of
+	 * offheap memory per entry with both offheap modes, up to 16 bytes, and no heap.
+	 *
+	 * @param indexMode the index mode
+	 * @return CacheConfig
+	 */
+	public CacheConfig setIndexMode(IndexMode indexMode) {
+		this.indexMode = indexMode;
+		return this;
+	}
+
+	public long getInitialIndexCapacity() {
+		return initialIndexCapacity;
+	}
+
+	/**
+	 * Sets the initial number of slots of the offheap index.
+	 *
+	 * Only takes effect when the {@link IndexMode} is set to OffHeap or OffHeapPlusKey. Each slot takes
+	 * {@link OffHeapIndex#SLOT_SIZE} bytes and the index is doubled when it is 3/4 full, so sizing it for
+	 * the expected number of entries up front avoids resizing.
+	 *
+	 * @param initialIndexCapacity the initial number of slots
+	 * @return CacheConfig
+	 */
+	public CacheConfig setInitialIndexCapacity(long initialIndexCapacity) {
+		if (initialIndexCapacity <= 0) {
+			throw new IllegalArgumentException("initialIndexCapacity must be > 0!");
+		}
+		this.initialIndexCapacity = initialIndexCapacity;
+		return this;
+	}
+
+	public Ticker getTicker() {
+		return ticker;
+	}
+
+	/**
+	 * Sets the source of the time used for access times and expiration, the system time by default.
+	 *
+	 * @param ticker the ticker
+	 * @return CacheConfig
+	 */
+	public CacheConfig setTicker(Ticker ticker) {
+		if (ticker == null) {
+			throw new IllegalArgumentException("ticker must not be null!");
+		}
+		this.ticker = ticker;
+		return this;
+	}
+
+	public long getAccessTimeGranularity() {
+		return accessTimeGranularity;
+	}
+
+	/**
+	 * Sets the granularity of the access times in milliseconds.
+	 *
+	 * A hit doesn't update the access time if it was updated within the granularity, and unless a
+	 * ticker is set, the time is read from a clock refreshed in the background at the granularity.
+	 * So an entry may expire up to twice the granularity earlier than its time to idle. 0 by default,
+	 * which means every hit updates the access time.
+	 *
+	 * @param accessTimeGranularity the granularity in milliseconds
+	 * @return CacheConfig
+	 */
+	public CacheConfig setAccessTimeGranularity(long accessTimeGranularity) {
+		if (accessTimeGranularity < 0) {
+			throw new IllegalArgumentException("accessTimeGranularity must be >= 0!");
+		}
+		this.accessTimeGranularity = accessTimeGranularity;
+		return this;
+	}
+
+	public boolean isStatsEnabled() {
+		return statsEnabled;
+	}
+
+	/**
+	 * Enables or disables the operation counters of {@link BigCache#getStats()}, they read 0 when disabled.
+	 *
+	 * @param statsEnabled enabled or not
+	 * @return CacheConfig
+	 */
+	public CacheConfig setStatsEnabled(boolean statsEnabled) {
+		this.statsEnabled = statsEnabled;
+		return this;
+	}
+
+	public long getMaxStorageSize() {
+		return maxStorageSize;
+	}
+
+	/**
+	 * Limits the storage used by the entries.
+	 *
+	 * A put going beyond the limit evicts the least recently accessed entries of a sample until the cache is
+	 * within the limit again. The space of the evicted entries is reclaimed by merging the dirty blocks, so
+	 * the storage allocated stays around the limit / (1 - dirty ratio threshold).
+	 *
+	 * @param maxStorageSize the max bytes of the entries, 0 for unlimited
+	 * @return CacheConfig
+	 */
+	public CacheConfig setMaxStorageSize(long maxStorageSize) {
+		if (maxStorageSize < 0) {
+			throw new IllegalArgumentException("maxStorageSize must be >= 0!");
+		}
+		this.maxStorageSize = maxStorageSize;
+		return this;
+	}
+
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Limits the number of entries, evicting as {@link #setMaxStorageSize(long)} does.
+	 *
+	 * @param maxEntries the max number of entries, 0 for unlimited
+	 * @return CacheConfig
+	 */
+	public CacheConfig setMaxEntries(long maxEntries) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries must be >= 0!");
+		}
+		this.maxEntries = maxEntries;
+		return this;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets how the entries to evict are picked once the cache is beyond its max storage size or max entries.
+	 *
+	 * @param evictionPolicy the eviction policy, LRU by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		if (evictionPolicy == null) {
+			throw new IllegalArgumentException("evictionPolicy must not be null!");
+		}
+		this.evictionPolicy = evictionPolicy;
+		return this;
+	}
+
+	public int getRingBlockCount() {
+		return ringBlockCount;
+	}
+
+	/**
+	 * Makes the storage a ring of blocks, evicting block by block in FIFO order.
+	 *
+	 * Once the given number of blocks are used, the oldest one is freed to take the new entries instead of
+	 * creating a new block. Its entries are not looked up, they are dropped lazily: reads miss them, and they
+	 * are removed from the index by the purge, so they are still counted by {@link BigCache#count()} until then.
+	 * Entries are never updated in place in this mode.
+	 *
+	 * @param ringBlockCount the max number of used blocks, 0 for unlimited, otherwise at least 2
+	 * @return CacheConfig
+	 */
+	public CacheConfig setRingBlockCount(int ringBlockCount) {
+		if (ringBlockCount != 0 && ringBlockCount < 2) {
+			throw new IllegalArgumentException("ringBlockCount must be 0 or >= 2!");
+		}
+		this.ringBlockCount = ringBlockCount;
+		return this;
+	}
+
+	public boolean isRingReinsert() {
+		return ringReinsert;
+	}
+
+	/**
+	 * Keeps the entries read while their block is in the oldest quarter of the ring, by moving them to the
+	 * active block on the read. Only takes effect with {@link #setRingBlockCount(int)}.
+	 *
+	 * @param ringReinsert reinsert or not, false by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setRingReinsert(boolean ringReinsert) {
+		this.ringReinsert = ringReinsert;
+		return this;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Keeps the entries across restarts. On close, the storage blocks are written to their files along with
+	 * a snapshot of the index, instead of being cleared. A cache created on the same directory loads them back,
+	 * provided the index mode and the capacity per block are the same, otherwise it starts empty.
+	 *
+	 * The keys of the OnHeap index mode are written to the snapshot with Java serialization, so they must be
+	 * Serializable: the others are rejected by put with an IllegalArgumentException. A key holding fields which
+	 * fail to be serialized still fails the snapshot on close, and the entries are lost.
+	 *
+	 * @param persistent persistent or not, false by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		return this;
+	}
+
+	public boolean isCrashRecovery() {
+		return crashRecovery;
+	}
+
+	/**
+	 * Keeps the entries across crashes. Each record starts with a header of 56 bytes describing it, and is never
+	 * updated in place, so a cache created on the same directory without a snapshot scans the block files to
+	 * rebuild the index. The newest record of a key wins, and the removed ones are marked dead in place.
+	 *
+	 * Only the PureFile storage mode and the offheap index modes are supported.
+	 *
+	 * @param crashRecovery crash recovery or not, false by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setCrashRecovery(boolean crashRecovery) {
+		this.crashRecovery = crashRecovery;
+		return this;
+	}
+
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Writes checkpoints of the index in the background with crash recovery, so only the records stored since
+	 * the last checkpoint are scanned after a crash. A checkpoint holds the entries changed since the one
+	 * before, and every few checkpoints all the entries.
+	 *
+	 * @param checkpointInterval the interval between two checkpoints in milliseconds, 0 for none by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setCheckpointInterval(long checkpointInterval) {
+		if (checkpointInterval < 0) {
+			throw new IllegalArgumentException("checkpointInterval must be >= 0!");
+		}
+		this.checkpointInterval = checkpointInterval;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how the writes are forced to the disk with crash recovery, so they survive a crash of the machine
+	 * and not only of the process.
+	 *
+	 * @param durability the durability, None by default
+	 * @return CacheConfig
+	 */
+	public CacheConfig setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * @param syncInterval the interval between two syncs of the storage in milliseconds, in Periodic
+	 *            durability
+	 * @return CacheConfig
+	 */
+	public CacheConfig setSyncInterval(long syncInterval) {
+		if (syncInterval <= 0) {
+			throw new IllegalArgumentException("syncInterval must be > 0!");
+		}
+		this.syncInterval = syncInterval;
+		return this;
+	}
+
+	public enum Durability {
+		/** Leaves the writes to the OS. */
+		None,
+		/** Forces the writes every sync interval in the background, the writes of the last one may be lost. */
+		Periodic,
+		/**
+		 * Forces the writes as soon as writers wait for the sync after their writes, and the writes done while a
+		 * sync is running are forced together by the next one, so none acknowledged is lost.
+		 */
+		GroupCommit,
+	}
+
+	public enum EvictionPolicy {
+		/** Evicts the least recently accessed entry of a sample. */
+		LRU,
+		/**
+		 * Admits the new entries into a small window first. An entry leaving the window replaces the least
+		 * frequently accessed entry of a sample only if it was accessed more often, so a scan of keys
+		 * accessed once doesn't flush the frequently accessed ones.
+		 */
+		WTinyLFU,
+		/**
+		 * Sweeps the entries with a clock hand, evicting the first one not referenced since the last sweep
+		 * and clearing the reference bits of the others. A daemon thread sweeps ahead of the evictions, a
+		 * bounded number of entries at a time, so the writers seldom sweep themselves. The bits are kept
+		 * offheap, one per hash bucket of the keys, 8 buckets per slot of the initial index capacity at
+		 * first, then at least 8 per entry as the cache grows.
+		 */
+		CLOCK,
+		/**
+		 * Greedy-Dual-Size-Frequency, evicts the entry of a sample with the lowest frequency times cost per
+		 * byte, so a few large entries accessed now and then don't push out many small hot ones. The cost is
+		 * the hint given on put, 1 by default.
+		 */
+		GDSF,
+	}
+
+	public enum IndexMode {
+		OnHeap,
+		OffHeap,
+		OffHeapPlusKey,
+	}
+
 	public enum StorageMode {
 		PureFile,
 		MemoryMappedPlusFile,
 		OffHeapPlusFile,
 	}
+
+	public enum AllocationMode {
+		/**
+		 * Appends the values to the blocks, the space of the values removed or moved is dirty until the merger
+		 * moves the rest of the block away.
+		 */
+		Append,
+		/**
+		 * Stores the values in slots of size classes, and reuses the slot of a value removed or moved for the
+		 * next value of its class, so no merge is needed. Up to a fifth of the space may be lost to the slack of
+		 * the slots. Works neither in ring mode nor in persistent mode nor with crash recovery.
+		 */
+		Slab,
+		/**
+		 * Appends the values, but stores them in the holes left by the values removed first, so the blocks get
+		 * dirty much slower and fewer values are moved by the merger. Works neither in ring mode nor with crash
+		 * recovery.
+		 */
+		HoleReuse,
+	}
 }
@@ -1,48 +1,90 @@
 package com.ctriposs.bigcache;
 
-import com.ctriposs.bigcache.storage.Pointer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Wrapper class in BigCache, which contains info on access time, ttl and storage.
  *
+ * The info is packed into two longs, so there is only one small object per entry:
+ * 1. the storage location, see {@link com.ctriposs.bigcache.storage.StorageManager#toLocation}.
+ * 2. the time to idle in the high 23 bits and the access time in the low 41 bits.
+ * Along with the generation of the storage block, an int which fits in the padding of the object.
+ * The entries put with a cost hint other than the default one are wrapped by {@link WithCost}, and the entries
+ * put with a time to live by {@link WithDeadline}, so the others don't pay for the fields.
+ *
+ * The access time is kept modulo 2^41 milliseconds(about 69 years), which is fine as only the time
+ * elapsed since the last access matters. The time to idle is kept as a 21 bits amount of milliseconds,
+ * seconds, minutes or hours, so a time to idle longer than 35 minutes is rounded up to the second,
+ * longer than 24 days to the minute and so on. The time to live is kept as the deadline it gives, the time the
+ * entry expires after however recently accessed, as it never moves until the entry is put again.
+ *
  * The {@link BigCache} will protect the r/w operation on this object by two means:
  * 1. use a striped write lock in its write operations.
- * 2. synchronize the CacheValueWrapper object in the read operations of Cache, as there may be
- * multiple threads working on this simultaneously.
+ * 2. validate the reads against the version of the striped lock, as the read operations of Cache go
+ * without locks. The access time is updated by readers simultaneously, so it is set by CAS.
  */
 public class CacheValueWrapper {
+
+    private static final int ACCESS_TIME_BITS = 41;
+    private static final long ACCESS_TIME_MASK = (1L << ACCESS_TIME_BITS) - 1;
+
+    private static final int TIME_TO_IDLE_AMOUNT_BITS = 21;
+    private static final long TIME_TO_IDLE_AMOUNT_MASK = (1L << TIME_TO_IDLE_AMOUNT_BITS) - 1;
+
+    /** The units of the time to idle in milliseconds. */
+    private static final long[] TIME_TO_IDLE_UNITS = { 1L, 1000L, 60 * 1000L, 60 * 60 * 1000L };
+
+    private static final AtomicLongFieldUpdater<CacheValueWrapper> META_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(CacheValueWrapper.class, "meta");
+
     /**
-     * The backend storage info of this entry.
-     *
+     * The backend storage location of this entry.
      */
-    protected Pointer pointer;
+    protected volatile long location;
 
     /**
-     * The access time in milliseconds.
-     *
-     * Read/write of this field should be guarded by locks.
+     * The packed time to idle and access time, 0 means for not initialized.
      */
-    protected long lastAccessTime = -1; // -1 means for not initialized.
+    protected volatile long meta;
 
-    /** Time to idle in milliseconds */
-    protected long timeToIdle = -1L;
+    /**
+     * The generation of the storage block when the value was stored.
+     */
+    protected volatile int generation;
+
+    public CacheValueWrapper(long location, long lastAccessTime, long timeToIdle) {
+        this.location = location;
+        setTimeToIdle(timeToIdle);
+        if (lastAccessTime > 0) {
+            setLastAccessTime(lastAccessTime);
+        }
+    }
+
+    public CacheValueWrapper() {
+    }
 
     /**
      * Gets the last access time.
      *
-     * @return the access time
+     * @param now the current time in milliseconds, which the packed access time is unwrapped against
+     * @return the access time, or -1 if not initialized
      */
-    public long getLastAccessTime() {
-        return lastAccessTime;
-    }
-
-    public CacheValueWrapper(Pointer pointer, long lastAccessTime, long timeToIdle) {
-        this.pointer = pointer;
-        this.lastAccessTime = lastAccessTime;
-        this.timeToIdle = timeToIdle;
+    public long getLastAccessTime(long now) {
+        long accessTime = meta & ACCESS_TIME_MASK;
+        if (accessTime == 0) return -1;
+        return now - ((now - accessTime) & ACCESS_TIME_MASK);
     }
 
-    public CacheValueWrapper() {
+    /**
+     * Gets the time elapsed since the last access.
+     *
+     * @param now the current time in milliseconds
+     * @return the idle time in milliseconds, 0 if not initialized
+     */
+    public long getIdleTime(long now) {
+        long lastAccessTime = meta & ACCESS_TIME_MASK;
+        if (lastAccessTime == 0) return 0;
+        return elapsed(lastAccessTime, now);
     }
 
     /**
@@ -54,31 +96,50 @@ public class CacheValueWrapper {
      * is wrong
      *
      * @param accessTime the new access time
-     * @return true if we has modified the time successfully.
      */
     public void setLastAccessTime(long accessTime) {
-        if (lastAccessTime < 0) {
-            // not initialized yet.
-            lastAccessTime = accessTime;
-            return;
-        }
+        long packed = accessTime & ACCESS_TIME_MASK;
+        if (packed == 0) packed = 1; // 0 is taken by not initialized, be 1ms late instead
 
-        // don't set it to an old value
-        if (lastAccessTime >= accessTime) return;
+        while (true) {
+            long meta = this.meta;
+            long lastAccessTime = meta & ACCESS_TIME_MASK;
+            if (lastAccessTime != 0) {
+                // don't set it to an old value
+                if (elapsed(lastAccessTime, accessTime) <= 0) return;
 
-        // can't update the access value if it has already expired.
-        if (isExpired()) return;
+                // can't update the access value if it has already expired.
+                if (isExpired(meta, accessTime)) return;
+            }
+            if (META_UPDATER.compareAndSet(this, meta, (meta & ~ACCESS_TIME_MASK) | packed)) return;
+        }
+    }
 
-        lastAccessTime = accessTime;
+    /**
+     * Updates the last access time on access, skipping the write if it was updated within the granularity.
+     *
+     * @param accessTime the new access time
+     * @param granularity the granularity in milliseconds
+     */
+    public void touch(long accessTime, long granularity) {
+        long lastAccessTime = meta & ACCESS_TIME_MASK;
+        if (lastAccessTime != 0 && elapsed(lastAccessTime, accessTime) < granularity) return;
+        setLastAccessTime(accessTime);
     }
 
     /**
      * Gets the time to idle in milliseconds
      *
-     * @return time to idle
+     * @return time to idle, or -1 if never expires
      */
     public long getTimeToIdle() {
-        return timeToIdle;
+        return getTimeToIdle(meta);
+    }
+
+    private static long getTimeToIdle(long meta) {
+        long packed = meta >>> ACCESS_TIME_BITS;
+        if (packed == 0) return -1;
+        return (packed & TIME_TO_IDLE_AMOUNT_MASK) * TIME_TO_IDLE_UNITS[(int) (packed >>> TIME_TO_IDLE_AMOUNT_BITS)];
     }
 
     /**
@@ -87,25 +148,173 @@ public class CacheValueWrapper {
      * @param timeToIdle the new time to idle
      */
     public void setTimeToIdle(long timeToIdle) {
-        this.timeToIdle = timeToIdle;
+        long packed = 0; // never expire
+        if (timeToIdle > 0) {
+            int unit = 0;
+            long amount = timeToIdle;
+            while (amount > TIME_TO_IDLE_AMOUNT_MASK && unit < TIME_TO_IDLE_UNITS.length - 1) {
+                unit++;
+                long unitMillis = TIME_TO_IDLE_UNITS[unit];
+                amount = (timeToIdle + unitMillis - 1) / unitMillis;
+            }
+            amount = Math.min(amount, TIME_TO_IDLE_AMOUNT_MASK);
+            packed = ((long) unit << TIME_TO_IDLE_AMOUNT_BITS) | amount;
+        }
+        while (true) {
+            long meta = this.meta;
+            if (META_UPDATER.compareAndSet(this, meta, (packed << ACCESS_TIME_BITS) | (meta & ACCESS_TIME_MASK))) return;
+        }
+    }
+
+    /**
+     * Gets the storage location.
+     *
+     * @return the location
+     */
+    public long getLocation() {
+        return location;
+    }
+
+    /**
+     * Sets the storage location.
+     *
+     * @param location the new location
+     */
+    public void setLocation(long location) {
+        this.location = location;
     }
 
-    public Pointer getPointer() {
-        return pointer;
+    /**
+     * Gets the generation of the storage block when the value was stored.
+     *
+     * @return the generation
+     */
+    public int getGeneration() {
+        return generation;
     }
 
-    public void setPointer(Pointer pointer) {
-        this.pointer = pointer;
+    public void setGeneration(int generation) {
+        this.generation = generation;
     }
 
     /**
-     * Is the cached item expired
+     * Gets the cost hint of the entry, weighed by the GDSF eviction.
      *
+     * @return the cost
+     */
+    public int getCost() {
+        return BigCache.DEFAULT_COST;
+    }
+
+    /**
+     * Gets the time the entry expires after however recently accessed, set by its time to live.
+     *
+     * @return the deadline in milliseconds, or -1 if no time to live
+     */
+    public long getDeadline() {
+        return -1;
+    }
+
+    /**
+     * Creates a wrapper for an entry of the given cost hint.
+     *
+     * @param cost the cost
+     * @return the wrapper
+     */
+    public static CacheValueWrapper withCost(int cost) {
+        return cost == BigCache.DEFAULT_COST ? new CacheValueWrapper() : new WithCost(cost);
+    }
+
+    /**
+     * Creates a wrapper for an entry of the given cost hint and deadline.
+     *
+     * @param cost the cost
+     * @param deadline the time the entry expires after however recently accessed, or -1 if no time to live
+     * @return the wrapper
+     */
+    public static CacheValueWrapper withDeadline(int cost, long deadline) {
+        return deadline < 0 ? withCost(cost) : new WithDeadline(cost, deadline);
+    }
+
+    /**
+     * Is the cached item expired at the given time.
+     *
+     * @param now the current time in milliseconds
      * @return expired or not
      */
-    public boolean isExpired() {
-        if (this.timeToIdle <= 0) return false; // never expire
-        if (this.lastAccessTime < 0) return false; // not initialized
-        return System.currentTimeMillis() - this.lastAccessTime > this.timeToIdle;
+    public boolean isExpired(long now) {
+        long deadline = getDeadline();
+        return deadline >= 0 && now > deadline || isExpired(meta, now);
+    }
+
+    /**
+     * Gets the time the cached item expires after, as of the last access, or its deadline if earlier.
+     *
+     * @param now the current time in milliseconds
+     * @return the expiration time in milliseconds, or -1 if never expires
+     */
+    public long getExpirationTime(long now) {
+        long deadline = getDeadline();
+        long meta = this.meta;
+        long timeToIdle = getTimeToIdle(meta);
+        long lastAccessTime = meta & ACCESS_TIME_MASK;
+        if (timeToIdle <= 0 || lastAccessTime == 0) return deadline; // no time to idle, or not initialized
+        long expirationTime = now - elapsed(lastAccessTime, now) + timeToIdle;
+        return deadline >= 0 ? Math.min(deadline, expirationTime) : expirationTime;
+    }
+
+    private static boolean isExpired(long meta, long now) {
+        long timeToIdle = getTimeToIdle(meta);
+        if (timeToIdle <= 0) return false; // never expire
+        long lastAccessTime = meta & ACCESS_TIME_MASK;
+        if (lastAccessTime == 0) return false; // not initialized
+        return elapsed(lastAccessTime, now) > timeToIdle;
+    }
+
+    /**
+     * Computes the milliseconds elapsed from a packed access time to the given time.
+     *
+     * @param packedTime the packed access time
+     * @param now the time
+     * @return the elapsed milliseconds, negative if the time is earlier
+     */
+    private static long elapsed(long packedTime, long now) {
+        // sign extend the difference of 41 bits
+        return ((now - packedTime) << (64 - ACCESS_TIME_BITS)) >> (64 - ACCESS_TIME_BITS);
+    }
+
+    /**
+     * A wrapper keeping the cost hint of its entry.
+     */
+    static class WithCost extends CacheValueWrapper {
+
+        private final int cost;
+
+        WithCost(int cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public int getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * A wrapper keeping the deadline set by the time to live of its entry, along with its cost hint.
+     */
+    static class WithDeadline extends WithCost {
+
+        private final long deadline;
+
+        WithDeadline(int cost, long deadline) {
+            super(cost);
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
     }
 }
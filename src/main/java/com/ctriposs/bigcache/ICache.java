@@ -29,6 +29,19 @@ public interface ICache<K> extends Closeable {
 	 */
 	void put(K key, byte[] value, long tti)  throws IOException;
 
+	/**
+	 * Puts the value with specified key, time to live and time to idle in milliseconds. The value expires once
+	 * its time to live has elapsed since the put, however often it is read, or once it has not been read for its
+	 * time to idle, whichever comes first.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to live in milliseconds, 0 or less for none
+	 * @param tti the time to idle in milliseconds, 0 or less for none
+	 * @throws IOException
+	 */
+	void putWithTimeToLive(K key, byte[] value, long ttl, long tti) throws IOException;
+
 	/**
 	 * Gets the value with the specified key.
 	 *
@@ -0,0 +1,79 @@
+package com.ctriposs.bigcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The primitive variant of {@link ICache} keyed by long, so keys are never boxed.
+ */
+public interface ILongCache extends Closeable {
+
+	/**
+	 * Puts the value with the specified key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @throws IOException
+	 */
+	void put(long key, byte[] value) throws IOException;
+
+	/**
+	 * Puts the value with specified key and time to idle in milliseconds.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param tti the time to idle value in milliseconds
+	 * @throws IOException
+	 */
+	void put(long key, byte[] value, long tti) throws IOException;
+
+	/**
+	 * Puts the value with specified key, time to live and time to idle in milliseconds, see
+	 * {@link ICache#putWithTimeToLive(Object, byte[], long, long)}.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to live in milliseconds, 0 or less for none
+	 * @param tti the time to idle in milliseconds, 0 or less for none
+	 * @throws IOException
+	 */
+	void putWithTimeToLive(long key, byte[] value, long ttl, long tti) throws IOException;
+
+	/**
+	 * Gets the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the value
+	 * @throws IOException
+	 */
+	byte[] get(long key) throws IOException;
+
+	/**
+	 * Delete the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the value
+	 * @throws IOException
+	 */
+	byte[] delete(long key) throws IOException;
+
+	/**
+	 * Check if Cache contains the specified key.
+	 *
+	 * @param key the key
+	 * @return true, if successful
+	 */
+	boolean contains(long key);
+
+	/**
+	 * Clear the cache.
+	 */
+	void clear();
+
+	/**
+	 * Calculates the Hit ratio.
+	 *
+	 * @return the double
+	 */
+	double hitRatio();
+}
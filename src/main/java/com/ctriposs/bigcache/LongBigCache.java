@@ -0,0 +1,109 @@
+package com.ctriposs.bigcache;
+
+import java.io.IOException;
+
+import com.ctriposs.bigcache.CacheConfig.IndexMode;
+
+/**
+ * A BigCache keyed by primitive long.
+ *
+ * The keys go straight into the offheap index whatever the configured index mode is, so there is no
+ * boxing, no key object kept on the heap and, as a long is its own fingerprint, no collision between keys.
+ */
+public class LongBigCache implements ILongCache {
+
+	private final BigCache<Long> cache;
+
+	public LongBigCache(String dir) throws IOException {
+		this(dir, new CacheConfig());
+	}
+
+	public LongBigCache(String dir, CacheConfig config) throws IOException {
+		this.cache = new BigCache<Long>(dir, config, IndexMode.OffHeap);
+	}
+
+	@Override
+	public void put(long key, byte[] value) throws IOException {
+		this.put(key, value, -1); // -1 means no time to idle(never expires)
+	}
+
+	@Override
+	public void put(long key, byte[] value, long tti) throws IOException {
+		this.put(key, value, tti, BigCache.DEFAULT_COST);
+	}
+
+	/**
+	 * Puts the value with specified key, time to idle in milliseconds and cost hint.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param tti the time to idle value in milliseconds
+	 * @param cost the cost hint, weighed by the GDSF eviction only
+	 * @throws IOException
+	 */
+	public void put(long key, byte[] value, long tti, int cost) throws IOException {
+		cache.putByFingerprint(key, null, value, -1, tti, cost);
+	}
+
+	@Override
+	public void putWithTimeToLive(long key, byte[] value, long ttl, long tti) throws IOException {
+		this.putWithTimeToLive(key, value, ttl, tti, BigCache.DEFAULT_COST);
+	}
+
+	/**
+	 * Puts the value with specified key, time to live and time to idle in milliseconds and cost hint.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to live in milliseconds, 0 or less for none
+	 * @param tti the time to idle in milliseconds, 0 or less for none
+	 * @param cost the cost hint, weighed by the GDSF eviction only
+	 * @throws IOException
+	 */
+	public void putWithTimeToLive(long key, byte[] value, long ttl, long tti, int cost) throws IOException {
+		cache.putByFingerprint(key, null, value, ttl, tti, cost);
+	}
+
+	@Override
+	public byte[] get(long key) throws IOException {
+		return cache.getByFingerprint(key, null);
+	}
+
+	@Override
+	public byte[] delete(long key) throws IOException {
+		return cache.deleteByFingerprint(key, null);
+	}
+
+	@Override
+	public boolean contains(long key) {
+		return cache.containsFingerprint(key, null);
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public double hitRatio() {
+		return cache.hitRatio();
+	}
+
+	public long count() {
+		return cache.count();
+	}
+
+	/**
+	 * Get the latest stats of the cache.
+	 *
+	 * @return all stats.
+	 */
+	public BigCacheStats getStats() {
+		return cache.getStats();
+	}
+
+	@Override
+	public void close() throws IOException {
+		cache.close();
+	}
+}
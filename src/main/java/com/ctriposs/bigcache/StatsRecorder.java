@@ -0,0 +1,129 @@
+package com.ctriposs.bigcache;
+
+import com.ctriposs.bigcache.utils.StripedCounter;
+
+/**
+ * Records the operations of a cache for {@link BigCacheStats}.
+ *
+ * The counts are kept in {@link StripedCounter}s, so recording doesn't contend among threads and the
+ * counters are only summed up when read.
+ */
+public class StatsRecorder {
+
+	/** The recorder used when the stats are disabled, which records nothing and reads 0. */
+	public static final StatsRecorder DISABLED = new StatsRecorder() {
+		@Override
+		public void recordHit() {
+		}
+
+		@Override
+		public void recordMiss() {
+		}
+
+		@Override
+		public void recordGet() {
+		}
+
+		@Override
+		public void recordPut() {
+		}
+
+		@Override
+		public void recordDelete() {
+		}
+
+		@Override
+		public void recordPurge() {
+		}
+
+		@Override
+		public void recordMove() {
+		}
+
+		@Override
+		public void recordEvict() {
+		}
+	};
+
+	private final StripedCounter hitCounter = new StripedCounter();
+	private final StripedCounter missCounter = new StripedCounter();
+	private final StripedCounter getCounter = new StripedCounter();
+	private final StripedCounter putCounter = new StripedCounter();
+	private final StripedCounter deleteCounter = new StripedCounter();
+	private final StripedCounter purgeCounter = new StripedCounter();
+	private final StripedCounter moveCounter = new StripedCounter();
+	private final StripedCounter evictCounter = new StripedCounter();
+
+	public void recordHit() {
+		hitCounter.increment();
+	}
+
+	public void recordMiss() {
+		missCounter.increment();
+	}
+
+	public void recordGet() {
+		getCounter.increment();
+	}
+
+	public void recordPut() {
+		putCounter.increment();
+	}
+
+	public void recordDelete() {
+		deleteCounter.increment();
+	}
+
+	/**
+	 * Records an entry purged as expired.
+	 */
+	public void recordPurge() {
+		purgeCounter.increment();
+	}
+
+	/**
+	 * Records an entry moved out of a dirty block.
+	 */
+	public void recordMove() {
+		moveCounter.increment();
+	}
+
+	/**
+	 * Records an entry evicted for the size limits.
+	 */
+	public void recordEvict() {
+		evictCounter.increment();
+	}
+
+	public long getHitCount() {
+		return hitCounter.sum();
+	}
+
+	public long getMissCount() {
+		return missCounter.sum();
+	}
+
+	public long getGetCount() {
+		return getCounter.sum();
+	}
+
+	public long getPutCount() {
+		return putCounter.sum();
+	}
+
+	public long getDeleteCount() {
+		return deleteCounter.sum();
+	}
+
+	public long getPurgeCount() {
+		return purgeCounter.sum();
+	}
+
+	public long getMoveCount() {
+		return moveCounter.sum();
+	}
+
+	public long getEvictCount() {
+		return evictCounter.sum();
+	}
+}
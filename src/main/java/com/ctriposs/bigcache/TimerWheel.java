@@ -0,0 +1,251 @@
+package com.ctriposs.bigcache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A hierarchical timing wheel of the keys by expiration time, so the expired entries are found without scanning
+ * all the keys of the cache.
+ *
+ * The wheel has a few levels of buckets, the buckets of a level spanning about a second, a minute, an hour, a
+ * day and the rest. A key is put in the bucket of the lowest level spanning its expiration time, and is handed
+ * back once the wheel goes past the bucket: the entry of the key is purged if expired, else the key is put in the
+ * bucket of its new expiration time, which is one of a lower level as the time gets closer. The entries are not
+ * rescheduled on access, only once their bucket is due, so the reads don't touch the wheel.
+ *
+ * There is one wheel per lock stripe, and a wheel is only used with the write lock of its stripe held, so the
+ * wheels need no lock of their own. The keys are never taken out of the wheel before due: a key deleted, or put
+ * again, is left and dropped once due, and a key listed twice in a bucket is handed back once.
+ *
+ * The keys are kept as fingerprints with the offheap index, and as references with the internal map.
+ */
+class TimerWheel {
+
+	/** The number of buckets of the levels. */
+	private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+	/** The bits of the milliseconds spanned by a bucket of the levels: about 1s, 1m, 1h, 18h and 3d. */
+	private static final int[] SHIFTS = { 10, 16, 22, 26, 28 };
+
+	private static final int INITIAL_BUCKET_SIZE = 16;
+
+	/**
+	 * Expires the entries handed back by the wheel.
+	 */
+	interface Expiry {
+
+		/**
+		 * Purges the entry of a key fingerprint if expired.
+		 *
+		 * @param fingerprint the key fingerprint in the offheap index
+		 * @param now the current time in milliseconds
+		 * @return the new expiration time of the entry, or -1 if purged, gone or never expiring
+		 */
+		long expire(long fingerprint, long now) throws IOException;
+
+		/**
+		 * Purges the entry of a key if expired.
+		 *
+		 * @param key the key in the internal map
+		 * @param now the current time in milliseconds
+		 * @return the new expiration time of the entry, or -1 if purged, gone or never expiring
+		 */
+		long expire(Object key, long now) throws IOException;
+	}
+
+	/** True for the fingerprints of the offheap index, false for the keys of the internal map. */
+	private final boolean fingerprints;
+
+	private final Expiry expiry;
+
+	private final Wheel[] wheels;
+
+	/**
+	 * @param stripeCount the number of lock stripes
+	 * @param fingerprints true to keep the fingerprints of the offheap index, false the keys of the internal map
+	 * @param expiry expires the entries
+	 * @param now the current time in milliseconds
+	 */
+	TimerWheel(int stripeCount, boolean fingerprints, Expiry expiry, long now) {
+		this.fingerprints = fingerprints;
+		this.expiry = expiry;
+		this.wheels = new Wheel[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			wheels[i] = new Wheel(now);
+		}
+	}
+
+	/**
+	 * Schedules the key fingerprint of an entry, with the write lock of its stripe held.
+	 *
+	 * @param stripe the lock stripe of the key
+	 * @param fingerprint the key fingerprint
+	 * @param time the expiration time of the entry
+	 */
+	void schedule(int stripe, long fingerprint, long time) {
+		Bucket bucket = wheels[stripe].bucketOf(time, fingerprints);
+		if (bucket.count == bucket.fingerprints.length) {
+			bucket.fingerprints = Arrays.copyOf(bucket.fingerprints, bucket.count * 2);
+		}
+		bucket.fingerprints[bucket.count++] = fingerprint;
+	}
+
+	/**
+	 * Schedules the key of an entry, with the write lock of its stripe held.
+	 *
+	 * @param stripe the lock stripe of the key
+	 * @param key the key
+	 * @param time the expiration time of the entry
+	 */
+	void schedule(int stripe, Object key, long time) {
+		Bucket bucket = wheels[stripe].bucketOf(time, fingerprints);
+		if (bucket.count == bucket.keys.length) {
+			bucket.keys = Arrays.copyOf(bucket.keys, bucket.count * 2);
+		}
+		bucket.keys[bucket.count++] = key;
+	}
+
+	/**
+	 * Turns the wheel of a stripe to the current time, with the write lock of the stripe held, handing back the
+	 * keys of the buckets gone past.
+	 *
+	 * @param stripe the lock stripe
+	 * @param now the current time in milliseconds
+	 * @throws IOException if an entry fails to be purged
+	 */
+	void advance(int stripe, long now) throws IOException {
+		Wheel wheel = wheels[stripe];
+		long previous = wheel.time;
+		if (now <= previous) {
+			return;
+		}
+		wheel.time = now;
+		for (int i = 0; i < SHIFTS.length; i++) {
+			long previousTicks = previous >>> SHIFTS[i];
+			long delta = (now >>> SHIFTS[i]) - previousTicks;
+			if (delta <= 0) {
+				break; // the levels above are not due either
+			}
+			Bucket[] buckets = wheel.buckets[i];
+			int mask = buckets.length - 1;
+			int steps = (int) Math.min(1 + delta, buckets.length);
+			int start = (int) (previousTicks & mask);
+			for (int j = start; j < start + steps; j++) {
+				Bucket bucket = buckets[j & mask];
+				if (bucket != null) {
+					buckets[j & mask] = null; // the keys scheduled again go to new buckets
+					expire(stripe, bucket, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the keys scheduled in the wheel of a stripe, including the ones gone.
+	 *
+	 * @param stripe the lock stripe
+	 * @return the count
+	 */
+	int count(int stripe) {
+		int count = 0;
+		for (Bucket[] buckets : wheels[stripe].buckets) {
+			for (Bucket bucket : buckets) {
+				if (bucket != null) {
+					count += bucket.count;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void expire(int stripe, Bucket bucket, long now) throws IOException {
+		if (fingerprints) {
+			long[] keys = bucket.fingerprints;
+			Arrays.sort(keys, 0, bucket.count);
+			for (int i = 0; i < bucket.count; i++) {
+				if (i > 0 && keys[i] == keys[i - 1]) {
+					continue;
+				}
+				long time = expiry.expire(keys[i], now);
+				if (time >= 0) {
+					schedule(stripe, keys[i], time);
+				}
+			}
+		} else {
+			Set<Object> expired = new HashSet<Object>();
+			for (int i = 0; i < bucket.count; i++) {
+				Object key = bucket.keys[i];
+				if (!expired.add(key)) {
+					continue;
+				}
+				long time = expiry.expire(key, now);
+				if (time >= 0) {
+					schedule(stripe, key, time);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The buckets of a stripe.
+	 */
+	private static class Wheel {
+
+		private final Bucket[][] buckets = new Bucket[BUCKETS.length][];
+
+		/** The time the wheel is turned to. */
+		private long time;
+
+		Wheel(long time) {
+			this.time = time;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				buckets[i] = new Bucket[BUCKETS[i]];
+			}
+		}
+
+		/**
+		 * Finds the bucket of an expiration time, the one of the lowest level spanning the time.
+		 */
+		Bucket bucketOf(long expirationTime, boolean fingerprints) {
+			// an entry already expired is handed back on the next turn
+			long time = Math.max(expirationTime, this.time);
+			long duration = time - this.time;
+			int level = BUCKETS.length - 1;
+			for (int i = 0; i < BUCKETS.length - 1; i++) {
+				if (duration < 1L << SHIFTS[i + 1]) {
+					level = i;
+					break;
+				}
+			}
+			Bucket[] buckets = this.buckets[level];
+			int index = (int) ((time >>> SHIFTS[level]) & (buckets.length - 1));
+			Bucket bucket = buckets[index];
+			if (bucket == null) {
+				bucket = buckets[index] = new Bucket(fingerprints);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * The keys of a bucket, only one of the arrays is used.
+	 */
+	private static class Bucket {
+
+		private int count;
+
+		private long[] fingerprints;
+
+		private Object[] keys;
+
+		Bucket(boolean fingerprints) {
+			if (fingerprints) {
+				this.fingerprints = new long[INITIAL_BUCKET_SIZE];
+			} else {
+				this.keys = new Object[INITIAL_BUCKET_SIZE];
+			}
+		}
+	}
+}
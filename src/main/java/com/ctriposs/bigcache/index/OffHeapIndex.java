@@ -0,0 +1,426 @@
+package com.ctriposs.bigcache.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+import com.ctriposs.bigcache.utils.HashUtil;
+import com.ctriposs.bigcache.utils.UnsafeUtil;
+
+/**
+ * An open addressing hash table living in offheap memory, which maps a 64 bits key to the storage info,
+ * access time, time to idle and deadline of a cache entry.
+ *
+ * Every entry takes a fixed size slot, so the memory used by the index only depends on its capacity
+ * and nothing is left on the java heap.
+ *
+ * The index doesn't lock by itself, the callers should guard it as follows:
+ * 1. a key is read under a read lock and written under a write lock which is derived from the key.
+ * 2. {@link #resize()}, {@link #clear()} and {@link #close()} are called with all the write locks held.
+ * 3. scanning the slots needs at least one lock held, so the table can't be resized or freed meanwhile.
+ * Slots are claimed with CAS, so keys guarded by different locks can be added concurrently.
+ */
+public class OffHeapIndex implements Closeable {
+
+	/** The slot returned when a key is absent. */
+	public static final long NOT_FOUND = -1L;
+
+	/** The default initial number of slots. */
+	public static final long DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+	/** The ratio of occupied slots(including the deleted ones) which triggers a resize. */
+	public static final float LOAD_FACTOR = 0.75f;
+
+	private static final Unsafe UNSAFE = UnsafeUtil.getUnsafe();
+
+	/* slot layout */
+	private static final int KEY_OFFSET = 0;
+	private static final int STATE_OFFSET = 8;
+	private static final int BLOCK_INDEX_OFFSET = 12;
+	private static final int POSITION_OFFSET = 16;
+	private static final int LENGTH_OFFSET = 20;
+	private static final int ACCESS_TIME_OFFSET = 24;
+	private static final int TIME_TO_IDLE_OFFSET = 32;
+	private static final int GENERATION_OFFSET = 40;
+	private static final int COST_OFFSET = 44;
+	private static final int DEADLINE_OFFSET = 48;
+
+	/** The size of a slot in bytes. */
+	public static final int SLOT_SIZE = 56;
+
+	/* slot states */
+	private static final int EMPTY = 0;
+	private static final int BUSY = 1; // being claimed by a writer
+	private static final int FULL = 2;
+	private static final int DELETED = 3;
+
+	/** The base address of the slots. */
+	private volatile long address;
+
+	/** The number of slots, always a power of 2. */
+	private volatile long capacity;
+
+	/** The number of keys in the index. */
+	private final AtomicLong size = new AtomicLong();
+
+	/** The number of deleted slots which are not reused yet. */
+	private final AtomicLong tombstones = new AtomicLong();
+
+	private final AtomicBoolean disposed = new AtomicBoolean(false);
+
+	/**
+	 * Instantiates a new offheap index.
+	 *
+	 * @param initialCapacity the initial number of slots, rounded up to a power of 2
+	 */
+	public OffHeapIndex(long initialCapacity) {
+		if (initialCapacity <= 0) {
+			throw new IllegalArgumentException("initialCapacity must be > 0!");
+		}
+		long capacity = 1;
+		while (capacity < initialCapacity) {
+			capacity <<= 1;
+		}
+		this.capacity = capacity;
+		this.address = allocate(capacity);
+	}
+
+	private static long allocate(long capacity) {
+		long bytes = capacity * SLOT_SIZE;
+		long address = UNSAFE.allocateMemory(bytes);
+		UNSAFE.setMemory(address, bytes, (byte) 0);
+		return address;
+	}
+
+	private static long home(long key, long mask) {
+		return HashUtil.mix(key) & mask;
+	}
+
+	private long slotAddress(long slot) {
+		return address + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Finds the slot of the key.
+	 *
+	 * @param key the key
+	 * @return the slot, or {@link #NOT_FOUND} if the key is absent
+	 */
+	public long find(long key) {
+		long base = address;
+		long mask = capacity - 1;
+		long slot = home(key, mask);
+		for (long i = 0; i <= mask; i++) {
+			long slotAddress = base + slot * SLOT_SIZE;
+			int state = UNSAFE.getIntVolatile(null, slotAddress + STATE_OFFSET);
+			if (state == EMPTY) {
+				return NOT_FOUND;
+			}
+			if (state == FULL && UNSAFE.getLong(slotAddress + KEY_OFFSET) == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Claims a new slot for the key, the caller should make sure the key is absent.
+	 *
+	 * Everything in the slot but the key is zero.
+	 *
+	 * @param key the key
+	 * @return the slot, or {@link #NOT_FOUND} if the index is full and should be resized first
+	 */
+	public long insert(long key) {
+		long base = address;
+		long mask = capacity - 1;
+		long slot = home(key, mask);
+		for (long i = 0; i <= mask; i++) {
+			long slotAddress = base + slot * SLOT_SIZE;
+			int state = UNSAFE.getIntVolatile(null, slotAddress + STATE_OFFSET);
+			if ((state == EMPTY || state == DELETED)
+					&& UNSAFE.compareAndSwapInt(null, slotAddress + STATE_OFFSET, state, BUSY)) {
+				if (state == DELETED) {
+					tombstones.decrementAndGet();
+				}
+				// keep the state untouched, other keys may be probing through this slot
+				UNSAFE.setMemory(slotAddress + BLOCK_INDEX_OFFSET, SLOT_SIZE - BLOCK_INDEX_OFFSET, (byte) 0);
+				UNSAFE.putLong(slotAddress + KEY_OFFSET, key);
+				UNSAFE.putIntVolatile(null, slotAddress + STATE_OFFSET, FULL);
+				size.incrementAndGet();
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Removes the key in the slot.
+	 *
+	 * @param slot the slot
+	 */
+	public void remove(long slot) {
+		UNSAFE.putIntVolatile(null, slotAddress(slot) + STATE_OFFSET, DELETED);
+		size.decrementAndGet();
+		tombstones.incrementAndGet();
+	}
+
+	/**
+	 * Finds the first occupied slot from the given one.
+	 *
+	 * @param slot the slot to start with
+	 * @return the occupied slot, or {@link #NOT_FOUND} if there is no more
+	 */
+	public long nextSlot(long slot) {
+		long base = address;
+		long capacity = this.capacity;
+		for (; slot >= 0 && slot < capacity; slot++) {
+			if (UNSAFE.getIntVolatile(null, base + slot * SLOT_SIZE + STATE_OFFSET) == FULL) {
+				return slot;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	public long getKey(long slot) {
+		return UNSAFE.getLong(slotAddress(slot) + KEY_OFFSET);
+	}
+
+	public int getBlockIndex(long slot) {
+		return UNSAFE.getInt(slotAddress(slot) + BLOCK_INDEX_OFFSET);
+	}
+
+	public int getPosition(long slot) {
+		return UNSAFE.getInt(slotAddress(slot) + POSITION_OFFSET);
+	}
+
+	public int getLength(long slot) {
+		return UNSAFE.getInt(slotAddress(slot) + LENGTH_OFFSET);
+	}
+
+	/**
+	 * Sets the storage info of the slot.
+	 *
+	 * @param slot the slot
+	 * @param blockIndex the index of the storage block
+	 * @param position the position within the block
+	 * @param length the length of the value
+	 */
+	public void setLocation(long slot, int blockIndex, int position, int length) {
+		long slotAddress = slotAddress(slot);
+		UNSAFE.putInt(slotAddress + BLOCK_INDEX_OFFSET, blockIndex);
+		UNSAFE.putInt(slotAddress + POSITION_OFFSET, position);
+		UNSAFE.putInt(slotAddress + LENGTH_OFFSET, length);
+	}
+
+	/**
+	 * Gets the generation of the storage block when the value was stored.
+	 *
+	 * @param slot the slot
+	 * @return the generation
+	 */
+	public int getGeneration(long slot) {
+		return UNSAFE.getInt(slotAddress(slot) + GENERATION_OFFSET);
+	}
+
+	public void setGeneration(long slot, int generation) {
+		UNSAFE.putInt(slotAddress(slot) + GENERATION_OFFSET, generation);
+	}
+
+	/**
+	 * Gets the cost hint of the entry, weighed by the GDSF eviction.
+	 *
+	 * @param slot the slot
+	 * @return the cost, 0 if never set
+	 */
+	public int getCost(long slot) {
+		return UNSAFE.getInt(slotAddress(slot) + COST_OFFSET);
+	}
+
+	public void setCost(long slot, int cost) {
+		UNSAFE.putInt(slotAddress(slot) + COST_OFFSET, cost);
+	}
+
+	public long getLastAccessTime(long slot) {
+		return UNSAFE.getLong(slotAddress(slot) + ACCESS_TIME_OFFSET);
+	}
+
+	public void setLastAccessTime(long slot, long accessTime) {
+		UNSAFE.putLong(slotAddress(slot) + ACCESS_TIME_OFFSET, initialized(accessTime));
+	}
+
+	/**
+	 * Moves an access time of 0, taken by not initialized, 1ms late.
+	 */
+	private static long initialized(long accessTime) {
+		return accessTime == 0 ? 1 : accessTime;
+	}
+
+	/**
+	 * Updates the last access time on access, following the same rules as
+	 * {@link com.ctriposs.bigcache.CacheValueWrapper#setLastAccessTime(long)}.
+	 *
+	 * @param slot the slot
+	 * @param accessTime the new access time
+	 */
+	public void touch(long slot, long accessTime) {
+		touch(slot, accessTime, 0);
+	}
+
+	/**
+	 * Updates the last access time on access, skipping the write if it was updated within the granularity.
+	 *
+	 * @param slot the slot
+	 * @param accessTime the new access time
+	 * @param granularity the granularity in milliseconds
+	 */
+	public void touch(long slot, long accessTime, long granularity) {
+		long slotAddress = slotAddress(slot);
+		long lastAccessTime = UNSAFE.getLong(slotAddress + ACCESS_TIME_OFFSET);
+		if (lastAccessTime > 0) {
+			// don't set it to an old value or revive an expired entry
+			if (accessTime - lastAccessTime < Math.max(granularity, 1) || isExpired(slot, accessTime)) return;
+		}
+		UNSAFE.putLong(slotAddress + ACCESS_TIME_OFFSET, initialized(accessTime));
+	}
+
+	public long getTimeToIdle(long slot) {
+		return UNSAFE.getLong(slotAddress(slot) + TIME_TO_IDLE_OFFSET);
+	}
+
+	public void setTimeToIdle(long slot, long timeToIdle) {
+		UNSAFE.putLong(slotAddress(slot) + TIME_TO_IDLE_OFFSET, timeToIdle);
+	}
+
+	/**
+	 * Gets the time the entry in the slot expires after however recently accessed, set by its time to live.
+	 *
+	 * @param slot the slot
+	 * @return the deadline in milliseconds, or -1 if no time to live
+	 */
+	public long getDeadline(long slot) {
+		long deadline = UNSAFE.getLong(slotAddress(slot) + DEADLINE_OFFSET);
+		return deadline > 0 ? deadline : -1;
+	}
+
+	public void setDeadline(long slot, long deadline) {
+		UNSAFE.putLong(slotAddress(slot) + DEADLINE_OFFSET, deadline);
+	}
+
+	/**
+	 * Is the entry in the slot expired at the given time.
+	 *
+	 * @param slot the slot
+	 * @param now the current time in milliseconds
+	 * @return expired or not
+	 */
+	public boolean isExpired(long slot, long now) {
+		long slotAddress = slotAddress(slot);
+		long deadline = UNSAFE.getLong(slotAddress + DEADLINE_OFFSET);
+		if (deadline > 0 && now > deadline) return true;
+		long timeToIdle = UNSAFE.getLong(slotAddress + TIME_TO_IDLE_OFFSET);
+		if (timeToIdle <= 0) return false; // never expire
+		long lastAccessTime = UNSAFE.getLong(slotAddress + ACCESS_TIME_OFFSET);
+		if (lastAccessTime <= 0) return false; // not initialized
+		return now - lastAccessTime > timeToIdle;
+	}
+
+	/**
+	 * Gets the time the entry in the slot expires after, as of the last access, or its deadline if earlier.
+	 *
+	 * @param slot the slot
+	 * @return the expiration time in milliseconds, or -1 if never expires
+	 */
+	public long getExpirationTime(long slot) {
+		long slotAddress = slotAddress(slot);
+		long deadline = getDeadline(slot);
+		long timeToIdle = UNSAFE.getLong(slotAddress + TIME_TO_IDLE_OFFSET);
+		long lastAccessTime = UNSAFE.getLong(slotAddress + ACCESS_TIME_OFFSET);
+		if (timeToIdle <= 0 || lastAccessTime <= 0) return deadline;
+		return deadline >= 0 ? Math.min(deadline, lastAccessTime + timeToIdle) : lastAccessTime + timeToIdle;
+	}
+
+	/**
+	 * Checks if the index should be resized before adding more keys.
+	 *
+	 * @return true if {@link #resize()} should be called.
+	 */
+	public boolean needsResize() {
+		return size.get() + tombstones.get() > capacity * LOAD_FACTOR;
+	}
+
+	/**
+	 * Rehashes all the keys into a new table, which is doubled when the index is getting full, or
+	 * keeps the same capacity when most of the occupied slots are deleted ones.
+	 */
+	public void resize() {
+		if (disposed.get() || !needsResize()) return; // resized by other thread
+
+		long oldAddress = address;
+		long oldCapacity = capacity;
+		long newCapacity = oldCapacity;
+		while (newCapacity * LOAD_FACTOR < size.get() * 2) {
+			newCapacity <<= 1;
+		}
+
+		long newAddress = allocate(newCapacity);
+		long mask = newCapacity - 1;
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			long oldSlotAddress = oldAddress + slot * SLOT_SIZE;
+			if (UNSAFE.getInt(oldSlotAddress + STATE_OFFSET) != FULL) continue;
+			long newSlot = home(UNSAFE.getLong(oldSlotAddress + KEY_OFFSET), mask);
+			while (UNSAFE.getInt(newAddress + newSlot * SLOT_SIZE + STATE_OFFSET) != EMPTY) {
+				newSlot = (newSlot + 1) & mask;
+			}
+			UNSAFE.copyMemory(oldSlotAddress, newAddress + newSlot * SLOT_SIZE, SLOT_SIZE);
+		}
+
+		this.address = newAddress;
+		this.capacity = newCapacity;
+		this.tombstones.set(0);
+		UNSAFE.freeMemory(oldAddress);
+	}
+
+	/**
+	 * Removes all the keys.
+	 */
+	public void clear() {
+		UNSAFE.setMemory(address, capacity * SLOT_SIZE, (byte) 0);
+		size.set(0);
+		tombstones.set(0);
+	}
+
+	/**
+	 * Gets the number of keys.
+	 *
+	 * @return the size
+	 */
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the number of slots.
+	 *
+	 * @return the capacity
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!disposed.compareAndSet(false, true))
+			return;
+		long address = this.address;
+		// a closed index has no slot, so a late lookup or scan finds nothing instead of touching freed memory
+		this.capacity = 0;
+		this.address = 0;
+		UNSAFE.freeMemory(address);
+	}
+}
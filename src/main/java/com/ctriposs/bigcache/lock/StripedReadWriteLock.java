@@ -1,5 +1,6 @@
 package com.ctriposs.bigcache.lock;
 
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -7,11 +8,22 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * {@link java.util.concurrent.locks.ReentrantReadWriteLock}, on which lock/unlock
  * operations are performed. Purpose of this is to decrease lock contention.
  * When a lock requested, this lock gives a lock associated with the given id. 
+ *
+ * Each lock also has a version which is bumped when its write lock is locked and unlocked, so a
+ * reader can go without the read lock and validate its reads afterwards, see {@link #tryOptimisticRead(int)}.
+ * The version is only maintained by the write lock methods of this class, so the write locks should
+ * not be taken from {@link #getLock(int)} directly.
  */
 public class StripedReadWriteLock {
 	
+	/** The distance between two versions, so each version sits in its own cache line. */
+	private static final int VERSION_STRIDE = 8;
+
 	private final ReentrantReadWriteLock[] locks;
 
+	/** The versions of the locks, odd while the write lock is held. */
+	private final AtomicLongArray versions;
+
 	/**
 	 * Default factor, creates 16 locks
 	 */
@@ -34,6 +46,7 @@ public class StripedReadWriteLock {
 		for (int i = 0; i < locks.length; i++){
 			locks[i] = new ReentrantReadWriteLock();
 		}
+		versions = new AtomicLongArray(lockSize * VERSION_STRIDE);
 	}
 
 	/**
@@ -61,6 +74,7 @@ public class StripedReadWriteLock {
 	 */
 	public void writeLock(int id) {
 		getLock(id).writeLock().lock();
+		versions.incrementAndGet(versionIndex(id));
 	}
 
 	/**
@@ -69,6 +83,7 @@ public class StripedReadWriteLock {
 	 * @param id value, from which lock is derived
 	 */
 	public void writeUnlock(int id) {
+		versions.incrementAndGet(versionIndex(id));
 		getLock(id).writeLock().unlock();
 	}
 
@@ -77,7 +92,7 @@ public class StripedReadWriteLock {
      */
     public void writeLockForAll() {
         for (int i = 0; i < locks.length; i++) {
-            getLock(i).writeLock().lock();
+            writeLock(i);
         }
     }
 
@@ -86,10 +101,58 @@ public class StripedReadWriteLock {
      */
     public void writeUnlockForAll() {
         for (int i = 0; i < locks.length; i++) {
-            getLock(i).writeLock().unlock();
+            writeUnlock(i);
         }
     }
 
+	/**
+	 * Starts an optimistic read of the data guarded by the lock associated with given id.
+	 *
+	 * The reader should only read data which stays valid to access while being changed, copy what it
+	 * needs and then call {@link #validate(int, long)}, the reads should be discarded and retried if
+	 * the validation fails.
+	 *
+	 * @param id value, from which lock is derived
+	 * @return the stamp to validate against
+	 */
+	public long tryOptimisticRead(int id) {
+		return versions.get(versionIndex(id));
+	}
+
+	/**
+	 * Checks if the write lock associated with given id has not been held since the stamp was taken.
+	 *
+	 * @param id value, from which lock is derived
+	 * @param stamp the stamp returned by {@link #tryOptimisticRead(int)}
+	 * @return true if the reads done since the stamp was taken are consistent
+	 */
+	public boolean validate(int id, long stamp) {
+		return (stamp & 1) == 0 && versions.get(versionIndex(id)) == stamp;
+	}
+
+	/**
+	 * Gets the index of the lock associated with the id, all the ids of the same lock have the same index.
+	 *
+	 * @param id value, from which lock is derived
+	 * @return the index of the lock
+	 */
+	public int indexOf(int id) {
+		return id & (locks.length - 1);
+	}
+
+	/**
+	 * Gets the number of locks, the lock of an index below is the lock of the id equal to the index.
+	 *
+	 * @return the number of locks
+	 */
+	public int size() {
+		return locks.length;
+	}
+
+	private int versionIndex(int id) {
+		return indexOf(id) * VERSION_STRIDE;
+	}
+
 	/**
 	 * Finds the lock associated with the id
 	 * 
@@ -100,6 +163,6 @@ public class StripedReadWriteLock {
 		// locks.length-1 is a string of ones since lock.length is power of 2,
 		// thus ending cancels out the higher bits of id and leaves the lower bits
 		// to determine the lock.
-		return locks[id & (locks.length - 1)];
+		return locks[indexOf(id)];
 	}
 }
\ No newline at end of file
@@ -10,12 +10,27 @@ public class FileChannelStorage implements IStorage {
 
 	private FileChannel fileChannel;
 	private RandomAccessFile raf;
+	private final File file;
 	
 	public FileChannelStorage(String dir, int index, int capacity) throws IOException {
 		File dirFile = new File(dir);
 		if (!dirFile.exists()) { dirFile.mkdirs(); }
 		String fullFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
-		raf = new RandomAccessFile(fullFileName, "rw");
+		file = new File(fullFileName);
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(capacity);
+		fileChannel = raf.getChannel();
+	}
+
+	/**
+	 * Opens the storage from a file written before, keeping its content.
+	 *
+	 * @param file the file
+	 * @param capacity the capacity
+	 */
+	public FileChannelStorage(File file, int capacity) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
 		raf.setLength(capacity);
 		fileChannel = raf.getChannel();
 	}
@@ -35,6 +50,22 @@ public class FileChannelStorage implements IStorage {
 		// nothing to do here
 	}
 
+	@Override
+	public void touch() {
+		// the file has its length already, the pages are in the OS cache
+	}
+
+	@Override
+	public void sync() throws IOException {
+		fileChannel.force(false);
+	}
+
+	@Override
+	public File persist(String dir, int index, int length) throws IOException {
+		fileChannel.force(false); // the content is in the file already
+		return file;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (this.fileChannel != null) {
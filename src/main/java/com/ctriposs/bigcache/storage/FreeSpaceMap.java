@@ -0,0 +1,137 @@
+package com.ctriposs.bigcache.storage;
+
+import java.util.Arrays;
+
+/**
+ * The holes left in a storage block by the payloads removed, so new payloads can be stored there instead of
+ * being appended.
+ *
+ * The holes are kept in segregated free lists, one per power of 2 of their length, each list being a stack of
+ * the position and the length of the holes packed in a long. A payload takes the first hole fitting among a few
+ * of its own list, or any hole of a list above, and the rest of the hole is a hole again unless too small. The
+ * holes are not coalesced.
+ */
+class FreeSpaceMap {
+
+	/** The smallest hole kept, the smaller ones stay dirty until the block is freed. */
+	static final int MIN_HOLE_SIZE = 64;
+
+	/** The holes of the list of a payload checked for a fit, before going to the lists above. */
+	private static final int FIRST_FIT_ATTEMPTS = 8;
+
+	private static final int MIN_CLASS = 31 - Integer.numberOfLeadingZeros(MIN_HOLE_SIZE);
+
+	private final long[][] lists = new long[32 - MIN_CLASS][];
+
+	private final int[] counts = new int[lists.length];
+
+	/** The generation of the block the holes are in, guarded by this. */
+	private int generation;
+
+	private int holeCount;
+
+	/**
+	 * @param generation the generation of the block
+	 */
+	FreeSpaceMap(int generation) {
+		this.generation = generation;
+	}
+
+	private static int classOf(int length) {
+		return 31 - Integer.numberOfLeadingZeros(length) - MIN_CLASS;
+	}
+
+	/**
+	 * Adds the hole of a payload removed.
+	 *
+	 * @param position the position of the payload
+	 * @param length the length of the payload
+	 * @param generation the generation of the block when the payload was stored
+	 * @return true if added, false if too small or stale
+	 */
+	synchronized boolean add(int position, int length, int generation) {
+		if (length < MIN_HOLE_SIZE || generation != this.generation) {
+			return false;
+		}
+		push(classOf(length), ((long) position << 32) | length);
+		return true;
+	}
+
+	private void push(int index, long hole) {
+		long[] list = lists[index];
+		if (list == null) {
+			list = lists[index] = new long[16];
+		} else if (counts[index] == list.length) {
+			list = lists[index] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[counts[index]++] = hole;
+		holeCount++;
+	}
+
+	private long remove(int index, int i) {
+		long[] list = lists[index];
+		long hole = list[i];
+		list[i] = list[--counts[index]];
+		holeCount--;
+		return hole;
+	}
+
+	/**
+	 * Takes the space for a payload out of a hole.
+	 *
+	 * @param length the length of the payload
+	 * @param generation the generation of the block
+	 * @return the position of the payload, or -1 if no hole fits
+	 */
+	synchronized int take(int length, int generation) {
+		if (holeCount == 0 || generation != this.generation) {
+			return -1;
+		}
+		int index = Math.max(0, classOf(length));
+		long hole = -1;
+		if (index < lists.length && length >= MIN_HOLE_SIZE) {
+			for (int i = counts[index] - 1; i >= Math.max(0, counts[index] - FIRST_FIT_ATTEMPTS); i--) {
+				if ((int) lists[index][i] >= length) {
+					hole = remove(index, i);
+					break;
+				}
+			}
+			index++;
+		}
+		for (; hole < 0 && index < lists.length; index++) {
+			if (counts[index] > 0) {
+				hole = remove(index, counts[index] - 1);
+			}
+		}
+		if (hole < 0) {
+			return -1;
+		}
+		int position = (int) (hole >>> 32);
+		int rest = (int) hole - length;
+		if (rest >= MIN_HOLE_SIZE) {
+			push(classOf(rest), ((long) (position + length) << 32) | rest);
+		}
+		return position;
+	}
+
+	/**
+	 * Checks if there is any hole.
+	 *
+	 * @return true if any
+	 */
+	synchronized boolean hasHoles() {
+		return holeCount > 0;
+	}
+
+	/**
+	 * Drops all the holes once the block is freed, and the holes of the generations before from now on.
+	 *
+	 * @param generation the new generation of the block
+	 */
+	synchronized void clear(int generation) {
+		this.generation = generation;
+		Arrays.fill(lists, null);
+		Arrays.fill(counts, 0);
+		holeCount = 0;
+	}
+}
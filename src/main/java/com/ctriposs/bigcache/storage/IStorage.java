@@ -1,6 +1,7 @@
 package com.ctriposs.bigcache.storage;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -30,4 +31,25 @@ public interface IStorage extends Closeable {
 	 * Frees the storage.
 	 */
 	void free();
+
+	/**
+	 * Forces the bytes put so far to the disk, if the storage is backed by its file.
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Touches every page of the storage, so the first puts do not fault them in.
+	 */
+	void touch();
+
+	/**
+	 * Writes the bytes in use to the file of the storage, creating one if the storage has no file, so the
+	 * storage can be opened again from the file.
+	 *
+	 * @param dir the directory of the files
+	 * @param index the index of the storage block
+	 * @param length the number of bytes in use from the start
+	 * @return the file
+	 */
+	File persist(String dir, int index, int length) throws IOException;
 }
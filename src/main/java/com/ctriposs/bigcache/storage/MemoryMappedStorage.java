@@ -11,6 +11,10 @@ public class MemoryMappedStorage implements IStorage {
 
 	private RandomAccessFile raf;
 	private ThreadLocalByteBuffer threadLocalBuffer;
+	private final File file;
+
+	/** The smallest page size of the OS. */
+	private static final int PAGE_SIZE = 4096;
 
 	public MemoryMappedStorage(String dir, int index, int capacity) throws IOException {
 		File backFile = new File(dir);
@@ -18,7 +22,21 @@ public class MemoryMappedStorage implements IStorage {
 			backFile.mkdirs();
 		}
 		String backFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
-		raf = new RandomAccessFile(backFileName, "rw");
+		this.file = new File(backFileName);
+		raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer mappedByteBuffer = raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, capacity);
+		threadLocalBuffer = new ThreadLocalByteBuffer(mappedByteBuffer);
+	}
+
+	/**
+	 * Maps the storage from a file written before, keeping its content.
+	 *
+	 * @param file the file
+	 * @param capacity the capacity
+	 */
+	public MemoryMappedStorage(File file, int capacity) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
 		MappedByteBuffer mappedByteBuffer = raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, capacity);
 		threadLocalBuffer = new ThreadLocalByteBuffer(mappedByteBuffer);
 	}
@@ -51,6 +69,35 @@ public class MemoryMappedStorage implements IStorage {
 		buffer.put(source);
 	}
 
+	@Override
+	public void touch() {
+		// the mapping is private, writing a page copies it
+		ByteBuffer buffer = threadLocalBuffer.getSourceBuffer();
+		for (int position = 0; position < buffer.capacity(); position += PAGE_SIZE) {
+			buffer.put(position, (byte) 0);
+		}
+	}
+
+	@Override
+	public void sync() {
+		// the mapping is private, the file only sees the writes when persisted
+	}
+
+	@Override
+	public File persist(String dir, int index, int length) throws IOException {
+		// the mapping is private, so the file has never seen the writes
+		ByteBuffer buffer = threadLocalBuffer.getSourceBuffer().duplicate();
+		buffer.position(0);
+		buffer.limit(length);
+		FileChannel channel = raf.getChannel();
+		long position = 0;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		channel.force(false);
+		return file;
+	}
+
 	@Override
 	public void free() {
 		MappedByteBuffer buffer = (MappedByteBuffer) threadLocalBuffer.getSourceBuffer();
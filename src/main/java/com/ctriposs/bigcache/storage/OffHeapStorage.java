@@ -1,39 +1,69 @@
 package com.ctriposs.bigcache.storage;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import sun.misc.Unsafe;
 
+import com.ctriposs.bigcache.utils.UnsafeUtil;
+
 public class OffHeapStorage implements IStorage {
 
 	protected final AtomicBoolean disposed = new AtomicBoolean(false);
 	protected ByteBuffer byteBuffer;
 
-	private static final Unsafe UNSAFE = getUnsafe();
+	private static final Unsafe UNSAFE = UnsafeUtil.getUnsafe();
 	private static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
 
+	/** The size of the chunks copied between the memory and a file. */
+	private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+
 	private final long address;
 
-	private static Unsafe getUnsafe() {
-		try {
-			Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
-			unsafeField.setAccessible(true);
-			return (sun.misc.Unsafe) unsafeField.get(null);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-	}
+	private final int capacity;
 
 	public OffHeapStorage(int capacity) {
 		this.address = UNSAFE.allocateMemory(capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Loads the storage from a file written by {@link #persist(String, int, int)}, the file is deleted once loaded.
+	 *
+	 * @param file the file
+	 * @param capacity the capacity
+	 */
+	public OffHeapStorage(File file, int capacity) throws IOException {
+		this(capacity);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			int length = (int) Math.min(raf.length(), capacity);
+			byte[] chunk = new byte[Math.min(length, COPY_CHUNK_SIZE)];
+			for (int position = 0; position < length; position += chunk.length) {
+				if (length - position < chunk.length) {
+					chunk = new byte[length - position];
+				}
+				raf.readFully(chunk);
+				put(position, chunk);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			raf.close();
+		}
+		if (!file.delete()) {
+			throw new IOException("delete file failed: " + file);
+		}
 	}
 
 	public OffHeapStorage(int capacity, ByteBuffer buffer) {
 		this.byteBuffer = ByteBuffer.allocateDirect(capacity);
+		this.capacity = capacity;
 		try {
 			Method method = byteBuffer.getClass().getDeclaredMethod("address");
 			method.setAccessible(true);
@@ -89,6 +119,41 @@ public class OffHeapStorage implements IStorage {
 		UNSAFE.copyMemory(source, srcOffset, null, baseAddress, length);
 	}
 
+	@Override
+	public void touch() {
+		assert !disposed.get() : "disposed";
+		UNSAFE.setMemory(address, capacity, (byte) 0);
+	}
+
+	@Override
+	public void sync() {
+		// in memory only
+	}
+
+	@Override
+	public File persist(String dir, int index, int length) throws IOException {
+		File dirFile = new File(dir);
+		if (!dirFile.exists()) {
+			dirFile.mkdirs();
+		}
+		File file = new File(dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] chunk = new byte[Math.min(length, COPY_CHUNK_SIZE)];
+			for (int position = 0; position < length; position += chunk.length) {
+				if (length - position < chunk.length) {
+					chunk = new byte[length - position];
+				}
+				get(position, chunk);
+				raf.write(chunk);
+			}
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+
 	@Override
 	public void free() {
 		//do nothing
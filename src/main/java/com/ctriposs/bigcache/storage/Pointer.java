@@ -14,18 +14,34 @@ public class Pointer {
 
 	/** The associated storage block. */
 	protected StorageBlock storageBlock;
+
+	/** The generation of the storage block when the value was stored. */
+	protected int generation;
 	
 	/**
-	 * Instantiates a new pointer.
+	 * Instantiates a new pointer to the current generation of the storage block.
 	 *
 	 * @param position the position
 	 * @param length the length of the value
 	 * @param storageBlock the persistent cache storage
 	 */
 	public Pointer(int position, int length, StorageBlock storageBlock) {
+        this(position, length, storageBlock, storageBlock == null ? 0 : storageBlock.getGeneration());
+	}
+
+	/**
+	 * Instantiates a new pointer.
+	 *
+	 * @param position the position
+	 * @param length the length of the value
+	 * @param storageBlock the persistent cache storage
+	 * @param generation the generation of the storage block when the value was stored
+	 */
+	public Pointer(int position, int length, StorageBlock storageBlock, int generation) {
         this.position = position;
         this.length = length;
         this.storageBlock = storageBlock;
+        this.generation = generation;
 	}
 
 	/**
@@ -83,6 +99,24 @@ public class Pointer {
 	}
 	
 
+	/**
+	 * Gets the generation of the storage block when the value was stored.
+	 *
+	 * @return the generation
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Checks if the storage block has been freed since the value was stored, so the value is gone.
+	 *
+	 * @return true if the value is gone
+	 */
+	public boolean isStale() {
+		return storageBlock.getGeneration() != generation;
+	}
+
 	/**
 	 * Copies given pointer.
 	 *
@@ -93,6 +127,7 @@ public class Pointer {
 		this.position = pointer.position;
 		this.length = pointer.length;
 		this.storageBlock = pointer.storageBlock;
+		this.generation = pointer.generation;
 		return this;
 	}
 }
@@ -0,0 +1,19 @@
+package com.ctriposs.bigcache.storage;
+
+import java.io.IOException;
+
+/**
+ * Rebuilds the index from the records found by the crash recovery of the {@link StorageManager}.
+ */
+public interface RecordHandler {
+
+	/**
+	 * Handles a live record, called from several threads at the same time.
+	 *
+	 * @param header the header of the record, reused for the next record of the block once the call returns
+	 * @param pointer the pointer to the record
+	 * @return true if the record is kept, false if it is dropped
+	 * @throws IOException
+	 */
+	boolean accept(RecordHeader header, Pointer pointer) throws IOException;
+}
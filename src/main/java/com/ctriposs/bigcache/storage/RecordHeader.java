@@ -0,0 +1,137 @@
+package com.ctriposs.bigcache.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The header ahead of the payloads of the storage blocks when the cache recovers from crashes, which describes
+ * the payload so the index can be rebuilt by scanning the block files.
+ *
+ * The header is laid out as the state, the generation of the block, the length of the record including the
+ * header, the cost hint, the sequence number, the key fingerprint, the time to idle, the write time and the time
+ * to live. The
+ * state is overwritten when the record is removed, and the generation is set by the block when storing, so the
+ * records left from before the block was freed are told apart.
+ */
+public class RecordHeader {
+
+	/** The size of the header in bytes. */
+	public static final int SIZE = 56;
+
+	/** The state of a record in use. */
+	static final int LIVE = 0x4c495645;
+
+	/** The state of a removed record. */
+	static final int DEAD = 0x44454144;
+
+	private static final int STATE_OFFSET = 0;
+	private static final int GENERATION_OFFSET = 4;
+	private static final int LENGTH_OFFSET = 8;
+	private static final int COST_OFFSET = 12;
+	private static final int SEQUENCE_OFFSET = 16;
+	private static final int FINGERPRINT_OFFSET = 24;
+	private static final int TIME_TO_IDLE_OFFSET = 32;
+	private static final int WRITE_TIME_OFFSET = 40;
+	private static final int TIME_TO_LIVE_OFFSET = 48;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Reads a header.
+	 *
+	 * @param bytes the bytes of the header, or of the whole record
+	 */
+	public RecordHeader(byte[] bytes) {
+		this.buffer = ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Writes the header of a live record at the start of the record, but the generation.
+	 *
+	 * @param record the record, whose first {@link #SIZE} bytes are for the header
+	 * @param sequence the sequence number, higher for a newer record
+	 * @param fingerprint the key fingerprint
+	 * @param timeToIdle the time to idle in milliseconds
+	 * @param timeToLive the time to live since the write in milliseconds
+	 * @param writeTime the time of the write in milliseconds
+	 * @param cost the cost hint
+	 */
+	public static void write(byte[] record, long sequence, long fingerprint, long timeToIdle, long timeToLive,
+			long writeTime, int cost) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(STATE_OFFSET, LIVE);
+		buffer.putInt(LENGTH_OFFSET, record.length);
+		buffer.putInt(COST_OFFSET, cost);
+		buffer.putLong(SEQUENCE_OFFSET, sequence);
+		buffer.putLong(FINGERPRINT_OFFSET, fingerprint);
+		buffer.putLong(TIME_TO_IDLE_OFFSET, timeToIdle);
+		buffer.putLong(WRITE_TIME_OFFSET, writeTime);
+		buffer.putLong(TIME_TO_LIVE_OFFSET, timeToLive);
+	}
+
+	static void setGeneration(byte[] record, int generation) {
+		ByteBuffer.wrap(record).putInt(GENERATION_OFFSET, generation);
+	}
+
+	/**
+	 * Gets the bytes written over the state of a record, to mark it dead or to invalidate the first record
+	 * of a freed block.
+	 *
+	 * @param state the state, 0 for none
+	 * @return the bytes
+	 */
+	static byte[] stateBytes(int state) {
+		return ByteBuffer.allocate(4).putInt(state).array();
+	}
+
+	/**
+	 * Checks if the header is the one of a record, live or dead, fitting in the given space.
+	 *
+	 * @param space the space from the start of the record to the end of the block
+	 * @return true if valid
+	 */
+	boolean isValid(int space) {
+		int state = getState();
+		int length = getLength();
+		return (state == LIVE || state == DEAD) && length >= SIZE && length <= space;
+	}
+
+	int getState() {
+		return buffer.getInt(STATE_OFFSET);
+	}
+
+	public boolean isLive() {
+		return getState() == LIVE;
+	}
+
+	public int getGeneration() {
+		return buffer.getInt(GENERATION_OFFSET);
+	}
+
+	public int getLength() {
+		return buffer.getInt(LENGTH_OFFSET);
+	}
+
+	public int getCost() {
+		return buffer.getInt(COST_OFFSET);
+	}
+
+	public long getSequence() {
+		return buffer.getLong(SEQUENCE_OFFSET);
+	}
+
+	public long getFingerprint() {
+		return buffer.getLong(FINGERPRINT_OFFSET);
+	}
+
+	public long getTimeToIdle() {
+		return buffer.getLong(TIME_TO_IDLE_OFFSET);
+	}
+
+	public long getWriteTime() {
+		return buffer.getLong(WRITE_TIME_OFFSET);
+	}
+
+	public long getTimeToLive() {
+		return buffer.getLong(TIME_TO_LIVE_OFFSET);
+	}
+}
@@ -0,0 +1,166 @@
+package com.ctriposs.bigcache.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocates the payloads in slots of size classes, so the slot of a removed payload is reused by the next
+ * payload of the same class instead of becoming dirty.
+ *
+ * The slot sizes grow by {@link #GROWTH_FACTOR} from {@link #MIN_SLOT_SIZE} up to the capacity of a block. The
+ * slots of a class are carved out of pages of about {@link #PAGE_SIZE} bytes reserved in the blocks, or out of
+ * one page per slot for the slots bigger than a page. A class keeps the slots freed in a stack, and takes a new
+ * page only once the stack is empty. Pages are never given back to the blocks, so the blocks are not freed
+ * until the whole storage is.
+ */
+class SlabAllocator {
+
+	/** The size of the smallest slots. */
+	static final int MIN_SLOT_SIZE = 64;
+
+	/** The ratio between the slot sizes of two classes in a row. */
+	static final double GROWTH_FACTOR = 1.25;
+
+	/** The size of the pages the slots are carved out of. */
+	static final int PAGE_SIZE = 1024 * 1024;
+
+	private final StorageManager storageManager;
+
+	/** The slot sizes of the classes, ascending. */
+	private final int[] slotSizes;
+
+	private final SizeClass[] classes;
+
+	/**
+	 * @param storageManager the storage manager reserving the pages
+	 * @param capacityPerBlock the capacity of the blocks, the size of the biggest slots
+	 */
+	SlabAllocator(StorageManager storageManager, int capacityPerBlock) {
+		this.storageManager = storageManager;
+		List<Integer> sizes = new ArrayList<Integer>();
+		long size = MIN_SLOT_SIZE;
+		while (size < capacityPerBlock) {
+			sizes.add((int) size);
+			size = Math.max(size + 8, ((long) (size * GROWTH_FACTOR) + 7) & ~7L); // 8 bytes aligned
+		}
+		sizes.add(capacityPerBlock);
+		int pageSize = Math.min(PAGE_SIZE, capacityPerBlock);
+		this.slotSizes = new int[sizes.size()];
+		this.classes = new SizeClass[sizes.size()];
+		for (int i = 0; i < slotSizes.length; i++) {
+			slotSizes[i] = sizes.get(i);
+			classes[i] = new SizeClass(slotSizes[i], Math.max(slotSizes[i], pageSize / slotSizes[i] * slotSizes[i]));
+		}
+	}
+
+	/**
+	 * Gets the class of a payload.
+	 *
+	 * @param length the length of the payload
+	 * @return the index of the class with the smallest slots fitting the payload, or -1 if too long
+	 */
+	int classOf(int length) {
+		int index = Arrays.binarySearch(slotSizes, length);
+		index = index >= 0 ? index : -index - 1;
+		return index < slotSizes.length ? index : -1;
+	}
+
+	/**
+	 * Gets the size of the slots of the payloads of the given length.
+	 *
+	 * @param length the length of the payload
+	 * @return the slot size
+	 */
+	int getSlotSize(int length) {
+		return slotSizes[classOf(length)];
+	}
+
+	/**
+	 * Allocates a slot for a payload.
+	 *
+	 * @param length the length of the payload
+	 * @return the location of the slot, see {@link StorageManager#reserve(int)}
+	 * @throws IOException if the payload is bigger than a block, or no page can be reserved
+	 */
+	long allocate(int length) throws IOException {
+		int index = classOf(length);
+		if (index < 0) {
+			throw new IOException("Payload of " + length + " bytes is bigger than a block!");
+		}
+		return classes[index].allocate();
+	}
+
+	/**
+	 * Frees the slot of a payload, the next payload of its class is stored there.
+	 *
+	 * @param location the location of the slot
+	 * @param length the length of the payload
+	 */
+	void free(long location, int length) {
+		classes[classOf(length)].free(location);
+	}
+
+	/**
+	 * Forgets all the slots and the pages, once all the blocks are freed.
+	 */
+	void clear() {
+		for (SizeClass sizeClass : classes) {
+			sizeClass.clear();
+		}
+	}
+
+	/**
+	 * The slots of a size.
+	 */
+	private class SizeClass {
+
+		private final int slotSize;
+
+		private final int pageSize;
+
+		/** The locations of the slots freed, guarded by this. */
+		private long[] freeSlots = new long[16];
+
+		private int freeCount;
+
+		/** The location of the next slot of the current page, guarded by this. */
+		private long next;
+
+		/** The slots left in the current page, guarded by this. */
+		private int left;
+
+		SizeClass(int slotSize, int pageSize) {
+			this.slotSize = slotSize;
+			this.pageSize = pageSize;
+		}
+
+		synchronized long allocate() throws IOException {
+			if (freeCount > 0) {
+				return freeSlots[--freeCount];
+			}
+			if (left == 0) {
+				next = storageManager.reserve(pageSize);
+				left = pageSize / slotSize;
+			}
+			long location = next;
+			next += slotSize;
+			left--;
+			return location;
+		}
+
+		synchronized void free(long location) {
+			if (freeCount == freeSlots.length) {
+				freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+			}
+			freeSlots[freeCount++] = location;
+		}
+
+		synchronized void clear() {
+			freeSlots = new long[16];
+			freeCount = 0;
+			left = 0;
+		}
+	}
+}
@@ -1,9 +1,18 @@
 package com.ctriposs.bigcache.storage;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.ctriposs.bigcache.CacheConfig.StorageMode;
+import com.ctriposs.bigcache.utils.StripedCounter;
 
 /**
  * The Class StorageBlock.
@@ -27,6 +36,74 @@ public class StorageBlock implements IStorageBlock {
 	
 	/** The used storage. */
 	private final AtomicInteger usedStorage = new AtomicInteger(0);
+
+	/** The times the block has been freed, so the pointers stored before can be told. */
+	private final AtomicInteger generation = new AtomicInteger(0);
+
+	/** The order in which the block became the active block of the storage manager. */
+	private volatile long sequence;
+
+	/** Whether the payloads are records starting with a {@link RecordHeader}, marked dead when removed. */
+	private volatile boolean records;
+
+	/** The holes left by the payloads removed, null unless they are reused. */
+	private volatile FreeSpaceMap freeSpace;
+
+	/** The writers storing into the block, see {@link #pin()}. */
+	private final StripedCounter writers = new StripedCounter();
+
+	/** Whether the block is being checked and freed, so the writers keep out. */
+	private volatile boolean freeing;
+
+	/** Whether the block has been written since its last sync, set after each write and cleared before a sync. */
+	private volatile boolean unsynced;
+
+	/** Whether the block is in the queue of the blocks with holes of the storage manager. */
+	final AtomicBoolean holesQueued = new AtomicBoolean(false);
+
+	/**
+	 * The time all the payloads stored since the block was freed are dead after, {@link StorageManager#NO_DEADLINE}
+	 * if any may live on.
+	 */
+	private final AtomicLong deadline;
+
+	/**
+	 * The offset of the block in the last checkpoint before a crash, if it has only been appended to since, or -1.
+	 * Only used by the recovery.
+	 */
+	private int checkpointOffset = -1;
+
+	/** The positions of the records known by the checkpoints, only used by the recovery. */
+	private List<Integer> checkpointPositions = new ArrayList<Integer>();
+
+	/** Written over the state of a removed record. */
+	private static final byte[] DEAD_STATE = RecordHeader.stateBytes(RecordHeader.DEAD);
+
+	/** Written over the state of the first record when the block is freed. */
+	private static final byte[] NO_STATE = RecordHeader.stateBytes(0);
+
+	/** The size of the chunks reserved by the writer threads. */
+	static final int TLAB_SIZE = 64 * 1024;
+
+	/** The payloads bigger than this are allocated from the block directly. */
+	static final int TLAB_MAX_PAYLOAD = TLAB_SIZE / 8;
+
+	/** The space a chunk may have left when it is retired for a payload not fitting. */
+	static final int TLAB_MAX_WASTE = TLAB_SIZE / 64;
+
+	/** The chunks of the writer threads in this generation of the block, retired along with the block. */
+	private final Set<Tlab> tlabs = Collections.newSetFromMap(new ConcurrentHashMap<Tlab, Boolean>());
+
+	/** Whether the block is not active anymore, so the writer threads allocate from it directly. */
+	private volatile boolean retired;
+
+	/** The chunk each writer thread is allocating from, if any. */
+	private final ThreadLocal<Tlab> tlab = new ThreadLocal<Tlab>() {
+		@Override
+		protected Tlab initialValue() {
+			return new Tlab();
+		}
+	};
 	
 	/**
 	 * Instantiates a new storage block.
@@ -39,6 +116,7 @@ public class StorageBlock implements IStorageBlock {
 	public StorageBlock(String dir, int index, int capacity, StorageMode storageMode) throws IOException{
 		this.index = index;
 		this.capacity = capacity;
+		this.deadline = new AtomicLong(Long.MIN_VALUE); // empty
 		switch (storageMode) {
 		case PureFile:
 			underlyingStorage = new FileChannelStorage(dir, index, capacity);
@@ -51,6 +129,32 @@ public class StorageBlock implements IStorageBlock {
 			break;
 		}
 	}
+
+	/**
+	 * Instantiates a storage block from the file written by {@link #persist(String)}, whose state is set
+	 * by {@link #restore(int, int, int, int)} afterwards.
+	 *
+	 * @param file the file
+	 * @param index the index
+	 * @param capacity the capacity
+	 * @throws IOException exception throws when failing to open the storage block
+	 */
+	public StorageBlock(File file, int index, int capacity, StorageMode storageMode) throws IOException {
+		this.index = index;
+		this.capacity = capacity;
+		this.deadline = new AtomicLong(StorageManager.NO_DEADLINE); // the payloads loaded back are not known
+		switch (storageMode) {
+		case PureFile:
+			underlyingStorage = new FileChannelStorage(file, capacity);
+			break;
+		case MemoryMappedPlusFile:
+			underlyingStorage = new MemoryMappedStorage(file, capacity);
+			break;
+		case OffHeapPlusFile:
+			underlyingStorage = new OffHeapStorage(file, capacity);
+			break;
+		}
+	}
 	
     @Override
     public byte[] retrieve(Pointer pointer) throws IOException {
@@ -62,24 +166,137 @@ public class StorageBlock implements IStorageBlock {
 	@Override
 	public byte[] remove(Pointer pointer) throws IOException {
 		byte [] payload = retrieve(pointer);
-		dirtyStorage.addAndGet(pointer.getLength());
-		usedStorage.addAndGet(-1 * pointer.getLength());
+		removeLight(pointer);
 		return payload;
 	}
 	
 
 	@Override
 	public void removeLight(Pointer pointer) throws IOException {
+		if (pointer.getGeneration() != generation.get()) {
+			return; // accounted when the block was freed
+		}
+		if (records) {
+			underlyingStorage.put(pointer.getPosition(), DEAD_STATE);
+			unsynced = true;
+		}
 		dirtyStorage.addAndGet(pointer.getLength());
 		usedStorage.addAndGet(-1 * pointer.getLength());
+		FreeSpaceMap freeSpace = this.freeSpace;
+		if (freeSpace != null) {
+			freeSpace.add(pointer.getPosition(), pointer.getLength(), pointer.getGeneration());
+		}
+	}
+
+	/**
+	 * Stores the payload in a hole left by the payloads removed, if hole reuse is enabled and the payload is dead
+	 * before the block, so the deadline of the block is never pushed back by a payload stored in a hole.
+	 *
+	 * @param payload the payload
+	 * @param deadline the time the payload is dead after
+	 * @return the pointer, or null if no hole fits
+	 * @throws IOException
+	 */
+	Pointer storeInHole(byte[] payload, long deadline) throws IOException {
+		FreeSpaceMap freeSpace = this.freeSpace;
+		if (freeSpace == null || !pin()) return null;
+		try {
+			if (deadline > this.deadline.get()) return null;
+			int generation = this.generation.get();
+			int position = freeSpace.take(payload.length, generation);
+			if (position < 0) return null;
+			dirtyStorage.addAndGet(-1 * payload.length);
+			return store(new Allocation(position, payload.length), payload, generation);
+		} finally {
+			unpin();
+		}
+	}
+
+	/**
+	 * Keeps the block from being freed while storing into it, until {@link #unpin()}. A writer may store into a
+	 * block which is not active anymore, in a hole or through a reference to the active block taken before it
+	 * changed, and the space it allocated would be handed out again if the block was freed meanwhile, as it
+	 * is only counted as used once the payload is written.
+	 *
+	 * The writers are counted in the cells of their threads, so the writers of an active block don't contend.
+	 *
+	 * @return false if the block is being freed
+	 */
+	boolean pin() {
+		writers.increment();
+		if (freeing) {
+			writers.add(-1);
+			return false;
+		}
+		return true;
+	}
+
+	void unpin() {
+		writers.add(-1);
+	}
+
+	/**
+	 * Keeps the writers out of the block while it is checked again and freed, until {@link #unlockFree()}.
+	 *
+	 * @return false if a writer has pinned the block
+	 */
+	boolean lockFree() {
+		freeing = true; // the writers pinning from now on see it, the ones before are counted
+		if (writers.sum() != 0) {
+			freeing = false;
+			return false;
+		}
+		return true;
+	}
+
+	void unlockFree() {
+		freeing = false;
+	}
+
+	/**
+	 * Checks if there is any hole to store payloads in.
+	 *
+	 * @return true if any
+	 */
+	boolean hasHoles() {
+		FreeSpaceMap freeSpace = this.freeSpace;
+		return freeSpace != null && freeSpace.hasHoles();
+	}
+
+	/**
+	 * Enables the reuse of the holes left by the payloads removed from now on.
+	 */
+	synchronized void enableHoleReuse() {
+		if (this.freeSpace == null) {
+			this.freeSpace = new FreeSpaceMap(generation.get());
+		}
 	}
 
 	@Override
 	public Pointer store(byte[] payload) throws IOException {
-		Allocation allocation = allocate(payload);
-		if (allocation == null) return null; // not enough storage available
-		Pointer pointer = store(allocation, payload);
-		return pointer;
+		return store(payload, StorageManager.NO_DEADLINE);
+	}
+
+	/**
+	 * Stores the payload, pushing back the deadline of the block to the one of the payload once the storage is
+	 * allocated, so a block too full for the payload keeps its deadline. The block is pinned meanwhile.
+	 *
+	 * @param payload the payload
+	 * @param deadline the time the payload is dead after
+	 * @return the pointer, or null if not enough storage available
+	 * @throws IOException
+	 */
+	Pointer store(byte[] payload, long deadline) throws IOException {
+		if (!pin()) return null; // being freed, not the active block anymore
+		try {
+			int generation = this.generation.get();
+			Allocation allocation = allocate(payload, generation);
+			if (allocation == null) return null; // not enough storage available
+			extendDeadline(deadline);
+			return store(allocation, payload, generation);
+		} finally {
+			unpin();
+		}
 	}
 	
 	/**
@@ -97,35 +314,167 @@ public class StorageBlock implements IStorageBlock {
 		Allocation allocation = new Allocation(allocationOffset - payloadLength, payloadLength);
 		return allocation;
 	}
+
+	/**
+	 * Allocates storage for the payload from the chunk of the current thread, so the writer threads do not
+	 * contend on the offset of the block for every payload. A thread reserves a new chunk when the payload does
+	 * not fit in the little space left in its chunk, which is counted as dirty, otherwise the payload is
+	 * allocated from the block directly and the chunk is kept. The space left in the chunks of all the threads
+	 * is counted as dirty once the block is not active anymore, see {@link #retireChunks()}.
+	 *
+	 * The big payloads, and the records which are scanned after a crash as one contiguous log, are allocated
+	 * from the block directly.
+	 *
+	 * @param payload the payload
+	 * @param generation the generation of the block read before allocating
+	 * @return the allocation, or null if not enough storage available
+	 */
+	private Allocation allocate(byte[] payload, int generation) {
+		int payloadLength = payload.length;
+		if (records || payloadLength > TLAB_MAX_PAYLOAD || retired) {
+			return allocate(payload);
+		}
+		Tlab tlab = this.tlab.get();
+		if (tlab.generation != generation) { // the block has been freed since
+			tlab.generation = generation;
+			tlab.chunk.set(0);
+			tlabs.add(tlab);
+		}
+		int position = tlab.allocate(payloadLength);
+		if (position < 0) {
+			if (tlab.left() > TLAB_MAX_WASTE) {
+				return allocate(payload);
+			}
+			int offset;
+			int size;
+			do {
+				offset = currentOffset.get();
+				size = Math.min(TLAB_SIZE, capacity - offset);
+				if (size < payloadLength) {
+					return null;
+				}
+			} while (!currentOffset.compareAndSet(offset, offset + size));
+			dirtyStorage.addAndGet(tlab.retire());
+			tlab.chunk.set(((long) (offset + size) << 32) | (offset + payloadLength));
+			position = offset;
+			if (retired) { // missed by the retirement of the block
+				dirtyStorage.addAndGet(tlab.retire());
+			}
+		}
+		return new Allocation(position, payloadLength);
+	}
+
+	/**
+	 * Counts the space left in the chunks of the writer threads as dirty once the block is not active anymore, as
+	 * the threads won't allocate from them again.
+	 */
+	void retireChunks() {
+		retired = true;
+		for (Tlab tlab : tlabs) {
+			dirtyStorage.addAndGet(tlab.retire());
+		}
+		tlabs.clear();
+	}
 	
 	
+	/**
+	 * Reserves space for a page of slab slots, which is not counted as used until payloads are stored in the slots.
+	 *
+	 * @param length the length of the page
+	 * @return the offset of the page, or -1 if not enough storage available
+	 */
+	int reserve(int length) {
+		int allocationOffset = currentOffset.addAndGet(length);
+		if (this.capacity < allocationOffset) {
+			return -1;
+		}
+		return allocationOffset - length;
+	}
+
+	/**
+	 * Stores the payload in a slab slot reserved before.
+	 *
+	 * @param position the position of the slot
+	 * @param payload the payload
+	 * @return the pointer
+	 * @throws IOException
+	 */
+	Pointer storeAt(int position, byte[] payload) throws IOException {
+		Pointer pointer = new Pointer(position, payload.length, this, generation.get());
+		underlyingStorage.put(position, payload);
+		unsynced = true;
+		usedStorage.addAndGet(payload.length);
+		return pointer;
+	}
+
+	/**
+	 * Releases the slab slot of a payload, whose space is reused for another payload rather than dirty.
+	 *
+	 * @param pointer the pointer
+	 * @return false if the pointer is stale, so the slot has been released along with the block
+	 */
+	boolean release(Pointer pointer) {
+		if (pointer.getGeneration() != generation.get()) {
+			return false;
+		}
+		usedStorage.addAndGet(-1 * pointer.getLength());
+		return true;
+	}
+
 	/**
 	 * Stores the payload by the help of allocation.
 	 *
 	 * @param allocation the allocation
 	 * @param payload the payload
+	 * @param generation the generation of the block when the storage was allocated
 	 * @return the pointer
 	 * @throws IOException 
 	 */
-	public Pointer store(Allocation allocation, byte[] payload) throws IOException {
-		Pointer pointer = new Pointer(allocation.getOffset(), allocation.getLength(), this);
+	private Pointer store(Allocation allocation, byte[] payload, int generation) throws IOException {
+		Pointer pointer = new Pointer(allocation.getOffset(), allocation.getLength(), this, generation);
+		if (records) {
+			RecordHeader.setGeneration(payload, generation);
+		}
 		underlyingStorage.put(allocation.getOffset(), payload);
+		unsynced = true;
 		usedStorage.addAndGet(payload.length);
 		return pointer;
 	}
 
 	@Override
 	public Pointer update(Pointer pointer, byte[] payload) throws IOException {
-		if (pointer.getLength() >= payload.length) { // has enough space to reuse
-			dirtyStorage.addAndGet(pointer.getLength() - payload.length);
-			usedStorage.addAndGet(-1 * pointer.getLength());
-			Allocation allocation = new Allocation(pointer.getPosition(), payload.length);
-			return store(allocation, payload); // should always return a new pointer
-		} else { // make a move
-			dirtyStorage.addAndGet(pointer.getLength());
-			usedStorage.addAndGet(-1 * pointer.getLength());
-			return store(payload); // may return null because not enough space available
+		return update(pointer, payload, StorageManager.NO_DEADLINE);
+	}
+
+	/**
+	 * Updates the payload, in place if it fits, pushing back the deadline of the block to the one of the new
+	 * payload first. The block is pinned while the payload is written in place, so it is not freed past its old
+	 * deadline, or while the old payload is not counted as used anymore.
+	 *
+	 * @param pointer the pointer of the old payload
+	 * @param payload the new payload
+	 * @param deadline the time the new payload is dead after
+	 * @return the pointer of the new payload, or null if not enough storage available
+	 * @throws IOException
+	 */
+	Pointer update(Pointer pointer, byte[] payload, long deadline) throws IOException {
+		int generation = pointer.getGeneration();
+		if (pointer.getLength() >= payload.length && pin()) {
+			try {
+				if (generation == this.generation.get()) { // has enough space to reuse
+					extendDeadline(deadline);
+					dirtyStorage.addAndGet(pointer.getLength() - payload.length);
+					usedStorage.addAndGet(-1 * pointer.getLength());
+					Allocation allocation = new Allocation(pointer.getPosition(), payload.length);
+					return store(allocation, payload, generation); // should always return a new pointer
+				}
+			} finally {
+				unpin();
+			}
 		}
+		// make a move
+		removeLight(pointer);
+		return store(payload, deadline); // may return null because not enough space available
 	}
 
 	@Override
@@ -150,14 +499,77 @@ public class StorageBlock implements IStorageBlock {
 
 	@Override
 	public void free() {
-		
+		// make the pointers stale before the space is reused
+		int generation = this.generation.incrementAndGet();
+		FreeSpaceMap freeSpace = this.freeSpace;
+		if (freeSpace != null) {
+			freeSpace.clear(generation);
+		}
+		deadline.set(Long.MIN_VALUE);
+		tlabs.clear();
+		retired = false;
 		currentOffset.set(0);
 		dirtyStorage.set(0);
 		usedStorage.set(0);
 		
 		underlyingStorage.free();
+		if (records) {
+			try {
+				// the scan of the recovery stops right away
+				underlyingStorage.put(0, NO_STATE);
+				unsynced = true;
+			} catch (IOException e) {
+				throw new IllegalStateException("failed to invalidate the records of block " + index, e);
+			}
+		}
 	}
 	
+	/**
+	 * The chunk of the block a writer thread allocates from.
+	 */
+	private static class Tlab {
+
+		/** The generation of the block when the chunk was reserved. */
+		private int generation = -1;
+
+		/**
+		 * The end of the chunk in the upper 32 bits and the offset of the next allocation, set to the end once the
+		 * chunk is retired, by the thread or along with the block.
+		 */
+		private final AtomicLong chunk = new AtomicLong();
+
+		/**
+		 * Allocates from the chunk.
+		 *
+		 * @return the offset, or -1 if the payload doesn't fit
+		 */
+		int allocate(int length) {
+			while (true) {
+				long chunk = this.chunk.get();
+				if ((int) (chunk >>> 32) - (int) chunk < length) return -1;
+				if (this.chunk.compareAndSet(chunk, chunk + length)) return (int) chunk;
+			}
+		}
+
+		int left() {
+			long chunk = this.chunk.get();
+			return (int) (chunk >>> 32) - (int) chunk;
+		}
+
+		/**
+		 * Takes the space left in the chunk, only once.
+		 *
+		 * @return the length of the space left
+		 */
+		int retire() {
+			while (true) {
+				long chunk = this.chunk.get();
+				long end = chunk >>> 32;
+				if (this.chunk.compareAndSet(chunk, (end << 32) | end)) return (int) end - (int) chunk;
+			}
+		}
+	}
+
 	/**
 	 * The Class Allocation.
 	 */
@@ -208,6 +620,225 @@ public class StorageBlock implements IStorageBlock {
 		return index;
 	}
 
+	/**
+	 * Gets the generation, which is bumped every time the block is freed.
+	 *
+	 * @return the generation
+	 */
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Gets the time all the payloads of the block are dead after, {@link StorageManager#NO_DEADLINE} if any may
+	 * live on.
+	 *
+	 * @return the deadline
+	 */
+	long getDeadline() {
+		return deadline.get();
+	}
+
+	/**
+	 * Pushes back the deadline of the block to the one of a payload about to be stored in it.
+	 *
+	 * @param deadline the time the payload is dead after
+	 */
+	void extendDeadline(long deadline) {
+		long current;
+		while ((current = this.deadline.get()) < deadline) {
+			if (this.deadline.compareAndSet(current, deadline)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Gets the offset the next payload will be allocated at, or the capacity if the block is full.
+	 *
+	 * @return the offset
+	 */
+	int getOffset() {
+		return Math.min(currentOffset.get(), capacity);
+	}
+
+	/**
+	 * Writes the payloads of the block to its file, see {@link IStorage#persist(String, int, int)}.
+	 *
+	 * @param dir the directory of the files
+	 * @return the file
+	 * @throws IOException
+	 */
+	File persist(String dir) throws IOException {
+		return underlyingStorage.persist(dir, index, getOffset());
+	}
+
+	/**
+	 * Forces the payloads stored so far to the disk, if the block is backed by its file and has been written since
+	 * its last sync. A write racing with the sync leaves the block to be synced again.
+	 *
+	 * @return false if there was nothing to sync
+	 * @throws IOException
+	 */
+	public boolean sync() throws IOException {
+		if (!unsynced) {
+			return false;
+		}
+		unsynced = false;
+		try {
+			underlyingStorage.sync();
+		} catch (IOException e) {
+			unsynced = true;
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Touches the memory of the block, so the first payloads stored do not fault its pages in.
+	 */
+	void touch() {
+		underlyingStorage.touch();
+	}
+
+	void setRecords(boolean records) {
+		this.records = records;
+	}
+
+	/**
+	 * Takes the generation of the first record of a block opened from its file, before its records are scanned.
+	 *
+	 * @return false if the block has no records
+	 * @throws IOException
+	 */
+	boolean recoverGeneration() throws IOException {
+		byte[] bytes = new byte[RecordHeader.SIZE];
+		underlyingStorage.get(0, bytes);
+		RecordHeader header = new RecordHeader(bytes);
+		if (!header.isValid(capacity)) {
+			return false;
+		}
+		generation.set(header.getGeneration());
+		return true;
+	}
+
+	/**
+	 * Sets the state of the block in the last checkpoint before the crash. The records before the offset are
+	 * only those known by the checkpoints if the block has the same generation.
+	 *
+	 * @param generation the generation in the checkpoint
+	 * @param offset the offset in the checkpoint, or -1 to scan all the records
+	 */
+	void setCheckpoint(int generation, int offset) {
+		this.checkpointOffset = generation == this.generation.get() ? offset : -1;
+	}
+
+	/**
+	 * Adds a record known by a checkpoint, if it has the generation of the block.
+	 *
+	 * @param position the position of the record
+	 * @param generation the generation of the record
+	 */
+	void addCheckpointPosition(int position, int generation) {
+		if (generation == this.generation.get()) {
+			checkpointPositions.add(position);
+		}
+	}
+
+	/**
+	 * Forgets the checkpoints, so all the records are scanned.
+	 */
+	void resetCheckpoint() {
+		checkpointOffset = -1;
+		checkpointPositions = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Scans the records of a block opened from its file, from the start up to the first bytes which are not
+	 * a record of the generation of the block. The live records kept by the handler are counted as used,
+	 * and the next payload will be stored after the last record.
+	 *
+	 * If the block has only been appended to since the last checkpoint, the records before its offset in the
+	 * checkpoint are not scanned, and only those known by the checkpoints are read instead.
+	 *
+	 * @param handler the handler of the live records
+	 * @return the highest sequence number of the records kept, or -1 if none
+	 * @throws IOException
+	 */
+	long scan(RecordHandler handler) throws IOException {
+		byte[] bytes = new byte[RecordHeader.SIZE];
+		RecordHeader header = new RecordHeader(bytes);
+		int generation = this.generation.get();
+		long maxSequence = -1;
+		int position = 0;
+		if (checkpointOffset >= 0) {
+			Collections.sort(checkpointPositions);
+			int last = -1;
+			for (int known : checkpointPositions) {
+				if (known >= checkpointOffset || known > capacity - RecordHeader.SIZE) break; // scanned below
+				if (known == last) continue; // in several checkpoints
+				last = known;
+				underlyingStorage.get(known, bytes);
+				// removed or moved since the checkpoint if dead
+				if (header.isValid(capacity - known) && header.getGeneration() == generation && header.isLive()) {
+					maxSequence = Math.max(maxSequence, accept(handler, header, known, generation));
+				}
+			}
+			position = checkpointOffset;
+		}
+		while (position <= capacity - RecordHeader.SIZE) {
+			underlyingStorage.get(position, bytes);
+			if (!header.isValid(capacity - position) || header.getGeneration() != generation) {
+				break; // never written, torn or left from before the block was freed
+			}
+			if (header.isLive()) {
+				maxSequence = Math.max(maxSequence, accept(handler, header, position, generation));
+			}
+			position += header.getLength();
+		}
+		currentOffset.set(position);
+		resetCheckpoint();
+		return maxSequence;
+	}
+
+	/**
+	 * Passes a live record to the handler, and counts it as used if kept.
+	 *
+	 * @return the sequence number of the record if kept, or -1
+	 */
+	private long accept(RecordHandler handler, RecordHeader header, int position, int generation) throws IOException {
+		int length = header.getLength();
+		long sequence = header.getSequence();
+		if (!handler.accept(header, new Pointer(position, length, this, generation))) {
+			return -1;
+		}
+		usedStorage.addAndGet(length);
+		return sequence;
+	}
+
+	/**
+	 * Sets the state of a block opened from its file as it was when persisted.
+	 *
+	 * @param offset the offset
+	 * @param used the used storage
+	 * @param dirty the dirty storage
+	 * @param generation the generation
+	 */
+	void restore(int offset, int used, int dirty, int generation) {
+		this.currentOffset.set(offset);
+		this.usedStorage.set(used);
+		this.dirtyStorage.set(dirty);
+		this.generation.set(generation);
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (this.underlyingStorage != null) {
@@ -1,14 +1,30 @@
 package com.ctriposs.bigcache.storage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.ctriposs.bigcache.CacheConfig.AllocationMode;
 import com.ctriposs.bigcache.CacheConfig.StorageMode;
+import com.ctriposs.bigcache.utils.FileUtil;
 
 /**
  * Managing a list of used/free storage blocks for cache operations like get/put/delete
@@ -33,8 +49,8 @@ public class StorageManager implements IStorageBlock {
 	private final int capacityPerBlock;
 	
 	
-	/** The active storage block change lock. */
-	private final Lock activeBlockChangeLock = new ReentrantLock();
+	/** The active storage block change locks, one per stripe. */
+	private volatile Lock[] activeBlockChangeLocks = { new ReentrantLock() };
 
 	/**
 	 *  A list of used storage blocks
@@ -47,9 +63,15 @@ public class StorageManager implements IStorageBlock {
 	private final Queue<IStorageBlock> freeBlocks = new PriorityBlockingQueue<IStorageBlock>();
 	
 	/**
-	 * Current active block for appending new cache data
+	 * All the blocks created so far, indexed by block index.
 	 */
-	private volatile IStorageBlock activeBlock;
+	private volatile StorageBlock[] blockTable = new StorageBlock[DEFAULT_INITIAL_NUMBER_OF_BLOCKS];
+
+	/**
+	 * Current active blocks for appending new cache data, one per stripe of writer threads, null until a
+	 * writer of the stripe stores
+	 */
+	private volatile AtomicReferenceArray<IStorageBlock> activeBlocks = new AtomicReferenceArray<IStorageBlock>(1);
 
 	/**
 	 * Current storage mode
@@ -61,6 +83,94 @@ public class StorageManager implements IStorageBlock {
 	 */
 	private int allowedOffHeapModeBlockCount;
 
+	/**
+	 * The number of bits of the position in a location, enough for the capacity per block.
+	 */
+	private final int positionBits;
+
+	/**
+	 * The number of blocks addressable by a location.
+	 */
+	private final int maxBlockCount;
+
+	/**
+	 * The number of used blocks beyond which the oldest one is recycled, 0 for unlimited.
+	 */
+	private final int ringBlockCount;
+
+	/**
+	 * Whether the payloads are records starting with a {@link RecordHeader}, so the blocks can be scanned to
+	 * recover from a crash.
+	 */
+	private final boolean records;
+
+	/**
+	 * The blocks opened after a crash, until they are recovered.
+	 */
+	private volatile List<StorageBlock> recoveringBlocks;
+
+	/**
+	 * The number of blocks which have become active so far.
+	 */
+	private final AtomicLong activations = new AtomicLong();
+
+	/**
+	 * The number of free blocks kept ready by the allocator, 0 for none.
+	 */
+	private volatile int preallocatedBlocks;
+
+	/**
+	 * Creates the free blocks in the background, null unless blocks are preallocated.
+	 */
+	private ExecutorService allocator;
+
+	/**
+	 * Whether the allocator is running, so it is triggered only once.
+	 */
+	private final AtomicBoolean allocating = new AtomicBoolean(false);
+
+	/**
+	 * Guards the creation of the blocks, by the writers or the allocator.
+	 */
+	private final Object createLock = new Object();
+
+	private volatile boolean closed;
+
+	/**
+	 * Allocates the payloads in slots of size classes, null unless in slab allocation mode.
+	 */
+	private volatile SlabAllocator slab;
+
+	/**
+	 * Whether the holes left by the payloads removed are reused, in hole reuse allocation mode.
+	 */
+	private volatile boolean holeReuse;
+
+	/**
+	 * The blocks which may have holes, in hole reuse allocation mode.
+	 */
+	private final Queue<StorageBlock> holeyBlocks = new ConcurrentLinkedQueue<StorageBlock>();
+
+	/**
+	 * The blocks with holes tried by a store before appending.
+	 */
+	private static final int HOLE_ATTEMPTS = 4;
+
+	/**
+	 * The number of stripes of the writer threads, each with its own active blocks.
+	 */
+	private volatile int stripeCount = 1;
+
+	/**
+	 * The number of expiry classes, each with its own active blocks, 1 unless in expiry placement.
+	 */
+	private volatile int expiryClasses = 1;
+
+	/**
+	 * The number of bits of the length in a location.
+	 */
+	private static final int LOCATION_LENGTH_BITS = 24;
+
 	/**
 	 * The Constant DEFAULT_CAPACITY_PER_BLOCK.
 	 */
@@ -69,6 +179,24 @@ public class StorageManager implements IStorageBlock {
 	/** The Constant DEFAULT_INITIAL_NUMBER_OF_BLOCKS. */
 	public final static int DEFAULT_INITIAL_NUMBER_OF_BLOCKS = 8; // 1GB total
 
+	/** The Constant DEFAULT_ACTIVE_BLOCK_COUNT. */
+	public final static int DEFAULT_ACTIVE_BLOCK_COUNT = 1;
+
+	/** The Constant DEFAULT_PREALLOCATED_BLOCKS. */
+	public final static int DEFAULT_PREALLOCATED_BLOCKS = 0;
+
+	/** The deadline of the payloads which may live on forever. */
+	public final static long NO_DEADLINE = Long.MAX_VALUE;
+
+	/** The number of expiry classes in expiry placement: never expiring, short, medium and long lived. */
+	public final static int EXPIRY_CLASSES = 4;
+
+	/** The longest lifetime of the short lived payloads, in milliseconds. */
+	public final static long SHORT_LIFETIME = 60 * 1000L; // 1 minute
+
+	/** The longest lifetime of the medium lived payloads, in milliseconds. */
+	public final static long MEDIUM_LIFETIME = 60 * 60 * 1000L; // 1 hour
+
 	/**
 	 * The Constant DEFAULT_MEMORY_SIZE.
 	 */
@@ -76,15 +204,32 @@ public class StorageManager implements IStorageBlock {
 	
 	public StorageManager(String dir, int capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
 			long maxOffHeapMemorySize) throws IOException {
-		
-		if (storageMode != StorageMode.PureFile) {
-			this.allowedOffHeapModeBlockCount = (int)(maxOffHeapMemorySize / capacityPerBlock);
-		} else {
-			this.allowedOffHeapModeBlockCount = 0;
-		}
-		this.storageMode = storageMode;	
-		this.capacityPerBlock = capacityPerBlock;
-		this.dir = dir;
+		this(dir, capacityPerBlock, initialNumberOfBlocks, storageMode, maxOffHeapMemorySize, 0);
+	}
+
+	/**
+	 * Instantiates a new storage manager working as a ring of blocks.
+	 *
+	 * Once the given number of blocks are used, the oldest used block is freed to take new payloads
+	 * instead of creating a new block, and the pointers into it become stale.
+	 *
+	 * @param ringBlockCount the max number of used blocks, 0 for unlimited
+	 */
+	public StorageManager(String dir, int capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
+			long maxOffHeapMemorySize, int ringBlockCount) throws IOException {
+		this(dir, capacityPerBlock, initialNumberOfBlocks, storageMode, maxOffHeapMemorySize, ringBlockCount, false);
+	}
+
+	/**
+	 * Instantiates a new storage manager whose payloads are records starting with a {@link RecordHeader} if
+	 * records is true. The records are never updated in place and marked dead when removed, so the blocks can be
+	 * scanned by {@link #recover(RecordHandler)} after a crash.
+	 *
+	 * @param records whether the payloads are records
+	 */
+	public StorageManager(String dir, int capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
+			long maxOffHeapMemorySize, int ringBlockCount, boolean records) throws IOException {
+		this(dir, capacityPerBlock, storageMode, maxOffHeapMemorySize, ringBlockCount, records);
 			
 		for (int i = 0; i < initialNumberOfBlocks; i++) {
 			IStorageBlock storageBlock = this.createNewBlock(i);
@@ -92,9 +237,323 @@ public class StorageManager implements IStorageBlock {
 		}
 
 		this.blockCount.set(initialNumberOfBlocks);
-		this.activeBlock = freeBlocks.poll();
-		this.usedBlocks.add(this.activeBlock);
+		this.activate(freeBlocks.poll());
+
+	}
+
+	/**
+	 * Instantiates a storage manager with the blocks written by {@link #persist(DataOutput)}, opened again from
+	 * their files. The other data files in the directory are deleted, and the blocks which were free are created
+	 * anew.
+	 *
+	 * @param records whether the payloads are records
+	 * @param in the state of the blocks
+	 */
+	public StorageManager(String dir, int capacityPerBlock, StorageMode storageMode, long maxOffHeapMemorySize,
+			int ringBlockCount, boolean records, DataInput in) throws IOException {
+		this(dir, capacityPerBlock, storageMode, maxOffHeapMemorySize, ringBlockCount, records);
+
+		int blockCount = in.readInt();
+		int usedBlockCount = in.readInt();
+		int[] indexes = new int[usedBlockCount];
+		String[] fileNames = new String[usedBlockCount];
+		int[][] states = new int[usedBlockCount][];
+		Set<String> persistedFileNames = new HashSet<String>();
+		for (int i = 0; i < usedBlockCount; i++) {
+			indexes[i] = in.readInt();
+			fileNames[i] = in.readUTF();
+			states[i] = new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() };
+			persistedFileNames.add(fileNames[i]);
+		}
+		File[] files = new File(dir).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(IStorage.DATA_FILE_SUFFIX) && !persistedFileNames.contains(file.getName())) {
+					FileUtil.deleteFile(file);
+				}
+			}
+		}
+
+		StorageBlock[] blocks = new StorageBlock[usedBlockCount];
+		try {
+			for (int i = 0; i < usedBlockCount; i++) {
+				blocks[i] = this.openBlock(new File(dir, fileNames[i]), indexes[i]);
+				blocks[i].restore(states[i][0], states[i][1], states[i][2], states[i][3]);
+			}
+			for (int i = 0; i < blockCount; i++) {
+				if (i >= this.blockTable.length || this.blockTable[i] == null) {
+					freeBlocks.offer(this.createNewBlock(i));
+				}
+			}
+		} catch (IOException e) {
+			for (StorageBlock block : this.blockTable) {
+				if (block != null) {
+					block.close();
+				}
+			}
+			throw e;
+		}
+		this.blockCount.set(blockCount);
+		if (usedBlockCount == 0) {
+			this.activate(this.nextFreeBlock());
+		}
+		for (StorageBlock block : blocks) {
+			this.activate(block); // the last one used is active again
+		}
+	}
+
+	/**
+	 * Instantiates a storage manager with the blocks of the data files in the directory, whose payloads are records
+	 * starting with a {@link RecordHeader}, after a crash. The blocks must be recovered by
+	 * {@link #recover(RecordHandler)} before any other use.
+	 */
+	public StorageManager(String dir, int capacityPerBlock, StorageMode storageMode, long maxOffHeapMemorySize,
+			int ringBlockCount) throws IOException {
+		this(dir, capacityPerBlock, storageMode, maxOffHeapMemorySize, ringBlockCount, true);
+
+		// the newest file of each block index
+		TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+		File[] dirFiles = new File(dir).listFiles();
+		if (dirFiles != null) {
+			for (File file : dirFiles) {
+				String name = file.getName();
+				if (!name.endsWith(IStorage.DATA_FILE_SUFFIX)) continue;
+				int index;
+				try {
+					index = Integer.parseInt(name.substring(0, Math.max(0, name.indexOf('-'))));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				File other = files.get(index);
+				if (other != null && other.lastModified() > file.lastModified()) {
+					FileUtil.deleteFile(file);
+				} else {
+					if (other != null) {
+						FileUtil.deleteFile(other);
+					}
+					files.put(index, file);
+				}
+			}
+		}
+
+		List<StorageBlock> blocks = new ArrayList<StorageBlock>();
+		try {
+			for (Map.Entry<Integer, File> entry : files.entrySet()) {
+				StorageBlock block = this.openBlock(entry.getValue(), entry.getKey());
+				if (block.recoverGeneration()) {
+					blocks.add(block);
+				} else {
+					block.free(); // no records since it was freed
+					freeBlocks.offer(block);
+				}
+			}
+			int blockCount = files.isEmpty() ? 0 : files.lastKey() + 1;
+			for (int i = 0; i < blockCount; i++) {
+				if (i >= this.blockTable.length || this.blockTable[i] == null) {
+					freeBlocks.offer(this.createNewBlock(i));
+				}
+			}
+			this.blockCount.set(blockCount);
+		} catch (IOException e) {
+			for (StorageBlock block : this.blockTable) {
+				if (block != null) {
+					block.close();
+				}
+			}
+			throw e;
+		}
+		this.recoveringBlocks = blocks;
+	}
+
+	/**
+	 * Scans the blocks opened after a crash in parallel, and passes their live records to the handler. The blocks
+	 * with records kept are used in the order of their newest record, and the others are free.
+	 *
+	 * All the blocks are known by then, so the handler may look up the block of a record found before.
+	 *
+	 * @param handler the handler rebuilding the index
+	 * @return the newest sequence number of the records kept, -1 if none
+	 * @throws IOException if a block fails to be scanned, the blocks are all free then
+	 */
+	public long recover(final RecordHandler handler) throws IOException {
+		final List<StorageBlock> blocks = this.recoveringBlocks();
+		final long[] maxSequences = new long[blocks.size()];
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(blocks.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (final StorageBlock block : blocks) {
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						return block.scan(handler);
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				maxSequences[i] = futures.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.abortRecovery();
+			throw new IOException("interrupted while scanning the blocks", e);
+		} catch (ExecutionException e) {
+			this.abortRecovery();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("failed to scan the blocks", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long maxSequence = -1;
+		List<Integer> used = new ArrayList<Integer>();
+		for (int i = 0; i < blocks.size(); i++) {
+			StorageBlock block = blocks.get(i);
+			if (block.getUsed() > 0) {
+				// the records replaced meanwhile are dirty as well as the dead ones
+				block.restore(block.getOffset(), (int) block.getUsed(), block.getOffset() - (int) block.getUsed(),
+						block.getGeneration());
+				used.add(i);
+				maxSequence = Math.max(maxSequence, maxSequences[i]);
+			} else {
+				block.free();
+				freeBlocks.offer(block);
+			}
+		}
+		Collections.sort(used, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return maxSequences[a] < maxSequences[b] ? -1 : maxSequences[a] == maxSequences[b] ? 0 : 1;
+			}
+		});
+		if (used.isEmpty()) {
+			this.activate(this.nextFreeBlock());
+		}
+		for (int i : used) {
+			this.activate(blocks.get(i)); // the one of the newest record is active again
+		}
+		this.recoveringBlocks = null;
+		return maxSequence;
+	}
+
+	/**
+	 * Writes the generation and the offset of the used blocks for a checkpoint, so the records stored before
+	 * can be skipped by the scan of the recovery if they are known by the checkpoint.
+	 *
+	 * @param out the output
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		List<IStorageBlock> blocks = new ArrayList<IStorageBlock>(this.usedBlocks);
+		out.writeInt(blocks.size());
+		for (IStorageBlock block : blocks) {
+			StorageBlock storageBlock = (StorageBlock) block;
+			out.writeInt(storageBlock.getIndex());
+			// before the offset, so a block freed and used again meanwhile is told by the generation
+			out.writeInt(storageBlock.getGeneration());
+			out.writeInt(storageBlock.getOffset());
+		}
+	}
+
+	/**
+	 * Reads the state of the blocks written by {@link #writeCheckpoint(DataOutput)} before the blocks opened after
+	 * a crash are recovered. The state of the last checkpoint replaces the ones read before.
+	 *
+	 * @param in the input
+	 * @throws IOException
+	 */
+	public void readCheckpoint(DataInput in) throws IOException {
+		int count = in.readInt();
+		int[][] states = new int[count][];
+		for (int i = 0; i < count; i++) {
+			states[i] = new int[] { in.readInt(), in.readInt(), in.readInt() };
+		}
+		for (StorageBlock block : this.recoveringBlocks()) {
+			block.setCheckpoint(0, -1);
+		}
+		for (int[] state : states) {
+			StorageBlock block = this.getRecoveringBlock(state[0]);
+			if (block != null) {
+				block.setCheckpoint(state[1], state[2]);
+			}
+		}
+	}
+
+	/**
+	 * Adds a record known by a checkpoint before the blocks opened after a crash are recovered. It is read
+	 * instead of being scanned, unless its block has been freed since.
+	 *
+	 * @param location the location of the record
+	 * @param generation the generation of the block when the record was stored
+	 */
+	public void addCheckpointRecord(long location, int generation) {
+		int index = (int) (location >>> (this.positionBits + LOCATION_LENGTH_BITS));
+		StorageBlock block = this.getRecoveringBlock(index);
+		if (block != null) {
+			block.addCheckpointPosition((int) ((location >>> LOCATION_LENGTH_BITS) & ((1L << this.positionBits) - 1)),
+					generation);
+		}
+	}
+
+	/**
+	 * Forgets the checkpoints read, so all the records of the blocks opened after a crash are scanned.
+	 */
+	public void resetCheckpoint() {
+		for (StorageBlock block : this.recoveringBlocks()) {
+			block.resetCheckpoint();
+		}
+	}
+
+	private List<StorageBlock> recoveringBlocks() {
+		List<StorageBlock> blocks = this.recoveringBlocks;
+		if (blocks == null) {
+			throw new IllegalStateException("no blocks to recover");
+		}
+		return blocks;
+	}
+
+	private StorageBlock getRecoveringBlock(int index) {
+		if (index >= this.blockTable.length) {
+			return null;
+		}
+		StorageBlock block = this.blockTable[index];
+		return block != null && this.recoveringBlocks().contains(block) ? block : null;
+	}
+
+	/**
+	 * Frees all the blocks opened after a crash, so the storage starts empty.
+	 *
+	 * @throws IOException
+	 */
+	private void abortRecovery() throws IOException {
+		for (StorageBlock block : this.recoveringBlocks) {
+			block.free();
+			freeBlocks.offer(block);
+		}
+		this.recoveringBlocks = null;
+		this.activate(this.nextFreeBlock());
+	}
 
+	private StorageManager(String dir, int capacityPerBlock, StorageMode storageMode, long maxOffHeapMemorySize,
+			int ringBlockCount, boolean records) {
+		if (ringBlockCount != 0 && ringBlockCount < 2) {
+			throw new IllegalArgumentException("ringBlockCount must be 0 or >= 2!");
+		}
+		this.ringBlockCount = ringBlockCount;
+		this.records = records;
+		if (storageMode != StorageMode.PureFile) {
+			this.allowedOffHeapModeBlockCount = (int)(maxOffHeapMemorySize / capacityPerBlock);
+		} else {
+			this.allowedOffHeapModeBlockCount = 0;
+		}
+		this.storageMode = storageMode;	
+		this.capacityPerBlock = capacityPerBlock;
+		this.dir = dir;
+		this.positionBits = 32 - Integer.numberOfLeadingZeros(capacityPerBlock - 1);
+		int blockIndexBits = 64 - LOCATION_LENGTH_BITS - this.positionBits;
+		this.maxBlockCount = blockIndexBits >= 31 ? Integer.MAX_VALUE : 1 << blockIndexBits;
 	}
 
 	@Override
@@ -104,33 +563,108 @@ public class StorageManager implements IStorageBlock {
 
     @Override
 	public byte[] remove(Pointer pointer) throws IOException {
+		if (this.slab != null || this.holeReuse) {
+			byte[] payload = retrieve(pointer);
+			removeLight(pointer);
+			return payload;
+		}
 		return pointer.getStorageBlock().remove(pointer);
 	}
     
 
 	@Override
 	public void removeLight(Pointer pointer) throws IOException {
+		SlabAllocator slab = this.slab;
+		if (slab != null) {
+			StorageBlock block = pointer.getStorageBlock();
+			if (block.release(pointer)) {
+				slab.free(((long) block.getIndex() << 32) | pointer.getPosition(), pointer.getLength());
+			}
+			return;
+		}
 		pointer.getStorageBlock().removeLight(pointer);
+		if (this.holeReuse) {
+			this.offerHoles(pointer.getStorageBlock());
+		}
+	}
+
+	/**
+	 * Queues the block if it has holes and is not queued yet.
+	 */
+	private void offerHoles(StorageBlock block) {
+		if (block.hasHoles() && block.holesQueued.compareAndSet(false, true)) {
+			this.holeyBlocks.offer(block);
+		}
+	}
+
+	/**
+	 * Stores the payload in a hole of one of the blocks with holes.
+	 *
+	 * @return the pointer, or null if none of the blocks tried has a hole fitting
+	 */
+	private Pointer storeInHole(byte[] payload, long deadline) throws IOException {
+		for (int i = 0; i < HOLE_ATTEMPTS; i++) {
+			StorageBlock block = this.holeyBlocks.poll();
+			if (block == null) return null;
+			Pointer pointer = block.storeInHole(payload, deadline);
+			block.holesQueued.set(false);
+			this.offerHoles(block); // queued again at the tail if it has holes left
+			if (pointer != null) return pointer;
+		}
+		return null;
 	}
 
 	@Override
 	public Pointer store(byte[] payload) throws IOException {
-		Pointer pointer = activeBlock.store(payload);
+		return this.store(payload, 0, NO_DEADLINE);
+	}
+
+	/**
+	 * Stores the payload, in the active block of its expiry class in expiry placement.
+	 *
+	 * @param payload the payload
+	 * @param lifetime how long the payload is expected to live in milliseconds, 0 or less if forever
+	 * @param deadline the time the payload is dead after for sure, {@link #NO_DEADLINE} if none
+	 * @return the pointer
+	 * @throws IOException
+	 */
+	public Pointer store(byte[] payload, long lifetime, long deadline) throws IOException {
+		SlabAllocator slab = this.slab;
+		if (slab != null) {
+			long location = slab.allocate(payload.length);
+			return this.getBlock((int) (location >>> 32)).storeAt((int) location, payload);
+		}
+		if (this.holeReuse) {
+			Pointer pointer = this.storeInHole(payload, deadline);
+			if (pointer != null) return pointer;
+		}
+		return this.append(payload, this.activeSlot(lifetime), deadline);
+	}
+
+	/**
+	 * Appends the payload to the active block of a slot.
+	 *
+	 * @param payload the payload
+	 * @param slot the slot of the active block, see {@link #activeSlot(long)}
+	 * @param deadline the time the payload is dead after
+	 * @return the pointer
+	 */
+	private Pointer append(byte[] payload, int slot, long deadline) throws IOException {
+		IStorageBlock activeBlock = activeBlocks.get(slot);
+		Pointer pointer = activeBlock != null ? ((StorageBlock) activeBlock).store(payload, deadline) : null;
 		if (pointer != null) return pointer; // success
 		else { // overflow
+			Lock activeBlockChangeLock = activeBlockChangeLocks[slot];
 			activeBlockChangeLock.lock(); 
 			try {
 				// other thread may have changed the active block
-				pointer = activeBlock.store(payload);
+				activeBlock = activeBlocks.get(slot);
+				pointer = activeBlock != null ? ((StorageBlock) activeBlock).store(payload, deadline) : null;
 				if (pointer != null) return pointer; // success
 				else { // still overflow
-					IStorageBlock freeBlock = this.freeBlocks.poll();
-					if (freeBlock == null) { // create a new one
-						freeBlock = this.createNewBlock(this.blockCount.getAndIncrement());
-					}
-					pointer = freeBlock.store(payload);
-					this.activeBlock = freeBlock;
-					this.usedBlocks.add(this.activeBlock);
+					IStorageBlock freeBlock = this.nextFreeBlock();
+					pointer = ((StorageBlock) freeBlock).store(payload, deadline);
+					this.activate(slot, freeBlock);
 					return pointer;
 				}
 				
@@ -140,6 +674,72 @@ public class StorageManager implements IStorageBlock {
 		}
 	}
 	
+	/**
+	 * Reserves a page of slab slots in the active block of the stripe of the current thread.
+	 *
+	 * @param length the length of the page, at most the capacity of a block
+	 * @return the location of the page, laid out as the block index in the upper 32 bits and the position
+	 * @throws IOException
+	 */
+	long reserve(int length) throws IOException {
+		int stripe = this.stripe();
+		StorageBlock activeBlock = (StorageBlock) activeBlocks.get(stripe);
+		int position = activeBlock != null ? activeBlock.reserve(length) : -1;
+		if (position < 0) {
+			Lock activeBlockChangeLock = activeBlockChangeLocks[stripe];
+			activeBlockChangeLock.lock();
+			try {
+				// other thread may have changed the active block
+				activeBlock = (StorageBlock) activeBlocks.get(stripe);
+				position = activeBlock != null ? activeBlock.reserve(length) : -1;
+				if (position < 0) { // the rest of the block is left unused
+					activeBlock = (StorageBlock) this.nextFreeBlock();
+					position = activeBlock.reserve(length);
+					this.activate(stripe, activeBlock);
+				}
+			} finally {
+				activeBlockChangeLock.unlock();
+			}
+		}
+		return ((long) activeBlock.getIndex() << 32) | position;
+	}
+
+	/**
+	 * Sets how the payloads are allocated in the blocks. In slab allocation mode the payloads are stored in slots
+	 * of size classes, and the slot of a payload removed or moved is reused for the next payload of the class,
+	 * so the blocks never get dirty. The blocks are never cleaned either, and the slack of the slots is lost.
+	 *
+	 * In hole reuse allocation mode the payloads are appended, but stored in the holes left by the payloads
+	 * removed first, so the blocks get dirty much slower. The payloads moved by the merger are still appended.
+	 *
+	 * It should be called before anything is stored, and slab allocation works neither in ring mode nor with
+	 * records.
+	 *
+	 * @param allocationMode the allocation mode
+	 */
+	public synchronized void setAllocationMode(AllocationMode allocationMode) {
+		if (allocationMode != AllocationMode.Append && (this.ringBlockCount > 0 || this.records)) {
+			throw new IllegalArgumentException(allocationMode + " allocation works neither in ring mode nor with records!");
+		}
+		if (allocationMode == AllocationMode.Slab) {
+			if (this.slab == null) {
+				this.slab = new SlabAllocator(this, this.capacityPerBlock);
+			}
+		} else {
+			this.slab = null;
+		}
+		if (allocationMode == AllocationMode.HoleReuse) {
+			for (StorageBlock block : this.blockTable) {
+				if (block != null) {
+					block.enableHoleReuse();
+				}
+			}
+			this.holeReuse = true; // after the blocks, a new one is enabled when created
+		} else {
+			this.holeReuse = false;
+		}
+	}
+
 	/**
 	 * Stores the payload to the free storage block excluding the given block.
 	 *
@@ -148,31 +748,329 @@ public class StorageManager implements IStorageBlock {
 	 * @return the pointer
 	 */
 	public Pointer storeExcluding(byte[] payload, StorageBlock exludingBlock) throws IOException {
-		while (this.activeBlock == exludingBlock) {
+		return this.storeExcluding(payload, exludingBlock, 0, NO_DEADLINE);
+	}
+
+	/**
+	 * Stores the payload to the free storage block excluding the given block, in the active block of its expiry
+	 * class in expiry placement.
+	 *
+	 * @param payload the payload
+	 * @param exludingBlock the storage block to be excluded
+	 * @param lifetime how long the payload is expected to live in milliseconds, 0 or less if forever
+	 * @param deadline the time the payload is dead after for sure, {@link #NO_DEADLINE} if none
+	 * @return the pointer
+	 */
+	public Pointer storeExcluding(byte[] payload, StorageBlock exludingBlock, long lifetime, long deadline) throws IOException {
+		if (this.slab != null) {
+			return store(payload);
+		}
+		int slot = this.activeSlot(lifetime);
+		while (this.activeBlocks.get(slot) == exludingBlock) {
+			Lock activeBlockChangeLock = activeBlockChangeLocks[slot];
 			activeBlockChangeLock.lock(); 
 			try {
 				// other thread may have changed the active block
-				if (this.activeBlock != exludingBlock) break;
-				IStorageBlock freeBlock = this.freeBlocks.poll();
-				if (freeBlock == null) {
-					freeBlock = this.createNewBlock(this.blockCount.getAndIncrement());
-				}
-				this.activeBlock = freeBlock;
-				this.usedBlocks.add(this.activeBlock);
+				if (this.activeBlocks.get(slot) != exludingBlock) break;
+				this.activate(slot, this.nextFreeBlock());
 			} finally {
 				activeBlockChangeLock.unlock();
 			}
 		}
-		return store(payload);
+		return append(payload, slot, deadline); // not into the holes of the block
+	}
+
+	/**
+	 * Sets the number of active blocks, so the writer threads are spread over several blocks and roll them over
+	 * independently instead of all appending to the same one. The threads are striped by their ids, and the
+	 * active block of a stripe is taken when a writer of the stripe first stores.
+	 *
+	 * It should be called before anything is stored. In ring mode, the ring should have more blocks.
+	 *
+	 * @param activeBlockCount the number of active blocks
+	 */
+	public synchronized void setActiveBlockCount(int activeBlockCount) {
+		if (activeBlockCount <= 0) {
+			throw new IllegalArgumentException("activeBlockCount must be > 0!");
+		}
+		if (this.ringBlockCount > 0 && this.ringBlockCount <= activeBlockCount) {
+			throw new IllegalArgumentException("ringBlockCount must be > activeBlockCount!");
+		}
+		this.resizeActiveBlocks(activeBlockCount, this.expiryClasses);
+	}
+
+	/**
+	 * Sets expiry placement, so the payloads are appended to separate active blocks by how long they are expected
+	 * to live: forever, up to {@link #SHORT_LIFETIME}, up to {@link #MEDIUM_LIFETIME}, or longer. The payloads of
+	 * a block then tend to die together, so the block gets empty or wholly past its deadline, and is freed by
+	 * {@link #clean(long)} without moving anything out of it. Each stripe has an active block per expiry class.
+	 *
+	 * It should be called before anything is stored, and works neither in ring mode nor in slab allocation mode.
+	 *
+	 * @param expiryPlacement true to place the payloads by expiry class
+	 */
+	public synchronized void setExpiryPlacement(boolean expiryPlacement) {
+		if (expiryPlacement && (this.ringBlockCount > 0 || this.slab != null)) {
+			throw new IllegalArgumentException("expiry placement works neither in ring mode nor in slab allocation mode!");
+		}
+		this.resizeActiveBlocks(this.stripeCount, expiryPlacement ? EXPIRY_CLASSES : 1);
+	}
+
+	/**
+	 * Lays out the active blocks by expiry class then by stripe, keeping the active blocks of the classes and
+	 * stripes still there.
+	 */
+	private void resizeActiveBlocks(int stripeCount, int expiryClasses) {
+		AtomicReferenceArray<IStorageBlock> activeBlocks = new AtomicReferenceArray<IStorageBlock>(stripeCount * expiryClasses);
+		Lock[] activeBlockChangeLocks = new Lock[activeBlocks.length()];
+		for (int expiryClass = 0; expiryClass < expiryClasses; expiryClass++) {
+			for (int stripe = 0; stripe < stripeCount; stripe++) {
+				if (expiryClass < this.expiryClasses && stripe < this.stripeCount) {
+					activeBlocks.set(expiryClass * stripeCount + stripe,
+							this.activeBlocks.get(expiryClass * this.stripeCount + stripe));
+				}
+				activeBlockChangeLocks[expiryClass * stripeCount + stripe] = new ReentrantLock();
+			}
+		}
+		this.activeBlockChangeLocks = activeBlockChangeLocks;
+		this.activeBlocks = activeBlocks;
+		this.stripeCount = stripeCount;
+		this.expiryClasses = expiryClasses;
+	}
+
+	/**
+	 * Gets the number of active blocks.
+	 *
+	 * @return the number of stripes
+	 */
+	public int getActiveBlockCount() {
+		return this.stripeCount;
+	}
+
+	/**
+	 * Checks if the payloads are placed by expiry class.
+	 *
+	 * @return true if in expiry placement
+	 */
+	public boolean isExpiryPlacement() {
+		return this.expiryClasses > 1;
+	}
+
+	private int stripe() {
+		return (int) (Thread.currentThread().getId() % this.stripeCount);
+	}
+
+	/**
+	 * Gets the expiry class of a payload, see {@link #setExpiryPlacement(boolean)}.
+	 *
+	 * @param lifetime how long the payload is expected to live in milliseconds, 0 or less if forever
+	 * @return the expiry class, 0 for the payloads never expiring
+	 */
+	static int expiryClassOf(long lifetime) {
+		if (lifetime <= 0) return 0;
+		if (lifetime <= SHORT_LIFETIME) return 1;
+		if (lifetime <= MEDIUM_LIFETIME) return 2;
+		return 3;
+	}
+
+	/**
+	 * Gets the slot of the active block a payload is appended to by the current thread.
+	 */
+	private int activeSlot(long lifetime) {
+		int stripeCount = this.stripeCount;
+		int stripe = (int) (Thread.currentThread().getId() % stripeCount);
+		return this.expiryClasses > 1 ? expiryClassOf(lifetime) * stripeCount + stripe : stripe;
+	}
+
+	/**
+	 * Checks if the block is the active block of any stripe.
+	 */
+	private boolean isActive(IStorageBlock block) {
+		AtomicReferenceArray<IStorageBlock> activeBlocks = this.activeBlocks;
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			if (activeBlocks.get(i) == block) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a free block for the active block, which is the oldest used block in ring mode once the ring is full,
+	 * but an active block of another stripe. Called with the active block change lock held.
+	 *
+	 * @return the free block
+	 */
+	private IStorageBlock nextFreeBlock() throws IOException {
+		if (this.ringBlockCount > 0 && this.usedBlocks.size() >= this.ringBlockCount) {
+			synchronized (this) { // not to race with clean
+				for (IStorageBlock oldestBlock : this.usedBlocks) {
+					StorageBlock block = (StorageBlock) oldestBlock;
+					if (!this.isActive(block) && block.lockFree()) {
+						try {
+							if (this.usedBlocks.remove(block)) {
+								block.free();
+								return block;
+							}
+						} finally {
+							block.unlockFree();
+						}
+					}
+				}
+			}
+		}
+		IStorageBlock freeBlock = this.freeBlocks.poll();
+		if (freeBlock == null) { // create a new one
+			synchronized (this.createLock) {
+				freeBlock = this.freeBlocks.poll(); // unless the allocator has just made one ready
+				if (freeBlock == null) {
+					freeBlock = this.createNewBlock();
+				}
+			}
+		}
+		this.preallocate();
+		return freeBlock;
+	}
+
+	/**
+	 * Keeps the given number of free blocks ready, created and touched by a background thread whenever a free
+	 * block is taken, so a block rollover does not wait for the file or the memory of a new block. In ring mode
+	 * no more blocks than the ring are created.
+	 *
+	 * @param preallocatedBlocks the number of free blocks, 0 for none
+	 */
+	public synchronized void setPreallocatedBlocks(int preallocatedBlocks) {
+		if (preallocatedBlocks < 0) {
+			throw new IllegalArgumentException("preallocatedBlocks must be >= 0!");
+		}
+		if (preallocatedBlocks > 0 && this.allocator == null && !this.closed) {
+			this.allocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bigcache-block-allocator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.preallocatedBlocks = preallocatedBlocks;
+		this.preallocate();
+	}
+
+	/**
+	 * Triggers the allocator if there are fewer free blocks than wanted.
+	 */
+	private void preallocate() {
+		if (!this.needsFreeBlock() || !this.allocating.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.allocator.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							synchronized (createLock) {
+								if (!needsFreeBlock()) break;
+								StorageBlock block = (StorageBlock) createNewBlock();
+								block.touch();
+								freeBlocks.offer(block);
+							}
+						}
+					} catch (IOException e) {
+						// out of blocks, the writers will fail creating one themselves
+					} finally {
+						allocating.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.allocating.set(false); // closed
+		}
+	}
+
+	private boolean needsFreeBlock() {
+		if (this.closed || this.freeBlocks.size() >= this.preallocatedBlocks) {
+			return false;
+		}
+		return this.ringBlockCount == 0 || this.blockCount.get() < this.ringBlockCount;
+	}
+
+	/**
+	 * Makes the block the active block of the first stripe.
+	 *
+	 * @param block the block
+	 */
+	private void activate(IStorageBlock block) {
+		this.activate(0, block);
+	}
+
+	/**
+	 * Makes the block the active block of the stripe.
+	 *
+	 * @param stripe the stripe
+	 * @param block the block
+	 */
+	private void activate(int stripe, IStorageBlock block) {
+		((StorageBlock) block).setSequence(this.activations.getAndIncrement());
+		IStorageBlock previous = this.activeBlocks.getAndSet(stripe, block);
+		if (previous != null && previous != block) {
+			((StorageBlock) previous).retireChunks();
+		}
+		this.usedBlocks.add(block);
+	}
+
+	/**
+	 * Checks if the block is in the oldest quarter of the ring, so it is going to be recycled soon.
+	 *
+	 * @param block the block
+	 * @return true if the payloads in the block should be moved to keep them, always false unless in ring mode
+	 */
+	public boolean isNearRecycling(StorageBlock block) {
+		if (this.ringBlockCount == 0) return false;
+		return this.activations.get() - block.getSequence() > this.ringBlockCount - Math.max(1, this.ringBlockCount / 4);
 	}
 
 	@Override
 	public Pointer update(Pointer pointer, byte[] payload) throws IOException {
-		Pointer updatePointer = pointer.getStorageBlock().update(pointer, payload);
+		return this.update(pointer, payload, 0, NO_DEADLINE);
+	}
+
+	/**
+	 * Updates the payload, in place if it fits unless in expiry placement, where the payload is stored in the
+	 * active block of its expiry class.
+	 *
+	 * @param pointer the pointer of the old payload
+	 * @param payload the new payload
+	 * @param lifetime how long the payload is expected to live in milliseconds, 0 or less if forever
+	 * @param deadline the time the payload is dead after for sure, {@link #NO_DEADLINE} if none
+	 * @return the pointer of the new payload
+	 * @throws IOException
+	 */
+	public Pointer update(Pointer pointer, byte[] payload, long lifetime, long deadline) throws IOException {
+		SlabAllocator slab = this.slab;
+		if (slab != null) {
+			StorageBlock block = pointer.getStorageBlock();
+			if (slab.classOf(pointer.getLength()) == slab.classOf(payload.length) && block.release(pointer)) {
+				return block.storeAt(pointer.getPosition(), payload); // in the same slot
+			}
+			removeLight(pointer);
+			return store(payload);
+		}
+		if (this.ringBlockCount > 0 || this.records) {
+			// the block of the pointer may be recycled meanwhile, never write into it, and the records
+			// should stay one after the other to be scanned
+			pointer.getStorageBlock().removeLight(pointer);
+			return store(payload, lifetime, deadline);
+		}
+		if (this.expiryClasses > 1 || this.holeReuse && pointer.getLength() < payload.length) {
+			// the old payload leaves a hole, the new one may fit in another, or should go with its expiry class
+			removeLight(pointer);
+			return store(payload, lifetime, deadline);
+		}
+		Pointer updatePointer = pointer.getStorageBlock().update(pointer, payload, deadline);
 		if (updatePointer != null) {
 			return updatePointer;
 		}
-		return store(payload);
+		return store(payload, lifetime, deadline);
 	}
 
 	@Override
@@ -223,43 +1121,268 @@ public class StorageManager implements IStorageBlock {
 			this.freeBlocks.offer(storageBlock);
 		}
 		usedBlocks.clear();
-		this.activeBlock = freeBlocks.poll();
-		this.usedBlocks.add(this.activeBlock);
+		if (this.slab != null) {
+			this.slab.clear();
+		}
+		for (StorageBlock block : this.holeyBlocks) {
+			block.holesQueued.set(false);
+		}
+		this.holeyBlocks.clear();
+		for (int i = 1; i < this.activeBlocks.length(); i++) {
+			this.activeBlocks.set(i, null); // taken again when stored to
+		}
+		this.activate(freeBlocks.poll());
+	}
+
+	/**
+	 * Creates a block with the next index.
+	 */
+	private IStorageBlock createNewBlock() throws IOException {
+		synchronized (this.createLock) {
+			IStorageBlock block = this.createNewBlock(this.blockCount.get());
+			this.blockCount.incrementAndGet();
+			return block;
+		}
 	}
 
 	private IStorageBlock createNewBlock(int index) throws IOException {
+		synchronized (this.createLock) {
+			if (index >= this.maxBlockCount) {
+				throw new IOException("Can't create more than " + this.maxBlockCount + " storage blocks!");
+			}
+			StorageBlock block;
+			if (this.allowedOffHeapModeBlockCount > 0) {
+				block = new StorageBlock(this.dir, index, this.capacityPerBlock, this.storageMode);
+				this.allowedOffHeapModeBlockCount--;
+			} else {
+				block = new StorageBlock(this.dir, index, this.capacityPerBlock, StorageMode.PureFile);
+			}
+			block.setRecords(this.records);
+			if (this.holeReuse) {
+				block.enableHoleReuse();
+			}
+			register(block);
+			return block;
+		}
+	}
+
+	/**
+	 * Opens a block from its persisted file, in the storage mode a new block of the index would be created in.
+	 */
+	private StorageBlock openBlock(File file, int index) throws IOException {
+		if (index >= this.maxBlockCount) {
+			throw new IOException("Can't create more than " + this.maxBlockCount + " storage blocks!");
+		}
+		if (!file.isFile()) {
+			throw new IOException("Missing storage block file: " + file);
+		}
+		StorageBlock block;
 		if (this.allowedOffHeapModeBlockCount > 0) {
-			IStorageBlock block = new StorageBlock(this.dir, index, this.capacityPerBlock, this.storageMode);
+			block = new StorageBlock(file, index, this.capacityPerBlock, this.storageMode);
 			this.allowedOffHeapModeBlockCount--;
-			return block;
 		} else {
-			return new StorageBlock(this.dir, index, this.capacityPerBlock, StorageMode.PureFile);
+			block = new StorageBlock(file, index, this.capacityPerBlock, StorageMode.PureFile);
+		}
+		block.setRecords(this.records);
+		register(block);
+		return block;
+	}
+
+	/**
+	 * Writes the payloads of the used blocks to their files, and the state of the blocks to the output in the
+	 * order they were used, see {@link #StorageManager(String, int, StorageMode, long, int, DataInput)}.
+	 *
+	 * Nothing should be stored meanwhile, and the blocks should be closed afterwards.
+	 *
+	 * @param out the output
+	 * @throws IOException
+	 */
+	public void persist(DataOutput out) throws IOException {
+		out.writeInt(this.blockCount.get());
+		List<IStorageBlock> blocks = new ArrayList<IStorageBlock>(this.usedBlocks);
+		out.writeInt(blocks.size());
+		for (IStorageBlock block : blocks) {
+			StorageBlock storageBlock = (StorageBlock) block;
+			storageBlock.retireChunks(); // not to be allocated from once loaded back
+			File file = storageBlock.persist(this.dir);
+			out.writeInt(storageBlock.getIndex());
+			out.writeUTF(file.getName());
+			out.writeInt(storageBlock.getOffset());
+			out.writeInt((int) storageBlock.getUsed());
+			out.writeInt((int) storageBlock.getDirty());
+			out.writeInt(storageBlock.getGeneration());
+		}
+	}
+
+	/**
+	 * Forces the payloads stored so far to the disk, only in the blocks written since the last sync, which are
+	 * mostly the active ones.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		for (StorageBlock block : this.blockTable) {
+			if (block != null) {
+				block.sync();
+			}
+		}
+	}
+
+	/**
+	 * Gets the capacity of each block, which the locations depend on.
+	 *
+	 * @return the capacity per block
+	 */
+	public int getCapacityPerBlock() {
+		return this.capacityPerBlock;
+	}
+
+	/**
+	 * Adds the block to the block table, only called when creating blocks.
+	 *
+	 * @param block the new block
+	 */
+	private void register(StorageBlock block) {
+		StorageBlock[] table = this.blockTable;
+		if (block.getIndex() >= table.length) {
+			table = Arrays.copyOf(table, Math.max(table.length * 2, block.getIndex() + 1));
 		}
+		table[block.getIndex()] = block;
+		this.blockTable = table; // publish
+	}
+
+	/**
+	 * Gets the block by its index.
+	 *
+	 * @param index the index of the block
+	 * @return the storage block
+	 */
+	public StorageBlock getBlock(int index) {
+		return this.blockTable[index];
+	}
+
+	/**
+	 * Packs the pointer into a long, laid out as the block index, the position and the length
+	 * from the high bits to the low bits.
+	 *
+	 * The bits of the position depend on the capacity per block, and the block index takes the
+	 * remaining bits, so up to 2^40 bytes of storage are addressable.
+	 *
+	 * @param pointer the pointer
+	 * @return the location
+	 */
+	public long toLocation(Pointer pointer) {
+		if (pointer.getLength() >>> LOCATION_LENGTH_BITS != 0) {
+			throw new IllegalArgumentException("length of the payload must be < 2^" + LOCATION_LENGTH_BITS + "!");
+		}
+		return ((long) pointer.getStorageBlock().getIndex() << (this.positionBits + LOCATION_LENGTH_BITS))
+				| ((long) pointer.getPosition() << LOCATION_LENGTH_BITS)
+				| pointer.getLength();
+	}
+
+	/**
+	 * Gets the index of the block of a location.
+	 *
+	 * @param location the location
+	 * @return the block index
+	 */
+	public int toBlockIndex(long location) {
+		return (int) (location >>> (this.positionBits + LOCATION_LENGTH_BITS));
+	}
+
+	/**
+	 * Unpacks the location into a pointer to the current generation of the block, with the block looked
+	 * up from the block table.
+	 *
+	 * @param location the location
+	 * @return the pointer
+	 */
+	public Pointer toPointer(long location) {
+		Pointer pointer = toPointer(location, 0);
+		return new Pointer(pointer.getPosition(), pointer.getLength(), pointer.getStorageBlock());
+	}
+
+	/**
+	 * Unpacks the location into a pointer, with the block looked up from the block table.
+	 *
+	 * @param location the location
+	 * @param generation the generation of the block when the payload was stored
+	 * @return the pointer
+	 */
+	public Pointer toPointer(long location, int generation) {
+		int length = (int) (location & ((1L << LOCATION_LENGTH_BITS) - 1));
+		int position = (int) ((location >>> LOCATION_LENGTH_BITS) & ((1L << this.positionBits) - 1));
+		return new Pointer(position, length, this.getBlock(toBlockIndex(location)), generation);
 	}
 
     // only run by one thread.
     public void clean() {
+        this.clean(Long.MIN_VALUE);
+    }
+
+	/**
+	 * Frees the blocks nothing is stored in anymore, and the blocks whose payloads are all dead by now, so the
+	 * entries of the payloads left in them get stale. Only run by one thread.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+    public void clean(long now) {
+        if (this.slab != null) {
+            return; // the free slots of the blocks are in use by the slab allocator
+        }
         synchronized (this) {
             Iterator<IStorageBlock> it = usedBlocks.iterator();
             while(it.hasNext()) {
                 IStorageBlock storageBlock = it.next();
-                if (storageBlock == activeBlock) {
+                if (isActive(storageBlock)) {
                     // let active block be cleaned in the next run
                     continue;
                 }
 
-                if (storageBlock.getUsed() == 0) {
-                    // we will not allocating memory from it any more and it is used by nobody.
-                    storageBlock.free();
-                    freeBlocks.add(storageBlock);
-                    it.remove();
+                StorageBlock block = (StorageBlock) storageBlock;
+                if (isDead(block, now) && block.lockFree()) {
+                    boolean freed = false;
+                    try {
+                        // checked again with the writers out, a payload may have been stored meanwhile
+                        if (isDead(block, now)) {
+                            // we will not allocating memory from it any more and it is used by nobody.
+                            block.free();
+                            it.remove();
+                            freed = true;
+                        }
+                    } finally {
+                        block.unlockFree();
+                    }
+                    if (freed) {
+                        freeBlocks.add(block); // only once the writers may store into it
+                    }
                 }
             }
         }
     }
 
+	/**
+	 * Checks if nothing is stored in the block anymore, or all its payloads are dead by now.
+	 */
+	private static boolean isDead(StorageBlock block, long now) {
+		return block.getUsed() == 0 || block.getDeadline() < now;
+	}
+
 	@Override
 	public void close() throws IOException {
+		ExecutorService allocator;
+		synchronized (this) {
+			this.closed = true;
+			allocator = this.allocator;
+		}
+		if (allocator != null) {
+			allocator.shutdown(); // no interrupt, it would close the channel of the block being created
+			try {
+				allocator.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		for(IStorageBlock usedBlock : usedBlocks) {
 			usedBlock.close();
 		}
@@ -268,6 +1391,13 @@ public class StorageManager implements IStorageBlock {
 			freeBlock.close();
 		}
         freeBlocks.clear();
+		List<StorageBlock> blocks = recoveringBlocks;
+		if (blocks != null) {
+			for (StorageBlock block : blocks) {
+				block.close();
+			}
+			recoveringBlocks = null;
+		}
 	}
 
 	@Override
@@ -287,6 +1417,15 @@ public class StorageManager implements IStorageBlock {
 	public int getUsedBlockCount() {
 		return this.usedBlocks.size();
 	}
+
+	/**
+	 * Gets the blocks in use, with the active ones.
+	 *
+	 * @return a copy of the used blocks
+	 */
+	public List<IStorageBlock> getUsedBlocks() {
+		return new ArrayList<IStorageBlock>(this.usedBlocks);
+	}
 	
 	public int getTotalBlockCount() {
 		return this.getAllInUsedBlocks().size();
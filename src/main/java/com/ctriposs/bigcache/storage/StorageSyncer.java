@@ -0,0 +1,196 @@
+package com.ctriposs.bigcache.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ctriposs.bigcache.CacheConfig.Durability;
+
+/**
+ * Forces the writes to the storage blocks to the disk, every sync interval in Periodic durability and as soon as
+ * writers are waiting in GroupCommit durability.
+ *
+ * The writers count their writes by {@link #commit()} once done. In GroupCommit durability they wake the sync
+ * thread and wait there for the next sync. The writes committed while a sync is running are forced by the next
+ * one, so the writers arriving together are acknowledged together, without waiting for a tick on an idle cache.
+ * The writers should not hold any lock while waiting.
+ */
+public class StorageSyncer implements Closeable {
+
+	private final StorageManager storageManager;
+
+	private final Durability durability;
+
+	private final ScheduledExecutorService executor;
+
+	/** The number of writes committed so far. */
+	private final AtomicLong writes = new AtomicLong();
+
+	/** The number of syncs so far. */
+	private final AtomicLong syncs = new AtomicLong();
+
+	/** Only one sync at a time. */
+	private final Object syncLock = new Object();
+
+	/** The number of writes forced to the disk so far, guarded by this. */
+	private long synced;
+
+	/** The failure of the last sync, thrown to the writers it was for, guarded by this. */
+	private IOException failure;
+
+	/** The number of writes the failed sync was for, guarded by this. */
+	private long failed;
+
+	/** Guarded by this. */
+	private boolean closed;
+
+	/** Stops the sync thread. */
+	private volatile boolean stopping;
+
+	/** The sync thread woken by the writers in GroupCommit durability, null until started. */
+	private volatile Thread syncThread;
+
+	/**
+	 * @param storageManager the storage manager
+	 * @param durability Periodic or GroupCommit
+	 * @param syncInterval the interval between two syncs in milliseconds, in Periodic durability
+	 */
+	public StorageSyncer(StorageManager storageManager, Durability durability, long syncInterval) {
+		if (durability == Durability.None) {
+			throw new IllegalArgumentException("durability must be Periodic or GroupCommit!");
+		}
+		this.storageManager = storageManager;
+		this.durability = durability;
+		this.executor = Executors.newSingleThreadScheduledExecutor();
+		if (durability == Durability.GroupCommit) {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					syncThread = Thread.currentThread();
+					while (!stopping) {
+						try {
+							sync();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						LockSupport.park(StorageSyncer.this); // until the next commit
+					}
+				}
+			});
+			return;
+		}
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts a write done, and waits until it is forced to the disk in GroupCommit durability.
+	 *
+	 * @throws IOException if the sync failed or the syncer is closed
+	 */
+	public void commit() throws IOException {
+		long write = writes.incrementAndGet();
+		if (durability != Durability.GroupCommit) {
+			return;
+		}
+		Thread thread = syncThread;
+		if (thread != null) {
+			LockSupport.unpark(thread); // else the write is synced once the thread starts
+		}
+		synchronized (this) {
+			while (synced < write) {
+				if (failure != null && failed >= write) {
+					throw new IOException("failed to sync the storage", failure);
+				}
+				if (closed) {
+					throw new IOException("the storage syncer is closed");
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the sync");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces the writes committed so far to the disk, unless none since the last sync.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		synchronized (syncLock) {
+			long write = writes.get(); // the writes counted are done already
+			synchronized (this) {
+				if (synced >= write) {
+					return;
+				}
+			}
+			try {
+				storageManager.sync();
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					failed = write;
+					notifyAll();
+				}
+				throw e;
+			}
+			syncs.incrementAndGet();
+			synchronized (this) {
+				synced = write;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of syncs so far.
+	 *
+	 * @return the sync count
+	 */
+	public long getSyncCount() {
+		return syncs.get();
+	}
+
+	/**
+	 * Stops the syncs after a last one, the writers still waiting fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		stopping = true;
+		Thread thread = syncThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		executor.shutdown(); // not to interrupt a sync, which closes the file channels
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			sync();
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+}
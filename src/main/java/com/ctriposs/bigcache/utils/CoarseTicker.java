@@ -0,0 +1,78 @@
+package com.ctriposs.bigcache.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ticker which caches the time and refreshes it in a background thread, so reading it is
+ * no more than reading a volatile field. The time read lags behind by up to the resolution.
+ */
+public class CoarseTicker extends Ticker implements Closeable {
+
+	private final Ticker source;
+
+	private final ScheduledExecutorService ses;
+
+	private volatile long now;
+
+	/**
+	 * Instantiates a coarse ticker of the system time.
+	 *
+	 * @param resolution the refresh interval in milliseconds
+	 */
+	public CoarseTicker(long resolution) {
+		this(Ticker.systemTicker(), resolution);
+	}
+
+	/**
+	 * Instantiates a coarse ticker.
+	 *
+	 * @param source the ticker to read the time from
+	 * @param resolution the refresh interval in milliseconds
+	 */
+	public CoarseTicker(Ticker source, long resolution) {
+		if (resolution <= 0) {
+			throw new IllegalArgumentException("resolution must be > 0!");
+		}
+		this.source = source;
+		this.now = source.read();
+		this.ses = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bigcache-coarse-ticker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.ses.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, resolution, resolution, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long read() {
+		return now;
+	}
+
+	/**
+	 * Refreshes the time, never going back.
+	 */
+	void tick() {
+		long time = source.read();
+		if (time > now) {
+			now = time;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		ses.shutdownNow();
+	}
+}
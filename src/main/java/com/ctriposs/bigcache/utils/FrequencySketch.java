@@ -0,0 +1,132 @@
+package com.ctriposs.bigcache.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often the keys were accessed recently, the frequency filter of TinyLFU.
+ *
+ * Each long packs 16 counters of 4 bits, and a key is counted in 4 of them picked by different hashes. The
+ * counters are halved once the number of increments reaches 10 times the capacity, so the old accesses fade
+ * out. The counters are updated with CAS, increments racing with the aging or a resize may be lost.
+ */
+public class FrequencySketch {
+
+	/** The max value of a counter. */
+	public static final int MAX_FREQUENCY = 15;
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+
+	/** Keeps the lower 3 bits of each counter after a shift. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/** The increments between two agings, per counter. */
+	private static final int SAMPLE_FACTOR = 10;
+
+	private static final int MAX_TABLE_LENGTH = 1 << 30;
+
+	private volatile AtomicLongArray table;
+
+	private volatile int sampleSize;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param capacity the number of keys expected to be counted
+	 */
+	public FrequencySketch(long capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Grows the sketch to count the given number of keys, all the counts are lost if it grows.
+	 *
+	 * @param capacity the number of keys expected to be counted
+	 */
+	public void ensureCapacity(long capacity) {
+		int length = 16;
+		while (length < capacity && length < MAX_TABLE_LENGTH) {
+			length <<= 1;
+		}
+		AtomicLongArray current = table;
+		if (current != null && current.length() >= length) {
+			return;
+		}
+		table = new AtomicLongArray(length);
+		sampleSize = SAMPLE_FACTOR * length;
+		size.set(0);
+	}
+
+	/**
+	 * Estimates how often the key was accessed, which is at most {@link #MAX_FREQUENCY}.
+	 *
+	 * @param hash the hash of the key
+	 * @return the frequency
+	 */
+	public int frequency(long hash) {
+		AtomicLongArray t = table;
+		long h = HashUtil.mix(hash);
+		int start = (int) (h & 3) << 2;
+		int frequency = MAX_FREQUENCY;
+		for (int i = 0; i < 4; i++) {
+			long value = t.get(indexOf(t, h, i));
+			int count = (int) (value >>> ((start + i) << 2)) & 0xf;
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Counts an access of the key.
+	 *
+	 * @param hash the hash of the key
+	 */
+	public void increment(long hash) {
+		AtomicLongArray t = table;
+		long h = HashUtil.mix(hash);
+		int start = (int) (h & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(t, indexOf(t, h, i), start + i);
+		}
+		if (added && size.incrementAndGet() == sampleSize) {
+			reset(t); // only the thread reaching the sample size ages the counters
+		}
+	}
+
+	private static int indexOf(AtomicLongArray t, long h, int i) {
+		long hash = (h + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return (int) hash & (t.length() - 1);
+	}
+
+	private static boolean incrementAt(AtomicLongArray t, int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+		while (true) {
+			long value = t.get(index);
+			if ((value & mask) == mask) {
+				return false; // saturated
+			}
+			if (t.compareAndSet(index, value, value + (1L << offset))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Halves all the counters.
+	 */
+	private void reset(AtomicLongArray t) {
+		size.addAndGet(-(sampleSize >>> 1));
+		for (int i = 0; i < t.length(); i++) {
+			while (true) {
+				long value = t.get(i);
+				if (t.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) {
+					break;
+				}
+			}
+		}
+	}
+}
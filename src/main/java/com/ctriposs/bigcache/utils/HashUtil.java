@@ -0,0 +1,89 @@
+package com.ctriposs.bigcache.utils;
+
+/**
+ * 64 bits hashing used to fingerprint cache keys.
+ */
+public class HashUtil {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Computes the 64 bits fingerprint of a cache key.
+	 *
+	 * Integral numbers are used as they are, so they never collide. Strings and byte arrays are hashed
+	 * over their content. Any other type falls back to its 32 bits hash code, so distinct keys of such a
+	 * type are much more likely to share a fingerprint, which is fine for the frequency estimates but not
+	 * to identify the keys: the offheap index only takes them when the keys are stored along.
+	 *
+	 * @param key the key
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(Object key) {
+		if (isExact(key)) {
+			return ((Number) key).longValue();
+		}
+		if (key instanceof String) {
+			return hash((String) key);
+		}
+		if (key instanceof byte[]) {
+			return hash((byte[]) key);
+		}
+		return mix(key.hashCode());
+	}
+
+	/**
+	 * Checks if the fingerprint of the key is the key itself, so no other key of the type shares it.
+	 *
+	 * @param key the key
+	 * @return true for the integral numbers
+	 */
+	public static boolean isExact(Object key) {
+		return key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte;
+	}
+
+	/**
+	 * Hashes the characters of a string into 64 bits.
+	 *
+	 * @param s the string
+	 * @return the hash
+	 */
+	public static long hash(String s) {
+		long h = FNV_OFFSET_BASIS;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Hashes a byte array into 64 bits.
+	 *
+	 * @param bytes the bytes
+	 * @return the hash
+	 */
+	public static long hash(byte[] bytes) {
+		long h = FNV_OFFSET_BASIS;
+		for (int i = 0; i < bytes.length; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Spreads the bits of a value, the finalizer of MurmurHash3.
+	 *
+	 * @param h the value
+	 * @return the mixed value
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,172 @@
+package com.ctriposs.bigcache.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import sun.misc.Unsafe;
+
+/**
+ * The reference bits of the CLOCK eviction, a bit array in offheap memory addressed by the hashes of the keys.
+ *
+ * The bits are shared by the keys of the same hash bucket, so a key may look referenced because of another
+ * one; the owner keeps the aliasing low by growing the array with the number of keys, see {@link #ensureSize(long)}.
+ * They are set and cleared with plain stores of the word, without any lock or CAS: an update racing with
+ * another one of the same word, or with a growth, may be lost, which only makes the eviction a little less accurate.
+ */
+public class ReferenceBits implements Closeable {
+
+	private static final Unsafe UNSAFE = UnsafeUtil.getUnsafe();
+
+	/** The current words, null once closed. */
+	private volatile Words words;
+
+	/**
+	 * The words replaced by a growth, freed on close only since a lock-free update may still be writing them.
+	 * They take less memory than the current words all together, the sizes doubling at least.
+	 */
+	private final List<Words> retired = new ArrayList<Words>();
+
+	private final AtomicBoolean disposed = new AtomicBoolean(false);
+
+	/**
+	 * @param size the number of bits, rounded up to a power of 2 and at least 64
+	 */
+	public ReferenceBits(long size) {
+		long bits = 64;
+		while (bits < size) {
+			bits <<= 1;
+		}
+		this.words = new Words(bits);
+	}
+
+	/**
+	 * A word array and its mask, published together so that an update never mixes the mask of one array with
+	 * the address of another.
+	 */
+	private static final class Words {
+
+		/** The base address of the words. */
+		final long address;
+
+		/** The number of bits minus 1, the number of bits is a power of 2. */
+		final long mask;
+
+		Words(long bits) {
+			long bytes = bits >>> 3;
+			this.address = UNSAFE.allocateMemory(bytes);
+			UNSAFE.setMemory(address, bytes, (byte) 0);
+			this.mask = bits - 1;
+		}
+
+		long wordAddress(long hash) {
+			return address + (((HashUtil.mix(hash) & mask) >>> 6) << 3);
+		}
+
+		long flag(long hash) {
+			return 1L << (HashUtil.mix(hash) & mask & 63);
+		}
+	}
+
+	/**
+	 * Marks the key as referenced, which is a single store unless it is marked already.
+	 *
+	 * @param hash the hash of the key
+	 */
+	public void set(long hash) {
+		Words words = this.words;
+		if (words == null) return; // closed
+		long wordAddress = words.wordAddress(hash);
+		long word = UNSAFE.getLong(wordAddress);
+		long flag = words.flag(hash);
+		if ((word & flag) == 0) {
+			UNSAFE.putLong(wordAddress, word | flag);
+		}
+	}
+
+	/**
+	 * Clears the reference mark of the key, giving it a second chance if it was marked.
+	 *
+	 * @param hash the hash of the key
+	 * @return true if the key was marked
+	 */
+	public boolean clear(long hash) {
+		Words words = this.words;
+		if (words == null) return false; // closed
+		long wordAddress = words.wordAddress(hash);
+		long word = UNSAFE.getLong(wordAddress);
+		long flag = words.flag(hash);
+		if ((word & flag) == 0) {
+			return false;
+		}
+		UNSAFE.putLong(wordAddress, word & ~flag);
+		return true;
+	}
+
+	/**
+	 * Checks if the key is marked as referenced.
+	 *
+	 * @param hash the hash of the key
+	 * @return true if marked
+	 */
+	public boolean get(long hash) {
+		Words words = this.words;
+		if (words == null) return false; // closed
+		return (UNSAFE.getLong(words.wordAddress(hash)) & words.flag(hash)) != 0;
+	}
+
+	/**
+	 * Gets the number of bits.
+	 *
+	 * @return the size, 0 once closed
+	 */
+	public long size() {
+		Words words = this.words;
+		return words == null ? 0 : words.mask + 1;
+	}
+
+	/**
+	 * Grows the bits to at least the given size, keeping the marks: a key marked before is marked after.
+	 * Cheap when the bits are large enough already, so it may be called on every insertion.
+	 *
+	 * @param size the number of bits needed
+	 */
+	public void ensureSize(long size) {
+		Words words = this.words;
+		if (words == null || words.mask >= size - 1) return;
+		synchronized (this) {
+			words = this.words;
+			if (words == null || words.mask >= size - 1) return;
+			long oldBits = words.mask + 1;
+			long bits = oldBits;
+			while (bits < size) {
+				bits <<= 1;
+			}
+			Words grown = new Words(bits);
+			// the bit of a key in the larger array keeps its low bits, so repeating the old words marks every key
+			long oldBytes = oldBits >>> 3;
+			for (long offset = 0; offset < bits >>> 3; offset += oldBytes) {
+				UNSAFE.copyMemory(words.address, grown.address + offset, oldBytes);
+			}
+			retired.add(words);
+			this.words = grown;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!disposed.compareAndSet(false, true))
+			return;
+		synchronized (this) {
+			Words words = this.words;
+			this.words = null;
+			UNSAFE.freeMemory(words.address);
+			for (Words old : retired) {
+				UNSAFE.freeMemory(old.address);
+			}
+			retired.clear();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.ctriposs.bigcache.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * Turns cache keys into bytes, so they can be stored along with the values.
+ */
+public class SerializationUtil {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Serializes a key.
+	 *
+	 * Strings are encoded in UTF-8 and byte arrays are taken as they are, any other key should be
+	 * {@link Serializable}.
+	 *
+	 * @param key the key
+	 * @return the bytes
+	 */
+	public static byte[] toBytes(Object key) {
+		if (key instanceof String) {
+			return ((String) key).getBytes(UTF_8);
+		}
+		if (key instanceof byte[]) {
+			return (byte[]) key;
+		}
+		if (key instanceof Serializable) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				ObjectOutputStream out = new ObjectOutputStream(bos);
+				out.writeObject(key);
+				out.close();
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Fail to serialize key : " + key, e);
+			}
+			return bos.toByteArray();
+		}
+		throw new IllegalArgumentException("key must be a String, byte[] or Serializable!");
+	}
+}
@@ -0,0 +1,60 @@
+package com.ctriposs.bigcache.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over cells picked by the thread id, so threads updating it concurrently rarely
+ * hit the same cache line. The cells are only summed up when the counter is read.
+ */
+public class StripedCounter {
+
+	/** The number of cells, a power of 2 no less than the number of processors. */
+	private static final int CELLS;
+
+	/** The distance between two cells, so each cell sits in its own cache line(including the adjacent one). */
+	private static final int CELL_STRIDE = 16;
+
+	static {
+		int cells = 1;
+		while (cells < Runtime.getRuntime().availableProcessors() && cells < 64) {
+			cells <<= 1;
+		}
+		CELLS = cells;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * CELL_STRIDE);
+
+	private static int cellIndex() {
+		return ((int) HashUtil.mix(Thread.currentThread().getId()) & (CELLS - 1)) * CELL_STRIDE;
+	}
+
+	public void increment() {
+		cells.incrementAndGet(cellIndex());
+	}
+
+	public void add(long delta) {
+		cells.addAndGet(cellIndex(), delta);
+	}
+
+	/**
+	 * Sums up the cells, which is not an atomic snapshot while the counter is being updated.
+	 *
+	 * @return the sum
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++) {
+			sum += cells.get(i * CELL_STRIDE);
+		}
+		return sum;
+	}
+
+	/**
+	 * Resets the cells to 0, updates made meanwhile may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < CELLS; i++) {
+			cells.set(i * CELL_STRIDE, 0);
+		}
+	}
+}
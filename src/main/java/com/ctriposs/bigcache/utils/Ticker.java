@@ -0,0 +1,30 @@
+package com.ctriposs.bigcache.utils;
+
+/**
+ * A source of the current time in milliseconds, which can be replaced by a cheaper or a fake one.
+ */
+public abstract class Ticker {
+
+	private static final Ticker SYSTEM_TICKER = new Ticker() {
+		@Override
+		public long read() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Reads the current time.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public abstract long read();
+
+	/**
+	 * Gets the ticker backed by {@link System#currentTimeMillis()}.
+	 *
+	 * @return the system ticker
+	 */
+	public static Ticker systemTicker() {
+		return SYSTEM_TICKER;
+	}
+}
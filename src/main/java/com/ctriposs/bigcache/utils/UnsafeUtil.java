@@ -0,0 +1,32 @@
+package com.ctriposs.bigcache.utils;
+
+import java.lang.reflect.Field;
+
+import sun.misc.Unsafe;
+
+/**
+ * Gives access to {@link sun.misc.Unsafe} for the offheap structures of the cache.
+ */
+public class UnsafeUtil {
+
+	private static final Unsafe UNSAFE = loadUnsafe();
+
+	private static Unsafe loadUnsafe() {
+		try {
+			Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			return (sun.misc.Unsafe) unsafeField.get(null);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Gets the shared Unsafe instance.
+	 *
+	 * @return the unsafe
+	 */
+	public static Unsafe getUnsafe() {
+		return UNSAFE;
+	}
+}
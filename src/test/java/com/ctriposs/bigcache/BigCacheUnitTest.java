@@ -4,8 +4,10 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Test;
@@ -14,9 +16,14 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.ctriposs.bigcache.CacheConfig.AllocationMode;
+import com.ctriposs.bigcache.CacheConfig.Durability;
+import com.ctriposs.bigcache.CacheConfig.EvictionPolicy;
+import com.ctriposs.bigcache.CacheConfig.IndexMode;
 import com.ctriposs.bigcache.CacheConfig.StorageMode;
 import com.ctriposs.bigcache.utils.FileUtil;
 import com.ctriposs.bigcache.utils.TestUtil;
+import com.ctriposs.bigcache.utils.Ticker;
 
 @RunWith(Parameterized.class)
 public class BigCacheUnitTest {
@@ -27,17 +34,26 @@ public class BigCacheUnitTest {
 	@Parameter(value = 0)
 	public StorageMode storageMode;
 
+	@Parameter(value = 1)
+	public IndexMode indexMode;
+
 	@Parameters
-	public static Collection<StorageMode[]> data() throws IOException {
-		StorageMode[][] data = { { StorageMode.PureFile },
-				{ StorageMode.MemoryMappedPlusFile },
-				{ StorageMode.OffHeapPlusFile } };
+	public static Collection<Object[]> data() throws IOException {
+		Object[][] data = { { StorageMode.PureFile, IndexMode.OnHeap },
+				{ StorageMode.MemoryMappedPlusFile, IndexMode.OnHeap },
+				{ StorageMode.OffHeapPlusFile, IndexMode.OnHeap },
+				{ StorageMode.PureFile, IndexMode.OffHeap },
+				{ StorageMode.MemoryMappedPlusFile, IndexMode.OffHeap },
+				{ StorageMode.OffHeapPlusFile, IndexMode.OffHeap },
+				{ StorageMode.PureFile, IndexMode.OffHeapPlusKey },
+				{ StorageMode.MemoryMappedPlusFile, IndexMode.OffHeapPlusKey },
+				{ StorageMode.OffHeapPlusFile, IndexMode.OffHeapPlusKey } };
 		return Arrays.asList(data);
 	}
 
 	public BigCache<Integer> cache6() throws IOException {
 		CacheConfig config = new CacheConfig();
-		config.setStorageMode(storageMode);
+		config.setStorageMode(storageMode).setIndexMode(indexMode);
 		BigCache<Integer> cache = new BigCache<Integer>(TEST_DIR, config);
 		cache.put(0, "A".getBytes());
 		cache.put(1, "B".getBytes());
@@ -89,10 +105,993 @@ public class BigCacheUnitTest {
 		assertFalse(cache.contains(6));
 	}
 
+	@Test
+	public void testCount() throws IOException {
+		cache = cache6();
+		assertEquals(6, cache.count());
+		cache.put(0, "W".getBytes());
+		assertEquals(6, cache.count());
+		cache.delete(0);
+		assertEquals(5, cache.count());
+		cache.clear();
+		assertEquals(0, cache.count());
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void testStringKey() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode);
+		BigCache<String> stringCache = new BigCache<String>(TEST_DIR + "string/", config);
+		try {
+			String longKey = TestUtil.randomString(1024);
+			stringCache.put(longKey, "A".getBytes());
+			stringCache.put("", "B".getBytes());
+			assertEquals("A", new String(stringCache.get(longKey)));
+			assertEquals("B", new String(stringCache.get("")));
+			assertTrue(stringCache.contains(longKey));
+			assertEquals("A", new String(stringCache.delete(longKey)));
+			assertNull(stringCache.get(longKey));
+		} finally {
+			stringCache.close();
+		}
+	}
+
+	@Test
+	public void testKeyCollision() throws IOException {
+		if (indexMode != IndexMode.OffHeapPlusKey) {
+			return; // keys sharing a fingerprint are taken as the same key in the other modes
+		}
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode);
+		BigCache<CollidingKey> collidingCache = new BigCache<CollidingKey>(TEST_DIR + "colliding/", config);
+		try {
+			CollidingKey a = new CollidingKey("a");
+			CollidingKey b = new CollidingKey("b");
+			collidingCache.put(a, "A".getBytes());
+			// the other key is a miss rather than the value of the key sharing its fingerprint
+			assertNull(collidingCache.get(b));
+			assertFalse(collidingCache.contains(b));
+			assertNull(collidingCache.delete(b));
+			assertEquals("A", new String(collidingCache.get(a)));
+
+			// and takes the place of the colliding key when put
+			collidingCache.put(b, "B".getBytes());
+			assertEquals("B", new String(collidingCache.get(b)));
+			assertNull(collidingCache.get(a));
+			assertEquals(1, collidingCache.count());
+		} finally {
+			collidingCache.close();
+		}
+	}
+
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void testKeyTypes() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode);
+		BigCache anyCache = new BigCache<Object>(TEST_DIR + "any/", config);
+		try {
+			anyCache.put(5, "A".getBytes());
+			anyCache.put("5", "B".getBytes());
+			try {
+				anyCache.put(5L, "C".getBytes());
+				assertEquals(IndexMode.OnHeap, indexMode);
+			} catch (IllegalArgumentException e) {
+				// an Integer and a Long of the same value share their fingerprint
+				assertNotEquals(IndexMode.OnHeap, indexMode);
+				assertEquals("A", new String(anyCache.get(5)));
+			}
+			try {
+				anyCache.put(new CollidingKey("a"), "D".getBytes());
+				assertNotEquals(IndexMode.OffHeap, indexMode);
+			} catch (IllegalArgumentException e) {
+				// only fingerprinted by their 32 bits hash code
+				assertEquals(IndexMode.OffHeap, indexMode);
+			}
+			assertEquals("B", new String(anyCache.get("5")));
+		} finally {
+			anyCache.close();
+		}
+	}
+
+	@Test
+	public void testStats() throws IOException {
+		cache = cache6();
+		cache.get(0);
+		cache.get(6);
+		cache.delete(1);
+		BigCacheStats stats = cache.getStats();
+		assertEquals(1, stats.getCacheHit());
+		assertEquals(1, stats.getCacheMiss());
+		assertEquals(2, stats.getCacheGet());
+		assertEquals(6, stats.getCachePut());
+		assertEquals(1, stats.getCacheDelete());
+		assertEquals(5, stats.getCacheTotalEntries());
+		assertEquals(0.5, cache.hitRatio(), 1e-6);
+		cache.close();
+
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setStatsEnabled(false);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		cache.put(0, "A".getBytes());
+		assertEquals("A", new String(cache.get(0)));
+		stats = cache.getStats();
+		assertEquals(0, stats.getCacheHit());
+		assertEquals(0, stats.getCacheGet());
+		assertEquals(0, stats.getCachePut());
+		assertEquals(1, stats.getCacheTotalEntries()); // not a counter
+	}
+
+	@Test
+	public void testTicker() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		cache.put(0, "A".getBytes(), 1000);
+		ticker.time += 1000;
+		assertEquals("A", new String(cache.get(0)));
+		ticker.time += 1000;
+		assertEquals("A", new String(cache.get(0)));
+		ticker.time += 1001;
+		assertNull(cache.get(0));
+	}
+
+	@Test
+	public void testPurgeExpired() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		for (int i = 0; i < 300; i++) {
+			cache.put(i, "A".getBytes(), i < 100 ? 1000 : i < 200 ? 60 * 1000 : 0);
+		}
+		ticker.time += 500;
+		for (int i = 0; i < 50; i++) {
+			assertNotNull(cache.get(i));
+		}
+		long used = cache.getStats().getStorageUsed();
+
+		// only the ones not accessed meanwhile
+		ticker.time += 600;
+		cache.purgeExpired();
+		assertEquals(250, cache.count());
+		assertEquals(50, cache.getStats().getCacheExpire());
+		assertTrue(cache.getStats().getStorageUsed() < used);
+		ticker.time += 1000;
+		cache.purgeExpired();
+		assertEquals(200, cache.count());
+		for (int i = 100; i < 300; i++) {
+			assertNotNull(cache.get(i));
+		}
+
+		// put again with a shorter time to idle
+		cache.put(100, "B".getBytes(), 1000);
+		ticker.time += 1001;
+		cache.purgeExpired();
+		assertEquals(199, cache.count());
+		ticker.time += 60 * 1000;
+		cache.purgeExpired();
+		assertEquals(100, cache.count());
+		assertEquals(200, cache.getStats().getCacheExpire());
+	}
+
+	@Test
+	public void testTimeToLive() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		cache.putWithTimeToLive(0, "A".getBytes(), 1000, -1);
+		cache.putWithTimeToLive(1, "B".getBytes(), 1000, 500);
+		cache.putWithTimeToLive(2, "C".getBytes(), 1000, 5000);
+		cache.put(3, "D".getBytes(), 500);
+		// read again and again, but expired once the time to live has elapsed since the put
+		for (int i = 0; i < 4; i++) {
+			ticker.time += 250;
+			assertEquals("A", new String(cache.get(0)));
+			assertEquals("B", new String(cache.get(1)));
+			assertEquals("C", new String(cache.get(2)));
+		}
+		assertNull(cache.get(3));
+		ticker.time += 1;
+		assertNull(cache.get(0));
+		assertNull(cache.get(1));
+		assertNull(cache.get(2));
+		cache.purgeExpired();
+		assertEquals(0, cache.count());
+		assertEquals(4, cache.getStats().getCacheExpire());
+
+		// the time to live starts over on every put, and goes away with a put without one
+		cache.putWithTimeToLive(0, "E".getBytes(), 1000, -1);
+		ticker.time += 600;
+		cache.putWithTimeToLive(0, "F".getBytes(), 1000, -1);
+		ticker.time += 600;
+		assertEquals("F", new String(cache.get(0)));
+		cache.put(0, "G".getBytes());
+		ticker.time += 2000;
+		cache.purgeExpired();
+		assertEquals("G", new String(cache.get(0)));
+	}
+
+	@Test
+	public void testBlockKeysOfFreedBlock() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[1024 * 1024];
+		for (int i = 0; i < 20; i++) {
+			cache.put(i, value); // over two blocks
+		}
+		for (int i = 0; i < 19; i++) {
+			cache.delete(i);
+		}
+		assertTrue(cache.blockKeys.isListed(0));
+
+		// the first block is empty, and its keys are dropped once it is freed
+		cache.clean();
+		assertEquals(0, cache.storageManager.getBlock(0).getUsed());
+		assertFalse(cache.blockKeys.isListed(0));
+		assertTrue(cache.blockKeys.isListed(1));
+		assertNotNull(cache.get(19));
+	}
+
+	@Test
+	public void testMergeEmptyValue() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		cache.put(100, new byte[0]); // at the start of the first block
+		byte[] value = new byte[1024 * 1024];
+		for (int i = 0; i < 20; i++) {
+			cache.put(i, value); // over two blocks
+		}
+		for (int i = 0; i < 20; i++) {
+			cache.delete(i);
+		}
+
+		// the empty value is moved out of the dirty block like any other before the block is freed
+		new BigCache.CacheMerger<Integer>(cache).process(cache);
+		assertEquals(1, cache.getStats().getCacheMove());
+		cache.clean();
+		assertEquals(1, cache.storageManager.getBlock(0).getGeneration());
+		assertArrayEquals(new byte[0], cache.get(100));
+	}
+
+	@Test
+	public void testTimeToLivePlacement() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker).setExpiryPlacement(true)
+				.setCapacityPerBlock(16 * 1024 * 1024);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		cache.put(100, "A".getBytes());
+		long used = cache.getStats().getStorageUsed();
+		byte[] value = new byte[1024 * 1024];
+		for (int i = 0; i < 20; i++) {
+			cache.putWithTimeToLive(i, value, 1000, -1); // over two blocks of their own
+		}
+		int usedBlockCount = cache.storageManager.getUsedBlockCount();
+
+		// the full block is freed as a whole once past its deadline, and its values are purged
+		ticker.time += 1001;
+		cache.storageManager.clean(ticker.read());
+		assertEquals(usedBlockCount - 1, cache.storageManager.getUsedBlockCount());
+		cache.purgeExpired();
+		assertEquals(1, cache.count());
+		assertEquals(20, cache.getStats().getCacheExpire());
+		assertEquals(used, cache.getStats().getStorageUsed());
+		assertEquals("A", new String(cache.get(100)));
+	}
+
+	@Test
+	public void testAccessTimeGranularity() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker).setAccessTimeGranularity(100);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		cache.put(0, "A".getBytes(), 1000);
+		ticker.time += 99;
+		assertEquals("A", new String(cache.get(0))); // within the granularity, not touched
+		ticker.time += 902;
+		assertNull(cache.get(0));
+
+		cache.put(1, "B".getBytes(), 1000);
+		ticker.time += 100;
+		assertEquals("B", new String(cache.get(1))); // touched
+		ticker.time += 1000;
+		assertEquals("B", new String(cache.get(1)));
+	}
+
+	@Test
+	public void testMaxEntries() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setTicker(ticker).setMaxEntries(50);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		for (int i = 0; i < 50; i++) {
+			ticker.time++;
+			cache.put(i, String.valueOf(i).getBytes());
+		}
+		assertEquals(50, cache.count());
+		// keep every 5th key hot
+		ticker.time += 1000;
+		for (int i = 0; i < 50; i += 5) {
+			assertNotNull(cache.get(i));
+		}
+		for (int i = 50; i < 90; i++) {
+			ticker.time++;
+			cache.put(i, String.valueOf(i).getBytes());
+		}
+		assertEquals(50, cache.count());
+		assertEquals(40, cache.getStats().getCacheEvict());
+
+		int hot = 0;
+		for (int i = 0; i < 50; i += 5) {
+			if (cache.contains(i)) hot++;
+		}
+		// sampled, so only approximately least recently used
+		assertTrue(hot >= 8);
+	}
+
+	@Test
+	public void testMaxStorageSize() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setMaxStorageSize(50 * 1024);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[1024];
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, value);
+			assertTrue(cache.getStats().getCacheTotalEntries() <= 50);
+		}
+		assertTrue(cache.count() >= 40);
+		assertTrue(cache.getStats().getCacheEvict() >= 950);
+		assertNotNull(cache.get(999)); // the latest one is kept
+	}
+
+	@Test
+	public void testWTinyLFUResistsScans() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setMaxEntries(100)
+				.setEvictionPolicy(EvictionPolicy.WTinyLFU);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		for (int i = 0; i < 50; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 50; i++) {
+				assertNotNull(cache.get(i));
+			}
+		}
+		// keys accessed once, which would flush the hot ones out of an LRU cache as there are more
+		// than 100 distinct keys between two accesses of a hot one
+		for (int i = 1000; i < 3000; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+			if (i % 2 == 0) {
+				cache.get(i / 2 % 50);
+			}
+		}
+		assertEquals(100, cache.count());
+
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.contains(i)) hot++;
+		}
+		assertTrue(hot >= 45);
+	}
+
+	@Test
+	public void testGDSFKeepsSmallHotEntries() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setMaxStorageSize(4 * 1024 * 1024)
+				.setEvictionPolicy(EvictionPolicy.GDSF);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		for (int i = 0; i < 50; i++) {
+			cache.put(i * 10, new byte[100]);
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 50; i++) {
+				assertNotNull(cache.get(i * 10));
+			}
+		}
+		// an expensive large entry
+		cache.put(5000, new byte[64 * 1024], -1, 1000000);
+		// large entries accessed once, an LRU cache would evict the small ones as they are idle
+		// their keys are spread so the samples of the internal map, taken in hash order, mix both sizes
+		for (int i = 1; i <= 500; i++) {
+			cache.put(i * 7919, new byte[64 * 1024]);
+		}
+		assertTrue(cache.getStats().getCacheEvict() > 400);
+
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.contains(i * 10)) hot++;
+		}
+		// the sampled entries may all be small ones now and then
+		assertTrue(hot >= 45);
+		assertTrue(cache.contains(5000));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCost() throws IOException {
+		cache = cache6();
+		cache.put(6, "G".getBytes(), -1, 0);
+	}
+
+	@Test
+	public void testClock() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setMaxEntries(100)
+				.setEvictionPolicy(EvictionPolicy.CLOCK);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		for (int i = 0; i < 100; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+		}
+		// the hot keys are referenced again before the hand comes back
+		for (int i = 1000; i < 3000; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+			if (i % 10 == 0) {
+				for (int j = 0; j < 50; j++) {
+					cache.get(j);
+				}
+			}
+		}
+		assertEquals(100, cache.count());
+		assertEquals(2000, cache.getStats().getCacheEvict());
+
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.contains(i)) hot++;
+		}
+		assertTrue(hot >= 45);
+		assertFalse(cache.contains(50));
+	}
+
+	@Test
+	public void testClockGrowth() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setMaxEntries(4000)
+				.setInitialIndexCapacity(256).setEvictionPolicy(EvictionPolicy.CLOCK);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		// far more entries than the bits at first, so they would share them without a growth
+		for (int i = 0; i < 4000; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+		}
+		for (int i = 10000; i < 18000; i++) {
+			cache.put(i, String.valueOf(i).getBytes());
+			if (i % 20 == 0) {
+				for (int j = 0; j < 200; j++) {
+					cache.get(j);
+				}
+			}
+		}
+		assertEquals(4000, cache.count());
+
+		int hot = 0;
+		for (int i = 0; i < 200; i++) {
+			if (cache.contains(i)) hot++;
+		}
+		assertTrue(hot >= 190);
+		int cold = 0;
+		for (int i = 200; i < 4000; i++) {
+			if (cache.contains(i)) cold++;
+		}
+		assertTrue(cold < 40);
+	}
+
+	@Test
+	public void testPersistentKeys() throws Exception {
+		if (indexMode != IndexMode.OnHeap) {
+			return; // the keys are not serialized, or only as they are put
+		}
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setPersistent(true);
+		BigCache<Object> objectCache = new BigCache<Object>(TEST_DIR + "objects/", config);
+		try {
+			try {
+				objectCache.put(new Object(), "A".getBytes());
+				fail();
+			} catch (IllegalArgumentException e) {
+				// would fail the snapshot on close
+			}
+			objectCache.put("a", "A".getBytes());
+			assertEquals(1, objectCache.count());
+		} finally {
+			objectCache.close();
+		}
+		objectCache = new BigCache<Object>(TEST_DIR + "objects/", config);
+		try {
+			assertEquals("A", new String(objectCache.get("a")));
+		} finally {
+			objectCache.close();
+		}
+	}
+
+	@Test
+	public void testPersistent() throws Exception {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setPersistent(true);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		byte[] value = new byte[10 * 1024];
+		for (int i = 0; i < 5000; i++) { // across several blocks
+			value[0] = (byte) i;
+			cache.put(i, value);
+		}
+		cache.delete(0);
+		cache.putWithTimeToLive(1, "W".getBytes(), 60 * 60 * 1000, -1, 3);
+		long storageUsed = cache.getStats().getStorageUsed();
+		cache.put(5000, "X".getBytes(), 1);
+		cache.putWithTimeToLive(5001, "V".getBytes(), 1, 60 * 1000);
+		Thread.sleep(10);
+		cache.close();
+
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		assertEquals(4999, cache.count());
+		assertEquals(storageUsed, cache.getStats().getStorageUsed()); // the expired entries are dropped
+		assertNull(cache.get(0));
+		assertEquals("W", new String(cache.get(1)));
+		assertNull(cache.get(5000));
+		assertNull(cache.get(5001));
+		for (int i = 2; i < 5000; i++) {
+			byte[] loaded = cache.get(i);
+			assertEquals(value.length, loaded.length);
+			assertEquals((byte) i, loaded[0]);
+		}
+		// still works
+		cache.put(5001, "Y".getBytes());
+		cache.put(2, "Z".getBytes());
+		assertEquals("Y", new String(cache.get(5001)));
+		assertEquals("Z", new String(cache.get(2)));
+		cache.close();
+
+		// reloaded once only, unless closed again
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		assertEquals(5000, cache.count());
+		assertEquals("Z", new String(cache.get(2)));
+		cache.close();
+
+		// the locations depend on the capacity per block, start empty
+		config.setCapacityPerBlock(32 * 1024 * 1024);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		assertEquals(0, cache.count());
+		assertNull(cache.get(2));
+	}
+
+	@Test
+	public void testCrashRecovery() throws Exception {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setCrashRecovery(true);
+		if (storageMode != StorageMode.PureFile || indexMode == IndexMode.OnHeap) {
+			try {
+				new BigCache<Integer>(TEST_DIR, config);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// only PureFile with an offheap index
+			}
+			return;
+		}
+		BigCache<Integer> crashed = new BigCache<Integer>(TEST_DIR, config);
+		BigCache<Integer> recovered = null;
+		try {
+			byte[] value = new byte[10 * 1024];
+			for (int i = 0; i < 5000; i++) { // across several blocks
+				value[0] = (byte) i;
+				crashed.put(i, value);
+			}
+			crashed.delete(0);
+			crashed.putWithTimeToLive(1, "W".getBytes(), 60 * 60 * 1000, -1, 3);
+			long storageUsed = crashed.getStats().getStorageUsed();
+			crashed.put(5000, "X".getBytes(), 1);
+			crashed.putWithTimeToLive(5001, "V".getBytes(), 1, 60 * 1000);
+			Thread.sleep(10);
+
+			// never closed, the blocks are scanned as it left them
+			recovered = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(4999, recovered.count());
+			assertEquals(storageUsed, recovered.getStats().getStorageUsed()); // the expired entries are dropped
+			assertNull(recovered.get(0));
+			assertEquals("W", new String(recovered.get(1)));
+			assertNull(recovered.get(5000));
+			assertNull(recovered.get(5001));
+			for (int i = 2; i < 5000; i++) {
+				byte[] loaded = recovered.get(i);
+				assertEquals(value.length, loaded.length);
+				assertEquals((byte) i, loaded[0]);
+			}
+			// still works, and the records written after the recovery are newer
+			recovered.put(5001, "Y".getBytes());
+			recovered.put(2, "Z".getBytes());
+			assertEquals("Y", new String(recovered.get(5001)));
+			assertEquals("Z", new String(recovered.get(2)));
+
+			cache = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(5000, cache.count());
+			assertEquals("Z", new String(cache.get(2)));
+			assertEquals("Y", new String(cache.get(5001)));
+			cache.close();
+
+			// a closed cache leaves no records behind
+			cache = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(0, cache.count());
+		} finally {
+			if (recovered != null) {
+				recovered.close();
+			}
+			crashed.close();
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		if (storageMode != StorageMode.PureFile || indexMode == IndexMode.OnHeap) {
+			return; // only with crash recovery
+		}
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setCrashRecovery(true).setCheckpointInterval(60 * 60 * 1000); // written by hand below
+		BigCache<Integer> crashed = new BigCache<Integer>(TEST_DIR, config);
+		BigCache<Integer> recovered = null;
+		try {
+			byte[] value = new byte[10 * 1024];
+			for (int i = 0; i < 3000; i++) {
+				value[0] = (byte) i;
+				crashed.put(i, value);
+			}
+			crashed.checkpoint(); // all the entries
+			for (int i = 3000; i < 5000; i++) {
+				value[0] = (byte) i;
+				crashed.put(i, value);
+			}
+			crashed.delete(0);
+			crashed.put(1, "W".getBytes());
+			crashed.checkpoint(); // the changed ones
+			assertTrue(new File(TEST_DIR + "index.checkpoint.1.0").isFile());
+			assertTrue(new File(TEST_DIR + "index.checkpoint.1.1").isFile());
+			// after the last checkpoint
+			crashed.delete(2);
+			crashed.put(3, "V".getBytes());
+			crashed.put(5000, "U".getBytes());
+			long storageUsed = crashed.getStats().getStorageUsed();
+
+			recovered = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(4999, recovered.count());
+			assertEquals(storageUsed, recovered.getStats().getStorageUsed());
+			assertNull(recovered.get(0));
+			assertEquals("W", new String(recovered.get(1)));
+			assertNull(recovered.get(2));
+			assertEquals("V", new String(recovered.get(3)));
+			assertEquals("U", new String(recovered.get(5000)));
+			for (int i = 4; i < 5000; i++) {
+				assertEquals((byte) i, recovered.get(i)[0]);
+			}
+
+			// a new epoch after the recovery
+			recovered.checkpoint();
+			assertTrue(new File(TEST_DIR + "index.checkpoint.2.0").isFile());
+			assertFalse(new File(TEST_DIR + "index.checkpoint.1.0").exists());
+			assertFalse(new File(TEST_DIR + "index.checkpoint.1.1").exists());
+			recovered.put(4, "T".getBytes());
+
+			cache = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(4999, cache.count());
+			assertEquals("T", new String(cache.get(4)));
+			assertEquals("V", new String(cache.get(3)));
+		} finally {
+			if (recovered != null) {
+				recovered.close();
+			}
+			crashed.close();
+		}
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setDurability(Durability.GroupCommit).setSyncInterval(1);
+		try {
+			new BigCache<Integer>(TEST_DIR, config);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// only with crash recovery
+		}
+		if (storageMode != StorageMode.PureFile || indexMode == IndexMode.OnHeap) {
+			return;
+		}
+		config.setCrashRecovery(true);
+		BigCache<Integer> crashed = new BigCache<Integer>(TEST_DIR, config);
+		try {
+			for (int i = 0; i < 100; i++) {
+				crashed.put(i, String.valueOf(i).getBytes());
+			}
+			crashed.delete(0);
+
+			cache = new BigCache<Integer>(TEST_DIR, config);
+			assertEquals(99, cache.count());
+			assertNull(cache.get(0));
+			assertEquals("99", new String(cache.get(99)));
+		} finally {
+			crashed.close();
+		}
+	}
+
+	@Test
+	public void testSlabAllocation() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1).setAllocationMode(AllocationMode.Slab);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		// overwriting the values reuses their slots, nothing gets dirty
+		Random random = new Random(42);
+		long usedBlocks = 0;
+		for (int i = 0; i < 40000; i++) {
+			int key = random.nextInt(100);
+			byte[] value = new byte[1 + random.nextInt(10 * 1024)];
+			value[0] = (byte) key;
+			cache.put(key, value);
+			if (i % 7 == 0) {
+				cache.delete(random.nextInt(100));
+			}
+			if (i == 20000) {
+				usedBlocks = cache.getStats().getStorageUsedBlocks();
+			}
+		}
+		assertEquals(0, cache.getStats().getStorageDirty());
+		assertEquals(usedBlocks, cache.getStats().getStorageUsedBlocks());
+		for (int key = 0; key < 100; key++) {
+			byte[] value = cache.get(key);
+			assertTrue(value == null || value[0] == (byte) key);
+		}
+
+		cache.clear();
+		assertEquals(0, cache.getStats().getStorageUsed());
+		cache.put(1, "A".getBytes());
+		assertEquals("A", new String(cache.get(1)));
+
+		try {
+			new BigCache<Integer>(TEST_DIR, config.setRingBlockCount(2));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// slots are never recycled along with their blocks
+		}
+	}
+
+	@Test
+	public void testHoleReuse() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1).setAllocationMode(AllocationMode.HoleReuse);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[1000];
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, value);
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			cache.delete(i);
+		}
+		long dirty = cache.getStats().getStorageDirty();
+		assertTrue(dirty > 0);
+
+		// the new values fill the holes
+		for (int i = 1000; i < 1500; i++) {
+			value[0] = (byte) i;
+			cache.put(i, value);
+		}
+		assertTrue(cache.getStats().getStorageDirty() < dirty / 10);
+		for (int i = 1000; i < 1500; i++) {
+			assertEquals((byte) i, cache.get(i)[0]);
+		}
+		for (int i = 1; i < 1000; i += 2) {
+			assertNotNull(cache.get(i));
+		}
+
+		try {
+			new BigCache<Integer>(TEST_DIR, config.setRingBlockCount(2));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// the holes would outlive their blocks
+		}
+	}
+
+	@Test
+	public void testExpiryPlacement() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1).setExpiryPlacement(true);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		// the values expiring in a minute, in an hour, or later go to blocks of their own
+		cache.put(0, "A".getBytes());
+		cache.put(1, "B".getBytes(), 30 * 1000);
+		cache.put(2, "C".getBytes(), 30 * 60 * 1000);
+		cache.put(3, "D".getBytes(), 30 * 60 * 60 * 1000);
+		assertEquals(4, cache.storageManager.getUsedBlockCount());
+		cache.put(4, "E".getBytes(), 1000);
+		cache.put(1, "F".getBytes());
+		assertEquals(4, cache.storageManager.getUsedBlockCount());
+		assertEquals("A", new String(cache.get(0)));
+		assertEquals("F", new String(cache.get(1)));
+		assertEquals("C", new String(cache.get(2)));
+		assertEquals("D", new String(cache.get(3)));
+		assertEquals("E", new String(cache.get(4)));
+
+		try {
+			new BigCache<Integer>(TEST_DIR, config.setRingBlockCount(2));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// the ring recycles the blocks in order anyway
+		}
+	}
+
+	@Test
+	public void testPreallocatedBlocks() throws Exception {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+		cache.put(0, "A".getBytes());
+		Thread.sleep(100);
+		// no block kept ready unless asked for
+		assertEquals(0, cache.getStats().getStorageFreeBlocks());
+		assertEquals(1, cache.getStats().getStorageTotalBlocks());
+		cache.close();
+
+		cache = new BigCache<Integer>(TEST_DIR, config.setPreallocatedBlocks(1));
+		cache.put(0, "A".getBytes());
+		for (int i = 0; i < 500 && cache.getStats().getStorageFreeBlocks() < 1; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, cache.getStats().getStorageFreeBlocks());
+		assertEquals(2, cache.getStats().getStorageTotalBlocks());
+	}
+
+	@Test
+	public void testRing() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1).setRingBlockCount(2);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[32 * 1024]; // 512 entries per block
+		for (int i = 0; i < 1600; i++) {
+			value[0] = (byte) i;
+			cache.put(i, value);
+		}
+		assertEquals(2, cache.getStats().getStorageTotalBlocks());
+		// the oldest entries are evicted along with their blocks
+		assertNull(cache.get(0));
+		assertFalse(cache.contains(0));
+		assertNull(cache.delete(0));
+		assertEquals((byte) 1599, cache.get(1599)[0]);
+		// updating an evicted entry works
+		cache.put(1, "B".getBytes());
+		assertEquals("B", new String(cache.get(1)));
+
+		// the evicted entries are dropped through the keys listed in the recycled blocks
+		cache.clean();
+		assertTrue(cache.count() <= 1600 - 1000);
+		// all but the one deleted and the one put again
+		assertEquals(1600 - 2 - (cache.count() - 1), cache.getStats().getCacheEvict());
+		for (int i = 1024; i < 1600; i++) {
+			assertEquals((byte) i, cache.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void testRingReinsert() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1).setRingBlockCount(2).setRingReinsert(true);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[32 * 1024];
+		for (int i = 0; i < 1600; i++) {
+			value[0] = (byte) i;
+			cache.put(i, value);
+			// keep reading it, so it is moved out of the oldest block before the block is recycled
+			assertEquals(0, cache.get(0)[0]);
+		}
+		assertEquals(2, cache.getStats().getStorageTotalBlocks());
+		assertTrue(cache.getStats().getCacheMove() > 0);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void testMerge() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setIndexMode(indexMode).setCapacityPerBlock(16 * 1024 * 1024)
+				.setInitialNumberOfBlocks(1);
+		cache = new BigCache<Integer>(TEST_DIR, config);
+
+		byte[] value = new byte[32 * 1024]; // 512 entries per block
+		for (int i = 0; i < 800; i++) {
+			value[0] = (byte) i;
+			cache.put(i, value);
+		}
+		// updated in place, listed once
+		for (int i = 0; i < 100; i++) {
+			value[0] = (byte) -i;
+			cache.put(i, value);
+		}
+		for (int i = 0; i < 400; i++) {
+			if (i % 4 != 0) {
+				cache.delete(i);
+			}
+		}
+
+		// only the entries left in the dirty first block are moved
+		BigCache.CacheMerger<Integer> merger = new BigCache.CacheMerger<Integer>(cache);
+		merger.process(cache);
+		long moves = cache.getStats().getCacheMove();
+		assertTrue(moves >= 100 && moves <= 512 - 300);
+		merger.process(cache);
+		assertEquals(moves, cache.getStats().getCacheMove());
+		for (int i = 0; i < 800; i++) {
+			if (i < 400 && i % 4 != 0) {
+				assertNull(cache.get(i));
+			} else {
+				assertEquals(i < 100 ? (byte) -i : (byte) i, cache.get(i)[0]);
+			}
+		}
+	}
+
+	static class FakeTicker extends Ticker {
+		volatile long time = 1000000;
+
+		@Override
+		public long read() {
+			return time;
+		}
+	}
+
+	/**
+	 * A key type whose instances always share the same fingerprint.
+	 */
+	static class CollidingKey implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+
+		CollidingKey(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof CollidingKey && name.equals(((CollidingKey) o).name);
+		}
+
+		@Override
+		public int hashCode() {
+			return 0;
+		}
+	}
+
 	@After
 	public void close() throws IOException {
 		try {
-			cache.close();
+			if (cache != null) {
+				cache.close();
+				cache = null;
+			}
 			FileUtil.deleteDirectory(new File(TEST_DIR));
 		} catch (IllegalStateException e) {
 			System.gc();
@@ -0,0 +1,138 @@
+package com.ctriposs.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BlockKeysTest {
+
+	/** The block index of the keys, as the entries of a cache would be. */
+	private final Map<Object, Integer> blocks = new HashMap<Object, Integer>();
+
+	private final BlockKeys.Membership membership = new BlockKeys.Membership() {
+		@Override
+		public boolean isIn(long fingerprint, int blockIndex, int generation) {
+			return isIn((Object) fingerprint, blockIndex, generation);
+		}
+
+		@Override
+		public boolean isIn(Object key, int blockIndex, int generation) {
+			Integer index = blocks.get(key);
+			return index != null && index == blockIndex;
+		}
+	};
+
+	@Test
+	public void testKeys() {
+		BlockKeys keys = new BlockKeys(4, false, membership);
+		assertEquals(0, keys.getKeys(0, 3, 0).length);
+
+		keys.add(1, 3, 0, "a");
+		keys.add(1, 3, 0, "b");
+		keys.add(2, 3, 0, "c");
+		keys.add(1, 5, 0, "d");
+		assertArrayEquals(new Object[] { "a", "b" }, keys.getKeys(1, 3, 0));
+		assertArrayEquals(new Object[] { "c" }, keys.getKeys(2, 3, 0));
+		assertEquals(3, keys.count(3, 0));
+		assertEquals(1, keys.count(5, 0));
+
+		keys.remove(1, 3);
+		assertEquals(0, keys.getKeys(1, 3, 0).length);
+		assertEquals(1, keys.count(3, 0));
+	}
+
+	@Test
+	public void testGeneration() {
+		BlockKeys keys = new BlockKeys(4, true, membership);
+		keys.add(0, 1, 0, 42L);
+		// the block is recycled
+		assertEquals(0, keys.getFingerprints(0, 1, 1).length);
+		keys.add(0, 1, 1, 43L);
+		assertArrayEquals(new long[] { 43L }, keys.getFingerprints(0, 1, 1));
+		assertEquals(0, keys.count(1, 0));
+
+		// the offheap lists are freed
+		keys.close();
+		assertEquals(0, keys.getFingerprints(0, 1, 1).length);
+		assertFalse(keys.isListed(1));
+	}
+
+	@Test
+	public void testRemoveStale() {
+		BlockKeys keys = new BlockKeys(4, false, membership);
+		assertFalse(keys.isListed(1));
+		keys.add(0, 1, 0, "a");
+		keys.add(2, 1, 0, "b");
+		assertTrue(keys.isListed(1));
+		assertFalse(keys.isStale(0, 1, 0));
+
+		// the block is recycled with "a" still in it, and stored into again by the keys of one stripe
+		blocks.put("a", 1);
+		keys.add(2, 1, 1, "c");
+		assertTrue(keys.isStale(0, 1, 1));
+		assertTrue(keys.isStale(2, 1, 1));
+		assertArrayEquals(new Object[] { "a" }, keys.removeStaleKeys(0, 1, 1));
+		assertArrayEquals(new Object[0], keys.removeStaleKeys(2, 1, 1));
+		assertFalse(keys.isStale(2, 1, 1));
+		assertArrayEquals(new Object[] { "c" }, keys.getKeys(2, 1, 1));
+		assertEquals(1, keys.count(1, 1));
+		assertArrayEquals(new Object[0], keys.removeStaleKeys(2, 1, 2));
+		assertFalse(keys.isListed(1));
+	}
+
+	@Test
+	public void testRemoveStaleFingerprints() {
+		BlockKeys keys = new BlockKeys(1, true, membership);
+		keys.add(0, 1, 0, 42L);
+		keys.add(0, 1, 0, 43L);
+		blocks.put(42L, 1);
+		// dropped by the merger, then recycled twice
+		keys.add(0, 1, 1, 44L);
+		keys.remove(0, 1);
+		keys.add(0, 1, 2, 45L);
+		assertTrue(keys.isStale(0, 1, 2));
+		assertArrayEquals(new long[] { 42L }, keys.removeStaleFingerprints(0, 1, 2));
+		assertFalse(keys.isStale(0, 1, 2));
+		assertArrayEquals(new long[] { 45L }, keys.getFingerprints(0, 1, 2));
+		keys.close();
+		assertFalse(keys.isListed(1));
+	}
+
+	@Test
+	public void testPrune() {
+		BlockKeys keys = new BlockKeys(1, true, membership);
+		// the same few keys stored in the block and moved out again and again
+		for (long i = 0; i < 100000; i++) {
+			long key = i % 10;
+			int blockIndex = (int) (i / 10 % 2);
+			blocks.put(key, blockIndex);
+			if (blockIndex == 0) {
+				keys.add(0, 0, 0, key);
+			}
+		}
+		// the keys not in the block anymore are dropped once the list is full
+		assertTrue(keys.count(0, 0) <= 32);
+		keys.close();
+	}
+
+	@Test
+	public void testGrow() {
+		BlockKeys keys = new BlockKeys(2, true, membership);
+		long[] expected = new long[1000];
+		for (int i = 0; i < expected.length; i++) {
+			blocks.put((long) i, 0);
+			keys.add(1, 0, 0, (long) i);
+			expected[i] = i;
+		}
+		long[] fingerprints = keys.getFingerprints(1, 0, 0);
+		Arrays.sort(fingerprints);
+		assertArrayEquals(expected, fingerprints);
+		keys.remove(1, 0);
+		assertEquals(0, keys.count(0, 0));
+		keys.close();
+	}
+}
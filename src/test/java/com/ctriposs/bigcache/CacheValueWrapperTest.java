@@ -0,0 +1,116 @@
+package com.ctriposs.bigcache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CacheValueWrapperTest {
+
+	@Test
+	public void testNotInitialized() {
+		CacheValueWrapper wrapper = new CacheValueWrapper();
+		assertEquals(-1, wrapper.getLastAccessTime(System.currentTimeMillis()));
+		assertEquals(-1, wrapper.getTimeToIdle());
+		assertFalse(wrapper.isExpired(System.currentTimeMillis()));
+
+		wrapper.setTimeToIdle(1);
+		assertFalse(wrapper.isExpired(Long.MAX_VALUE)); // not accessed yet
+	}
+
+	@Test
+	public void testLocation() {
+		CacheValueWrapper wrapper = new CacheValueWrapper(Long.MIN_VALUE, -1, -1);
+		assertEquals(Long.MIN_VALUE, wrapper.getLocation());
+		wrapper.setLocation(-1L);
+		wrapper.setTimeToIdle(1000);
+		assertEquals(-1L, wrapper.getLocation());
+		assertEquals(1000, wrapper.getTimeToIdle());
+	}
+
+	@Test
+	public void testTimeToIdle() {
+		CacheValueWrapper wrapper = new CacheValueWrapper();
+		long now = System.currentTimeMillis();
+		wrapper.setLastAccessTime(now);
+
+		long[] exact = { 1, 1000, (1 << 21) - 1, 3600 * 1000L, 24 * 3600 * 1000L, 365 * 24 * 3600 * 1000L };
+		for (long tti : exact) {
+			wrapper.setTimeToIdle(tti);
+			assertEquals(tti, wrapper.getTimeToIdle());
+			assertEquals(now, wrapper.getLastAccessTime(now + 1000));
+		}
+
+		// rounded up to the unit
+		wrapper.setTimeToIdle((1 << 21) + 1);
+		assertEquals((1 << 21) / 1000 * 1000 + 1000, wrapper.getTimeToIdle());
+
+		wrapper.setTimeToIdle(0);
+		assertEquals(-1, wrapper.getTimeToIdle());
+		wrapper.setTimeToIdle(Long.MAX_VALUE);
+		assertTrue(wrapper.getTimeToIdle() > 100 * 365 * 24 * 3600 * 1000L);
+	}
+
+	@Test
+	public void testExpire() {
+		CacheValueWrapper wrapper = new CacheValueWrapper(0, 5000L, 1000L);
+		assertFalse(wrapper.isExpired(6000L));
+		assertTrue(wrapper.isExpired(6001L));
+		assertFalse(wrapper.isExpired(4000L)); // clock goes back
+
+		wrapper.setLastAccessTime(4000L); // never go back
+		assertTrue(wrapper.isExpired(6001L));
+		wrapper.setLastAccessTime(7000L); // already expired
+		assertTrue(wrapper.isExpired(6001L));
+		wrapper.setLastAccessTime(5500L);
+		assertFalse(wrapper.isExpired(6001L));
+	}
+
+	@Test
+	public void testTouch() {
+		CacheValueWrapper wrapper = new CacheValueWrapper(0, 5000L, 1000L);
+		wrapper.touch(5099L, 100L); // within the granularity
+		assertTrue(wrapper.isExpired(6001L));
+		wrapper.touch(5100L, 100L);
+		assertFalse(wrapper.isExpired(6100L));
+		assertTrue(wrapper.isExpired(6101L));
+	}
+
+	@Test
+	public void testAccessTimeWrapsAround() {
+		long wrap = 1L << 41;
+		CacheValueWrapper wrapper = new CacheValueWrapper(0, wrap - 100, 1000L);
+		assertFalse(wrapper.isExpired(wrap + 900));
+		assertTrue(wrapper.isExpired(wrap + 901));
+		wrapper.setLastAccessTime(wrap); // packed as 0, taken as 1ms later
+		assertFalse(wrapper.isExpired(wrap + 1001));
+		assertTrue(wrapper.isExpired(wrap + 1002));
+	}
+
+	@Test
+	public void testCost() {
+		assertEquals(BigCache.DEFAULT_COST, new CacheValueWrapper().getCost());
+		// only the entries of another cost pay for the field
+		assertEquals(CacheValueWrapper.class, CacheValueWrapper.withCost(BigCache.DEFAULT_COST).getClass());
+		assertEquals(100, CacheValueWrapper.withCost(100).getCost());
+	}
+
+	@Test
+	public void testDeadline() {
+		// only the entries with a time to live pay for the field
+		assertEquals(CacheValueWrapper.class, CacheValueWrapper.withDeadline(BigCache.DEFAULT_COST, -1).getClass());
+		assertEquals(-1, new CacheValueWrapper().getDeadline());
+		CacheValueWrapper wrapper = CacheValueWrapper.withDeadline(100, 7000L);
+		assertEquals(100, wrapper.getCost());
+		assertEquals(7000L, wrapper.getDeadline());
+		assertEquals(7000L, wrapper.getExpirationTime(5000L)); // no time to idle
+
+		// whichever comes first
+		wrapper.setTimeToIdle(1000L);
+		wrapper.setLastAccessTime(5000L);
+		assertEquals(6000L, wrapper.getExpirationTime(5000L));
+		wrapper.setTimeToIdle(3000L);
+		assertEquals(7000L, wrapper.getExpirationTime(5000L));
+		assertFalse(wrapper.isExpired(7000L));
+		assertTrue(wrapper.isExpired(7001L)); // however recently accessed
+	}
+}
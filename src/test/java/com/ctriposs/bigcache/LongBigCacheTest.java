@@ -0,0 +1,136 @@
+package com.ctriposs.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.ctriposs.bigcache.CacheConfig.StorageMode;
+import com.ctriposs.bigcache.utils.FileUtil;
+import com.ctriposs.bigcache.utils.TestUtil;
+
+@RunWith(Parameterized.class)
+public class LongBigCacheTest {
+
+	private static String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/longbigcache/";
+	private static LongBigCache cache;
+
+	@Parameter(value = 0)
+	public StorageMode storageMode;
+
+	@Parameters
+	public static Collection<StorageMode[]> data() throws IOException {
+		StorageMode[][] data = { { StorageMode.PureFile },
+				{ StorageMode.MemoryMappedPlusFile },
+				{ StorageMode.OffHeapPlusFile } };
+		return Arrays.asList(data);
+	}
+
+	private LongBigCache newCache() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setInitialIndexCapacity(16);
+		return new LongBigCache(TEST_DIR, config);
+	}
+
+	@Test
+	public void testPutGetDelete() throws IOException {
+		cache = newCache();
+		long[] keys = { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE };
+		for (long key : keys) {
+			cache.put(key, String.valueOf(key).getBytes());
+		}
+		assertEquals(keys.length, cache.count());
+		for (long key : keys) {
+			assertTrue(cache.contains(key));
+			assertEquals(String.valueOf(key), new String(cache.get(key)));
+		}
+		assertFalse(cache.contains(2L));
+		assertNull(cache.get(2L));
+
+		cache.put(0L, "W".getBytes());
+		assertEquals("W", new String(cache.get(0L)));
+		assertEquals(keys.length, cache.count());
+
+		assertEquals("W", new String(cache.delete(0L)));
+		assertNull(cache.get(0L));
+		assertNull(cache.delete(0L));
+		assertEquals(keys.length - 1, cache.count());
+
+		cache.clear();
+		assertEquals(0, cache.count());
+		assertNull(cache.get(1L));
+	}
+
+	@Test
+	public void testManyKeys() throws IOException {
+		cache = newCache();
+		int count = 100000;
+		for (long key = 0; key < count; key++) {
+			cache.put(key * 31, String.valueOf(key).getBytes());
+		}
+		assertEquals(count, cache.count());
+		for (long key = 0; key < count; key++) {
+			assertArrayEquals(String.valueOf(key).getBytes(), cache.get(key * 31));
+		}
+		assertEquals(1.0, cache.hitRatio(), 1e-6);
+		BigCacheStats stats = cache.getStats();
+		assertEquals(count, stats.getCacheGet());
+		assertEquals(count, stats.getCachePut());
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		cache = newCache();
+		cache.put(1L, "A".getBytes(), 500);
+		cache.put(2L, "B".getBytes());
+		assertEquals("A", new String(cache.get(1L)));
+		Thread.sleep(1000);
+		assertNull(cache.get(1L));
+		assertEquals("B", new String(cache.get(2L)));
+	}
+
+	@Test
+	public void testPersistent() throws IOException {
+		CacheConfig config = new CacheConfig();
+		config.setStorageMode(storageMode).setInitialIndexCapacity(16).setPersistent(true);
+		cache = new LongBigCache(TEST_DIR, config);
+		for (long key = 0; key < 1000; key++) {
+			cache.put(key, String.valueOf(key).getBytes());
+		}
+		cache.close();
+
+		cache = new LongBigCache(TEST_DIR, config);
+		assertEquals(1000, cache.count());
+		for (long key = 0; key < 1000; key++) {
+			assertEquals(String.valueOf(key), new String(cache.get(key)));
+		}
+	}
+
+	@After
+	public void close() throws IOException {
+		try {
+			cache.close();
+			FileUtil.deleteDirectory(new File(TEST_DIR));
+		} catch (IllegalStateException e) {
+			System.gc();
+			try {
+				FileUtil.deleteDirectory(new File(TEST_DIR));
+			} catch (IllegalStateException e1) {
+				try {
+					Thread.sleep(3000);
+				} catch (InterruptedException e2) {
+				}
+				FileUtil.deleteDirectory(new File(TEST_DIR));
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.ctriposs.bigcache;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	/** The expiration times of the entries, as a cache would keep them. */
+	private final Map<Long, Long> expirationTimes = new HashMap<Long, Long>();
+
+	/** The times the entries were purged at. */
+	private final Map<Long, Long> purgeTimes = new HashMap<Long, Long>();
+
+	private int handedBack;
+
+	private final TimerWheel.Expiry expiry = new TimerWheel.Expiry() {
+		@Override
+		public long expire(long fingerprint, long now) {
+			handedBack++;
+			Long time = expirationTimes.get(fingerprint);
+			if (time == null) {
+				return -1;
+			}
+			if (now > time) {
+				expirationTimes.remove(fingerprint);
+				purgeTimes.put(fingerprint, now);
+				return -1;
+			}
+			return time;
+		}
+
+		@Override
+		public long expire(Object key, long now) {
+			throw new UnsupportedOperationException();
+		}
+	};
+
+	private void schedule(TimerWheel wheel, long fingerprint, long time) {
+		expirationTimes.put(fingerprint, time);
+		wheel.schedule(0, fingerprint, time);
+	}
+
+	@Test
+	public void testLevels() throws IOException {
+		TimerWheel wheel = new TimerWheel(1, true, expiry, 0);
+		long[] times = { 500, 5000, 100 * 1000, 10 * 1000 * 1000, 1L << 30 };
+		for (int i = 0; i < times.length; i++) {
+			schedule(wheel, i, times[i]);
+		}
+		for (long now = 0; now < (1L << 30) + 3000; now += 1000) {
+			wheel.advance(0, now);
+		}
+		// each one purged within a tick and a step of its expiration
+		for (int i = 0; i < times.length; i++) {
+			long late = purgeTimes.get((long) i) - times[i];
+			assertTrue(late > 0 && late <= 1024 + 1000);
+		}
+		assertEquals(0, wheel.count(0));
+	}
+
+	@Test
+	public void testReschedule() throws IOException {
+		TimerWheel wheel = new TimerWheel(1, true, expiry, 0);
+		schedule(wheel, 1L, 1000);
+		wheel.advance(0, 900);
+		// accessed, expiring later without being scheduled again
+		expirationTimes.put(1L, 5000L);
+		wheel.advance(0, 2500);
+		assertFalse(purgeTimes.containsKey(1L));
+		assertEquals(1, wheel.count(0));
+		wheel.advance(0, 7000);
+		assertEquals(7000L, purgeTimes.get(1L).longValue());
+	}
+
+	@Test
+	public void testExpiredAlready() throws IOException {
+		TimerWheel wheel = new TimerWheel(1, true, expiry, 10000);
+		schedule(wheel, 1L, 500);
+		// handed back on the next tick
+		wheel.advance(0, 10001);
+		assertFalse(purgeTimes.containsKey(1L));
+		wheel.advance(0, 11024);
+		assertEquals(11024L, purgeTimes.get(1L).longValue());
+	}
+
+	@Test
+	public void testDuplicates() throws IOException {
+		TimerWheel wheel = new TimerWheel(1, true, expiry, 0);
+		// put again, or deleted and put again
+		schedule(wheel, 1L, 3000);
+		schedule(wheel, 1L, 3000);
+		schedule(wheel, 2L, 3000);
+		expirationTimes.remove(2L);
+		assertEquals(3, wheel.count(0));
+		wheel.advance(0, 4000);
+		assertEquals(2, handedBack);
+		assertTrue(purgeTimes.containsKey(1L));
+		assertEquals(0, wheel.count(0));
+	}
+
+	@Test
+	public void testStripes() throws IOException {
+		TimerWheel wheel = new TimerWheel(2, true, expiry, 0);
+		expirationTimes.put(1L, 1000L);
+		wheel.schedule(1, 1L, 1000);
+		wheel.advance(0, 5000);
+		assertFalse(purgeTimes.containsKey(1L));
+		wheel.advance(1, 5000);
+		assertTrue(purgeTimes.containsKey(1L));
+	}
+}
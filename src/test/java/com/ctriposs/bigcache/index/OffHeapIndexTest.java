@@ -0,0 +1,194 @@
+package com.ctriposs.bigcache.index;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OffHeapIndexTest {
+
+	private OffHeapIndex index;
+
+	@Test
+	public void testBasic() {
+		index = new OffHeapIndex(16);
+		assertEquals(16, index.capacity());
+		assertEquals(0, index.size());
+		assertEquals(OffHeapIndex.NOT_FOUND, index.find(42L));
+
+		long slot = index.insert(42L);
+		assertEquals(1, index.size());
+		assertEquals(slot, index.find(42L));
+		assertEquals(42L, index.getKey(slot));
+
+		index.setLocation(slot, 3, 1024, 100);
+		index.setTimeToIdle(slot, 1000L);
+		index.setLastAccessTime(slot, 5000L);
+		assertEquals(3, index.getBlockIndex(slot));
+		assertEquals(1024, index.getPosition(slot));
+		assertEquals(100, index.getLength(slot));
+		assertEquals(1000L, index.getTimeToIdle(slot));
+		assertEquals(5000L, index.getLastAccessTime(slot));
+		assertEquals(0, index.getCost(slot));
+		index.setCost(slot, 7);
+		assertEquals(7, index.getCost(slot));
+		assertEquals(3, index.getBlockIndex(slot));
+
+		// expiration follows the rules of CacheValueWrapper
+		assertFalse(index.isExpired(slot, 6000L));
+		assertTrue(index.isExpired(slot, 6001L));
+		index.touch(slot, 4000L); // never go back
+		assertEquals(5000L, index.getLastAccessTime(slot));
+		index.touch(slot, 7000L); // already expired
+		assertEquals(5000L, index.getLastAccessTime(slot));
+		index.touch(slot, 5500L);
+		assertEquals(5500L, index.getLastAccessTime(slot));
+		index.touch(slot, 5599L, 100L); // within the granularity
+		assertEquals(5500L, index.getLastAccessTime(slot));
+		index.touch(slot, 5600L, 100L);
+		assertEquals(5600L, index.getLastAccessTime(slot));
+
+		index.remove(slot);
+		assertEquals(0, index.size());
+		assertEquals(OffHeapIndex.NOT_FOUND, index.find(42L));
+	}
+
+	@Test
+	public void testAccessTimeZero() {
+		index = new OffHeapIndex(16);
+		long slot = index.insert(42L);
+		index.setTimeToIdle(slot, 1000L);
+		index.setLastAccessTime(slot, 0L); // the start of a fake clock
+		assertFalse(index.isExpired(slot, 1001L));
+		assertTrue(index.isExpired(slot, 1002L));
+	}
+
+	@Test
+	public void testDeadline() {
+		index = new OffHeapIndex(16);
+		long slot = index.insert(42L);
+		assertEquals(-1, index.getDeadline(slot));
+		assertEquals(-1, index.getExpirationTime(slot));
+		index.setDeadline(slot, 7000L);
+		assertEquals(7000L, index.getExpirationTime(slot)); // no time to idle
+
+		// whichever comes first
+		index.setTimeToIdle(slot, 1000L);
+		index.setLastAccessTime(slot, 5000L);
+		assertEquals(6000L, index.getExpirationTime(slot));
+		index.setTimeToIdle(slot, 3000L);
+		assertEquals(7000L, index.getExpirationTime(slot));
+		assertFalse(index.isExpired(slot, 7000L));
+		assertTrue(index.isExpired(slot, 7001L)); // however recently accessed
+
+		// none once the slot is taken again
+		index.remove(slot);
+		assertEquals(-1, index.getDeadline(index.insert(42L)));
+	}
+
+	@Test
+	public void testZeroAndNegativeKeys() {
+		index = new OffHeapIndex(16);
+		long zero = index.insert(0L);
+		long negative = index.insert(-1L);
+		long min = index.insert(Long.MIN_VALUE);
+		assertEquals(zero, index.find(0L));
+		assertEquals(negative, index.find(-1L));
+		assertEquals(min, index.find(Long.MIN_VALUE));
+		assertEquals(OffHeapIndex.NOT_FOUND, index.find(1L));
+	}
+
+	@Test
+	public void testResize() {
+		index = new OffHeapIndex(16);
+		int count = 100000;
+		for (long key = 0; key < count; key++) {
+			if (index.needsResize()) {
+				index.resize();
+			}
+			long slot = index.insert(key);
+			index.setLocation(slot, (int) key, (int) key * 2, (int) key * 3);
+		}
+		assertEquals(count, index.size());
+		assertTrue(index.capacity() * OffHeapIndex.LOAD_FACTOR >= count);
+
+		for (long key = 0; key < count; key++) {
+			long slot = index.find(key);
+			assertTrue(slot != OffHeapIndex.NOT_FOUND);
+			assertEquals((int) key, index.getBlockIndex(slot));
+			assertEquals((int) key * 2, index.getPosition(slot));
+			assertEquals((int) key * 3, index.getLength(slot));
+		}
+	}
+
+	@Test
+	public void testFull() {
+		index = new OffHeapIndex(4);
+		for (long key = 0; key < 4; key++) {
+			assertTrue(index.insert(key) != OffHeapIndex.NOT_FOUND);
+		}
+		assertEquals(OffHeapIndex.NOT_FOUND, index.insert(4L));
+		assertEquals(OffHeapIndex.NOT_FOUND, index.find(4L));
+		assertTrue(index.needsResize());
+		index.resize();
+		assertTrue(index.insert(4L) != OffHeapIndex.NOT_FOUND);
+		assertEquals(5, index.size());
+	}
+
+	@Test
+	public void testDeletedSlotsReclaimed() {
+		index = new OffHeapIndex(1024);
+		// keep inserting and removing, the capacity should not grow as the deleted slots are reused or rehashed
+		for (long key = 0; key < 100000; key++) {
+			if (index.needsResize()) {
+				index.resize();
+			}
+			index.remove(index.insert(key));
+		}
+		assertEquals(0, index.size());
+		assertEquals(1024, index.capacity());
+	}
+
+	@Test
+	public void testScan() {
+		index = new OffHeapIndex(64);
+		for (long key = 0; key < 10; key++) {
+			index.insert(key * 7);
+		}
+		index.remove(index.find(21L));
+
+		long sum = 0;
+		int count = 0;
+		for (long slot = index.nextSlot(0); slot != OffHeapIndex.NOT_FOUND; slot = index.nextSlot(slot + 1)) {
+			sum += index.getKey(slot);
+			count++;
+		}
+		assertEquals(9, count);
+		assertEquals(7 * 45 - 21, sum);
+	}
+
+	@Test
+	public void testClear() {
+		index = new OffHeapIndex(16);
+		for (long key = 0; key < 10; key++) {
+			index.insert(key);
+		}
+		index.clear();
+		assertEquals(0, index.size());
+		for (long key = 0; key < 10; key++) {
+			assertEquals(OffHeapIndex.NOT_FOUND, index.find(key));
+		}
+	}
+
+	@After
+	public void close() throws IOException {
+		if (index != null) {
+			index.close();
+			// closed index finds nothing
+			assertEquals(OffHeapIndex.NOT_FOUND, index.find(0L));
+			assertEquals(OffHeapIndex.NOT_FOUND, index.nextSlot(0));
+		}
+	}
+}
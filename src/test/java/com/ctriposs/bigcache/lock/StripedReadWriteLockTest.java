@@ -0,0 +1,47 @@
+package com.ctriposs.bigcache.lock;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StripedReadWriteLockTest {
+
+	@Test
+	public void testOptimisticRead() {
+		StripedReadWriteLock lock = new StripedReadWriteLock(2);
+		long stamp = lock.tryOptimisticRead(1);
+		assertTrue(lock.validate(1, stamp));
+
+		// the read lock doesn't get in the way
+		lock.readLock(1);
+		lock.readUnlock(1);
+		assertTrue(lock.validate(1, stamp));
+
+		// neither does the write lock of another stripe
+		lock.writeLock(2);
+		lock.writeUnlock(2);
+		assertTrue(lock.validate(1, stamp));
+
+		// the write lock of the same stripe does
+		lock.writeLock(5);
+		assertFalse(lock.validate(1, stamp));
+		long lockedStamp = lock.tryOptimisticRead(1);
+		assertFalse(lock.validate(1, lockedStamp));
+		lock.writeUnlock(5);
+		assertFalse(lock.validate(1, stamp));
+
+		stamp = lock.tryOptimisticRead(1);
+		assertTrue(lock.validate(1, stamp));
+		lock.writeLockForAll();
+		lock.writeUnlockForAll();
+		assertFalse(lock.validate(1, stamp));
+	}
+
+	@Test
+	public void testIndexOf() {
+		StripedReadWriteLock lock = new StripedReadWriteLock(2);
+		assertEquals(1, lock.indexOf(1));
+		assertEquals(1, lock.indexOf(5));
+		assertSame(lock.getLock(1), lock.getLock(lock.indexOf(5)));
+	}
+}
@@ -0,0 +1,54 @@
+package com.ctriposs.bigcache.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FreeSpaceMapTest {
+
+	@Test
+	public void testTake() {
+		FreeSpaceMap map = new FreeSpaceMap(0);
+		assertFalse(map.hasHoles());
+		assertEquals(-1, map.take(100, 0));
+
+		assertFalse(map.add(0, FreeSpaceMap.MIN_HOLE_SIZE - 1, 0)); // too small
+		assertTrue(map.add(1000, 100, 0));
+		assertTrue(map.add(2000, 300, 0));
+		assertTrue(map.hasHoles());
+
+		// the first fit of the list of the payload
+		assertEquals(1000, map.take(90, 0));
+		// none left in the list, the one above is split
+		assertEquals(2000, map.take(120, 0));
+		assertEquals(2120, map.take(100, 0));
+		assertEquals(2220, map.take(30, 0));
+		// the rest is too small to be kept
+		assertEquals(-1, map.take(10, 0));
+		assertFalse(map.hasHoles());
+	}
+
+	@Test
+	public void testSmallPayloads() {
+		FreeSpaceMap map = new FreeSpaceMap(0);
+		map.add(0, 128, 0);
+		assertEquals(0, map.take(1, 0));
+		assertEquals(1, map.take(63, 0));
+		assertEquals(64, map.take(64, 0));
+		assertFalse(map.hasHoles());
+	}
+
+	@Test
+	public void testGeneration() {
+		FreeSpaceMap map = new FreeSpaceMap(3);
+		assertFalse(map.add(0, 100, 2)); // stored before the block was freed
+		map.add(0, 100, 3);
+		assertEquals(-1, map.take(100, 4));
+
+		map.clear(4);
+		assertFalse(map.hasHoles());
+		assertFalse(map.add(200, 100, 3));
+		assertTrue(map.add(200, 100, 4));
+		assertEquals(200, map.take(100, 4));
+	}
+}
@@ -225,6 +225,152 @@ public class StorageBlockTest {
 		assertNull(pointer); // overflow
 	}
 
+	@Test
+	public void testThreadLocalAllocation() throws Exception {
+		final StorageBlock block = new StorageBlock(testDir, 5, 16 * 1024 * 1024, storageMode);
+		this.block = block;
+
+		// two threads interleave, each one in its own chunk
+		Pointer first = block.store(new byte[100]);
+		final Pointer[] other = new Pointer[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					other[0] = block.store(new byte[100]);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		Pointer second = block.store(new byte[100]);
+		assertEquals(0, first.getPosition());
+		assertEquals(StorageBlock.TLAB_SIZE, other[0].getPosition());
+		assertEquals(100, second.getPosition());
+		assertEquals(2 * StorageBlock.TLAB_SIZE, block.getOffset());
+
+		// a payload not fitting is allocated from the block while much is left in the chunk
+		for (int i = 0; i < 7; i++) {
+			block.store(new byte[StorageBlock.TLAB_MAX_PAYLOAD]);
+		}
+		int left = StorageBlock.TLAB_SIZE - 200 - 7 * StorageBlock.TLAB_MAX_PAYLOAD;
+		assertTrue(left > StorageBlock.TLAB_MAX_WASTE);
+		Pointer direct = block.store(new byte[StorageBlock.TLAB_MAX_PAYLOAD]);
+		assertEquals(2 * StorageBlock.TLAB_SIZE, direct.getPosition());
+		Pointer last = block.store(new byte[left - StorageBlock.TLAB_MAX_WASTE + 1]);
+		assertEquals(StorageBlock.TLAB_SIZE - StorageBlock.TLAB_MAX_WASTE + 1, last.getPosition() + last.getLength());
+
+		// otherwise the chunk is retired, the space left is dirty
+		Pointer next = block.store(new byte[StorageBlock.TLAB_MAX_WASTE]);
+		assertEquals(2 * StorageBlock.TLAB_SIZE + StorageBlock.TLAB_MAX_PAYLOAD, next.getPosition());
+		assertEquals(StorageBlock.TLAB_MAX_WASTE - 1, block.getDirty());
+
+		// bigger payloads are allocated from the block directly
+		Pointer huge = block.store(new byte[StorageBlock.TLAB_MAX_PAYLOAD + 1]);
+		assertEquals(3 * StorageBlock.TLAB_SIZE + StorageBlock.TLAB_MAX_PAYLOAD, huge.getPosition());
+
+		// the chunks are dropped when the block is freed
+		block.free();
+		assertEquals(0, block.store(new byte[100]).getPosition());
+		assertEquals(0, block.getDirty());
+	}
+
+	@Test
+	public void testRetireChunks() throws Exception {
+		final StorageBlock block = new StorageBlock(testDir, 5, 16 * 1024 * 1024, storageMode);
+		this.block = block;
+		block.store(new byte[100]);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					block.store(new byte[200]);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(0, block.getDirty());
+
+		// the space left in the chunks of all the threads is dirty once the block is not active
+		block.retireChunks();
+		assertEquals(2 * StorageBlock.TLAB_SIZE - 300, block.getDirty());
+		assertEquals(block.getOffset(), block.getUsed() + block.getDirty());
+		// and the late payloads are allocated from the block directly
+		Pointer late = block.store(new byte[100]);
+		assertEquals(2 * StorageBlock.TLAB_SIZE, late.getPosition());
+		assertEquals(block.getOffset(), block.getUsed() + block.getDirty());
+
+		// chunks again once freed
+		block.free();
+		block.store(new byte[100]);
+		assertEquals(StorageBlock.TLAB_SIZE, block.getOffset());
+		assertEquals(0, block.getDirty());
+	}
+
+	@Test
+	public void testConcurrentStore() throws Exception {
+		final StorageBlock block = new StorageBlock(testDir, 6, 16 * 1024 * 1024, storageMode);
+		this.block = block;
+		final int threadCount = 8;
+		final int storeCount = 2000;
+		final Pointer[][] pointers = new Pointer[threadCount][storeCount];
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < storeCount; i++) {
+							byte[] payload = new byte[1 + (i * 31 + id) % 1000];
+							Arrays.fill(payload, (byte) (id * 16 + i));
+							pointers[id][i] = block.store(payload);
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		long used = 0;
+		for (int t = 0; t < threadCount; t++) {
+			threads[t].join();
+			for (int i = 0; i < storeCount; i++) {
+				byte[] payload = block.retrieve(pointers[t][i]);
+				assertEquals(1 + (i * 31 + t) % 1000, payload.length);
+				for (byte b : payload) {
+					assertEquals((byte) (t * 16 + i), b);
+				}
+				used += payload.length;
+			}
+		}
+		assertEquals(used, block.getUsed());
+		assertTrue(block.getUsed() + block.getDirty() <= block.getOffset());
+	}
+
+	@Test
+	public void testSyncWrittenOnly() throws IOException {
+		StorageBlock block = new StorageBlock(testDir, 7, 16 * 1024 * 1024, storageMode);
+		this.block = block;
+		assertFalse(block.sync()); // nothing written yet
+
+		Pointer pointer = block.store(new byte[100]);
+		assertTrue(block.sync());
+		assertFalse(block.sync());
+
+		block.update(pointer, new byte[50]);
+		assertTrue(block.sync());
+		block.removeLight(block.store(new byte[10]));
+		assertTrue(block.sync());
+		assertFalse(block.sync());
+	}
+
 	@After
 	public void clear() throws IOException {
 		if (this.block != null) {
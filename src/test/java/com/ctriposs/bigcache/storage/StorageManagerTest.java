@@ -1,9 +1,17 @@
 package com.ctriposs.bigcache.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -14,6 +22,7 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.ctriposs.bigcache.CacheConfig.AllocationMode;
 import com.ctriposs.bigcache.CacheConfig.StorageMode;
 import com.ctriposs.bigcache.utils.FileUtil;
 import com.ctriposs.bigcache.utils.TestUtil;
@@ -335,6 +344,589 @@ public class StorageManagerTest {
 		assertTrue(Math.abs(expectedRatio - storageManager.getDirtyRatio()) <= 1e-6);
 	}
 	
+	@Test
+	public void testLocation() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 2, storageMode, size); // 2M Total
+
+		Pointer pointer = null;
+		for (int i = 0; i < 1025; i++) { // overflow to the second block
+			pointer = storageManager.store(new byte[1024]);
+			long location = storageManager.toLocation(pointer);
+			Pointer unpacked = storageManager.toPointer(location);
+			assertTrue(pointer.getStorageBlock() == unpacked.getStorageBlock());
+			assertEquals(pointer.getPosition(), unpacked.getPosition());
+			assertEquals(pointer.getLength(), unpacked.getLength());
+		}
+		assertEquals(1, pointer.getStorageBlock().getIndex());
+	}
+
+	@Test
+	public void testRing() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size, 3); // 3M at most
+
+		Pointer first = storageManager.store(new byte[1024]);
+		Pointer oldest = null;
+		Pointer last = null;
+		for (int i = 0; i < 4 * 1024; i++) { // 4M in total
+			byte[] payload = new byte[1024];
+			payload[0] = (byte) i;
+			last = storageManager.store(payload);
+			if (i == 2500) {
+				oldest = last; // in the third block, which is the oldest one in the end
+			}
+			assertTrue(storageManager.getUsedBlockCount() <= 3);
+		}
+		assertEquals(3, storageManager.getTotalBlockCount());
+		assertEquals(0, storageManager.getFreeBlockCount());
+
+		// the first block is recycled, its pointers are stale
+		assertTrue(first.isStale());
+		assertFalse(last.isStale());
+		assertEquals((byte) (4 * 1024 - 1), storageManager.retrieve(last)[0]);
+		assertFalse(oldest.isStale());
+		assertEquals((byte) 2500, storageManager.retrieve(oldest)[0]);
+		assertTrue(storageManager.isNearRecycling(oldest.getStorageBlock()));
+		assertFalse(storageManager.isNearRecycling(last.getStorageBlock()));
+
+		// removing a stale pointer changes nothing
+		long used = storageManager.getUsed();
+		storageManager.removeLight(first);
+		assertEquals(used, storageManager.getUsed());
+
+		// never updated in place
+		Pointer updated = storageManager.update(last, new byte[10]);
+		assertTrue(updated.getPosition() != last.getPosition() || updated.getStorageBlock() != last.getStorageBlock());
+	}
+
+	@Test
+	public void testPreallocatedBlocks() throws Exception {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		assertEquals(0, storageManager.getFreeBlockCount());
+		storageManager.setPreallocatedBlocks(2);
+		awaitFreeBlocks(2);
+		assertEquals(3, storageManager.getTotalBlockCount());
+
+		// a rollover takes a ready block, and another one is created behind
+		IStorageBlock first = storageManager.store(new byte[1024 * 1024]).getStorageBlock();
+		IStorageBlock second = storageManager.store(new byte[1024]).getStorageBlock();
+		assertTrue(first != second);
+		assertEquals(1, second.getIndex());
+		awaitFreeBlocks(2);
+		assertEquals(4, storageManager.getTotalBlockCount());
+
+		// never more blocks than the ring
+		storageManager.close();
+		FileUtil.deleteDirectory(new File(testDir));
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size, 2);
+		storageManager.setPreallocatedBlocks(2);
+		awaitFreeBlocks(1);
+		for (int i = 0; i < 4; i++) {
+			storageManager.store(new byte[1024 * 1024]);
+		}
+		Thread.sleep(100);
+		assertEquals(2, storageManager.getTotalBlockCount());
+	}
+
+	@Test
+	public void testActiveBlocks() throws Exception {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		storageManager.setActiveBlockCount(4);
+		assertEquals(4, storageManager.getActiveBlockCount());
+
+		// the threads of different stripes append to different blocks
+		final Pointer[] pointers = new Pointer[8];
+		Thread[] threads = new Thread[pointers.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						pointers[id] = storageManager.store(new byte[1024]);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+			threads[i].join();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			for (int j = 0; j < i; j++) {
+				boolean sameStripe = threads[i].getId() % 4 == threads[j].getId() % 4;
+				assertEquals(sameStripe, pointers[i].getStorageBlock() == pointers[j].getStorageBlock());
+			}
+		}
+		assertTrue(storageManager.getUsedBlockCount() <= 5);
+
+		// the blocks roll over independently
+		Pointer pointer = storageManager.store(new byte[1024 * 1024]);
+		for (int i = 0; i < threads.length; i++) {
+			assertFalse(pointers[i].getStorageBlock() == pointer.getStorageBlock());
+			assertFalse(pointers[i].isStale());
+		}
+	}
+
+	@Test
+	public void testRetiredChunks() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		Pointer small = storageManager.store(new byte[100]);
+		StorageBlock block = (StorageBlock) small.getStorageBlock();
+		assertEquals(0, block.getDirty());
+
+		// the space left in the chunk is dirty once the block is rolled over
+		Pointer big = storageManager.store(new byte[1024 * 1024]);
+		assertNotSame(block, big.getStorageBlock());
+		assertEquals(StorageBlock.TLAB_SIZE - 100, block.getDirty());
+	}
+
+	@Test
+	public void testActiveBlocksInRing() throws Exception {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size, 3);
+		try {
+			storageManager.setActiveBlockCount(3);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// the ring must have room for a block to recycle
+		}
+		storageManager.setActiveBlockCount(2);
+
+		// a writer of the other stripe keeps its active block, never recycled by this one
+		final Pointer[] other = new Pointer[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					other[0] = storageManager.store(new byte[1024]);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		while (thread.getId() % 2 == Thread.currentThread().getId() % 2) {
+			thread = new Thread(thread);
+		}
+		thread.start();
+		thread.join();
+		for (int i = 0; i < 10; i++) {
+			storageManager.store(new byte[512 * 1024]);
+			assertTrue(storageManager.getTotalBlockCount() <= 3);
+		}
+		assertFalse(other[0].isStale());
+	}
+
+	@Test
+	public void testSlabAllocation() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		storageManager.setAllocationMode(AllocationMode.Slab);
+
+		// the payloads of a class share its pages
+		Pointer first = storageManager.store(new byte[100]);
+		Pointer second = storageManager.store(new byte[100]);
+		Pointer other = storageManager.store(new byte[1000]);
+		assertEquals(first.getStorageBlock(), second.getStorageBlock());
+		int slotSize = second.getPosition() - first.getPosition();
+		assertTrue(slotSize >= 100 && slotSize <= 125);
+		assertFalse(other.getStorageBlock() == first.getStorageBlock()); // a page is a whole block here
+		assertEquals(1200, storageManager.getUsed());
+
+		// the slot of a payload removed is reused right away, nothing gets dirty
+		storageManager.removeLight(first);
+		Pointer third = storageManager.store(new byte[slotSize]);
+		assertEquals(first.getPosition(), third.getPosition());
+		assertEquals(0, storageManager.getDirty());
+		assertEquals(100 + slotSize + 1000, storageManager.getUsed());
+
+		// updated in place within the class, moved otherwise
+		byte[] payload = "Test String".getBytes();
+		Pointer updated = storageManager.update(other, Arrays.copyOf(payload, 900));
+		assertEquals(other.getPosition(), updated.getPosition());
+		assertEquals("Test String", new String(storageManager.retrieve(updated), 0, payload.length));
+		Pointer moved = storageManager.update(updated, new byte[10]);
+		assertFalse(moved.getPosition() == updated.getPosition() && moved.getStorageBlock() == updated.getStorageBlock());
+		assertEquals(updated.getPosition(), storageManager.store(new byte[1000]).getPosition());
+		assertEquals(0, storageManager.getDirty());
+
+		// overwriting never takes more blocks
+		Pointer pointer = storageManager.store(new byte[5000]);
+		int usedBlockCount = storageManager.getUsedBlockCount();
+		for (int i = 0; i < 10000; i++) {
+			pointer = storageManager.update(pointer, new byte[i % 2 == 0 ? 100 : 5000]);
+		}
+		assertEquals(usedBlockCount, storageManager.getUsedBlockCount());
+
+		// payloads bigger than a page take a slot of their own
+		Pointer big = storageManager.store(new byte[700 * 1024]);
+		assertEquals(0, big.getPosition());
+		assertEquals(usedBlockCount + 1, storageManager.getUsedBlockCount());
+
+		storageManager.free();
+		assertEquals(0, storageManager.getUsed());
+		assertEquals(0, storageManager.store(new byte[100]).getPosition());
+	}
+
+	@Test
+	public void testHoleReuseWithClean() throws Exception {
+		storageManager = new StorageManager(testDir, 64 * 1024, 1, storageMode, size);
+		storageManager.setAllocationMode(AllocationMode.HoleReuse);
+		final int threadCount = 4;
+		final int storeCount = 20000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger errors = new AtomicInteger();
+
+		// each writer keeps a few payloads, so the blocks get empty and freed while holes are taken in them
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Pointer[] window = new Pointer[4];
+					byte[][] payloads = new byte[window.length][];
+					try {
+						for (int i = 0; i < storeCount; i++) {
+							int j = i % window.length;
+							if (window[j] != null) {
+								// checked before the removal, the block may be freed right after
+								boolean stale = window[j].isStale();
+								byte[] payload = storageManager.remove(window[j]);
+								if (stale || !Arrays.equals(payloads[j], payload)) {
+									errors.incrementAndGet();
+								}
+							}
+							payloads[j] = new byte[64 + (i * 37 + id) % 2000];
+							Arrays.fill(payloads[j], (byte) (id * 64 + i));
+							window[j] = storageManager.store(payloads[j]);
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		Thread cleaner = new Thread() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					storageManager.clean();
+				}
+			}
+		};
+		cleaner.start();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		done.set(true);
+		cleaner.join();
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void testHoleReuse() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		storageManager.setAllocationMode(AllocationMode.HoleReuse);
+
+		Pointer[] pointers = new Pointer[10];
+		for (int i = 0; i < pointers.length; i++) {
+			pointers[i] = storageManager.store(new byte[1000]);
+		}
+		storageManager.removeLight(pointers[3]);
+		assertEquals(1000, storageManager.getDirty());
+
+		// stored in the hole before appending
+		Pointer pointer = storageManager.store("Test String".getBytes());
+		assertEquals(pointers[3].getPosition(), pointer.getPosition());
+		assertEquals("Test String", new String(storageManager.retrieve(pointer)));
+		assertEquals(1000 - pointer.getLength(), storageManager.getDirty());
+		assertEquals(pointers[3].getPosition() + pointer.getLength(), storageManager.store(new byte[500]).getPosition());
+		assertEquals(10 * 1000, storageManager.store(new byte[500]).getPosition()); // not fitting any more
+
+		// an update growing leaves a hole
+		Pointer updated = storageManager.update(pointers[5], new byte[1500]);
+		assertTrue(updated.getPosition() >= 10 * 1000);
+		assertEquals(pointers[5].getPosition(), storageManager.store(new byte[1000]).getPosition());
+
+		// the holes are dropped along with the blocks
+		storageManager.free();
+		assertEquals(0, storageManager.getDirty());
+		assertEquals(0, storageManager.store(new byte[100]).getPosition());
+		assertEquals(100, storageManager.store(new byte[100]).getPosition());
+	}
+
+	@Test
+	public void testExpiryPlacement() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		storageManager.setExpiryPlacement(true);
+		assertTrue(storageManager.isExpiryPlacement());
+		assertEquals(1, storageManager.getActiveBlockCount());
+
+		// one active block per expiry class
+		Pointer forever = storageManager.store(new byte[100], 0, StorageManager.NO_DEADLINE);
+		Pointer seconds = storageManager.store(new byte[100], 1000, StorageManager.NO_DEADLINE);
+		Pointer minutes = storageManager.store(new byte[100], 10 * 60 * 1000, StorageManager.NO_DEADLINE);
+		Pointer days = storageManager.store(new byte[100], 24 * 60 * 60 * 1000, StorageManager.NO_DEADLINE);
+		assertEquals(4, storageManager.getUsedBlockCount());
+		assertEquals(seconds.getStorageBlock(), storageManager.store(new byte[100], 30 * 1000, 0).getStorageBlock());
+		assertEquals(days.getStorageBlock(), storageManager.store(new byte[100], 2 * 60 * 60 * 1000, 0).getStorageBlock());
+		assertFalse(forever.getStorageBlock() == minutes.getStorageBlock());
+
+		// an update goes with its new expiry class rather than in place
+		Pointer updated = storageManager.update(seconds, new byte[50], 0, StorageManager.NO_DEADLINE);
+		assertEquals(forever.getStorageBlock(), updated.getStorageBlock());
+		assertEquals(100, seconds.getStorageBlock().getDirty());
+
+		assertEquals(0, StorageManager.expiryClassOf(-1));
+		assertEquals(1, StorageManager.expiryClassOf(StorageManager.SHORT_LIFETIME));
+		assertEquals(2, StorageManager.expiryClassOf(StorageManager.MEDIUM_LIFETIME));
+		assertEquals(3, StorageManager.expiryClassOf(StorageManager.MEDIUM_LIFETIME + 1));
+	}
+
+	@Test
+	public void testDeadline() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size);
+		storageManager.setExpiryPlacement(true);
+
+		Pointer first = storageManager.store(new byte[512 * 1024], 1000, 5000);
+		Pointer second = storageManager.store(new byte[512 * 1024], 1000, 6000);
+		Pointer third = storageManager.store(new byte[512 * 1024], 1000, StorageManager.NO_DEADLINE); // roll over
+		storageManager.store(new byte[512 * 1024], 1000, 5000);
+		storageManager.store(new byte[100], 1000, 5000); // roll over
+		assertEquals(first.getStorageBlock(), second.getStorageBlock());
+		assertEquals(4, storageManager.getUsedBlockCount()); // and the one of the payloads never expiring
+		assertEquals(6000, first.getStorageBlock().getDeadline());
+
+		// freed as a whole once all its payloads are dead, without waiting for them to be removed
+		storageManager.clean(6000);
+		assertEquals(4, storageManager.getUsedBlockCount());
+		storageManager.clean(6001);
+		assertEquals(3, storageManager.getUsedBlockCount());
+		assertTrue(first.isStale());
+		assertTrue(second.isStale());
+		assertEquals(Long.MIN_VALUE, first.getStorageBlock().getDeadline());
+
+		// a payload without a deadline keeps its block
+		storageManager.clean(Long.MAX_VALUE);
+		assertEquals(3, storageManager.getUsedBlockCount());
+		assertFalse(third.isStale());
+		assertEquals(2 * 512 * 1024 + 100, storageManager.getUsed());
+	}
+
+	@Test
+	public void testUpdateWithClean() throws Exception {
+		storageManager = new StorageManager(testDir, 64 * 1024, 1, storageMode, size);
+		final int threadCount = 4;
+		final int storeCount = 20000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger errors = new AtomicInteger();
+
+		// the payloads are dead by the time of the cleaner once stored, and live on once updated in place
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Pointer[] window = new Pointer[4];
+					try {
+						for (int i = 0; i < storeCount; i++) {
+							int j = i % window.length;
+							if (window[j] != null) {
+								byte[] payload = new byte[window[j].getLength() / 2];
+								Arrays.fill(payload, (byte) (id * 64 + i));
+								Pointer updated = storageManager.update(window[j], payload, 0, StorageManager.NO_DEADLINE);
+								if (updated.isStale() || !Arrays.equals(payload, storageManager.retrieve(updated))) {
+									errors.incrementAndGet();
+								}
+								storageManager.removeLight(updated);
+							}
+							window[j] = storageManager.store(new byte[64 + (i * 37 + id) % 2000], 0, 1000);
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		Thread cleaner = new Thread() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					storageManager.clean(1001);
+				}
+			}
+		};
+		cleaner.start();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		done.set(true);
+		cleaner.join();
+		assertEquals(0, errors.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExpiryPlacementInRing() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size, 2);
+		storageManager.setExpiryPlacement(true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSlabAllocationInRing() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 1, storageMode, size, 2);
+		storageManager.setAllocationMode(AllocationMode.Slab);
+	}
+
+	private void awaitFreeBlocks(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && storageManager.getFreeBlockCount() < count; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, storageManager.getFreeBlockCount());
+	}
+
+	@Test
+	public void testPersist() throws IOException {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 2, storageMode, size); // 2M Total
+		long[] locations = new long[300];
+		int[] generations = new int[locations.length];
+		for (int i = 0; i < locations.length; i++) {
+			byte[] payload = new byte[10 * 1024]; // across 3 blocks
+			payload[0] = (byte) i;
+			Pointer pointer = storageManager.store(payload);
+			locations[i] = storageManager.toLocation(pointer);
+			generations[i] = pointer.getGeneration();
+		}
+		storageManager.removeLight(storageManager.toPointer(locations[0], generations[0]));
+		long used = storageManager.getUsed();
+		long dirty = storageManager.getDirty();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		storageManager.persist(new DataOutputStream(bytes));
+		storageManager.close();
+
+		storageManager = new StorageManager(testDir, 1024 * 1024, storageMode, size, 0, false,
+				new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(3, storageManager.getUsedBlockCount());
+		assertEquals(used, storageManager.getUsed());
+		assertEquals(dirty, storageManager.getDirty());
+		for (int i = 1; i < locations.length; i++) {
+			Pointer pointer = storageManager.toPointer(locations[i], generations[i]);
+			assertFalse(pointer.isStale());
+			assertEquals((byte) i, storageManager.retrieve(pointer)[0]);
+		}
+		// appends after the payloads loaded
+		Pointer pointer = storageManager.store("Test String".getBytes());
+		assertEquals(storageManager.toPointer(locations[locations.length - 1]).getStorageBlock(), pointer.getStorageBlock());
+		assertEquals("Test String", new String(storageManager.retrieve(pointer)));
+		assertEquals((byte) (locations.length - 1),
+				storageManager.retrieve(storageManager.toPointer(locations[locations.length - 1]))[0]);
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		if (storageMode != StorageMode.PureFile) {
+			return; // the other modes keep the payloads in memory, lost in a crash
+		}
+		StorageManager crashed = new StorageManager(testDir, 1024 * 1024, 2, storageMode, size, 0, true);
+		try {
+			long[] locations = new long[300];
+			for (int i = 0; i < locations.length; i++) {
+				byte[] record = new byte[10 * 1024]; // across 3 blocks
+				RecordHeader.write(record, i, i, -1, -1, System.currentTimeMillis(), 1);
+				record[RecordHeader.SIZE] = (byte) i;
+				locations[i] = crashed.toLocation(crashed.store(record));
+			}
+			crashed.removeLight(crashed.toPointer(locations[0]));
+			crashed.update(crashed.toPointer(locations[1]), crashed.retrieve(crashed.toPointer(locations[1])));
+			long used = crashed.getUsed();
+
+			// scanned as the crashed one left them
+			storageManager = new StorageManager(testDir, 1024 * 1024, storageMode, size, 0);
+			final Map<Long, Pointer> pointers = new ConcurrentHashMap<Long, Pointer>();
+			long maxSequence = storageManager.recover(new RecordHandler() {
+				@Override
+				public boolean accept(RecordHeader header, Pointer pointer) {
+					pointers.put(header.getFingerprint(), pointer);
+					return true;
+				}
+			});
+			assertEquals(299, maxSequence);
+			assertEquals(299, pointers.size());
+			assertFalse(pointers.containsKey(0L));
+			assertEquals(3, storageManager.getUsedBlockCount());
+			assertEquals(used, storageManager.getUsed());
+			for (int i = 1; i < locations.length; i++) {
+				Pointer pointer = pointers.get((long) i);
+				assertEquals((byte) i, storageManager.retrieve(pointer)[RecordHeader.SIZE]);
+			}
+			// appends after the newest record
+			Pointer pointer = storageManager.store(new byte[RecordHeader.SIZE]);
+			assertEquals(pointers.get(1L).getStorageBlock(), pointer.getStorageBlock());
+			assertEquals(pointers.get(1L).getPosition() + 10 * 1024, pointer.getPosition());
+			storageManager.close();
+
+			// none kept, all free
+			storageManager = new StorageManager(testDir, 1024 * 1024, storageMode, size, 0);
+			assertEquals(-1, storageManager.recover(new RecordHandler() {
+				@Override
+				public boolean accept(RecordHeader header, Pointer pointer) {
+					return false;
+				}
+			}));
+			assertEquals(1, storageManager.getUsedBlockCount());
+			assertEquals(0, storageManager.getUsed());
+		} finally {
+			crashed.close();
+		}
+	}
+
+	@Test
+	public void testRecoverFromCheckpoint() throws IOException {
+		if (storageMode != StorageMode.PureFile) {
+			return; // the other modes keep the payloads in memory, lost in a crash
+		}
+		StorageManager crashed = new StorageManager(testDir, 1024 * 1024, 2, storageMode, size, 0, true);
+		try {
+			long[] locations = new long[310];
+			int[] generations = new int[locations.length];
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (int i = 0; i < locations.length; i++) {
+				if (i == 300) {
+					crashed.writeCheckpoint(new DataOutputStream(bytes));
+				}
+				byte[] record = new byte[10 * 1024]; // across 4 blocks
+				RecordHeader.write(record, i, i, -1, -1, System.currentTimeMillis(), 1);
+				Pointer pointer = crashed.store(record);
+				locations[i] = crashed.toLocation(pointer);
+				generations[i] = pointer.getGeneration();
+			}
+			crashed.removeLight(crashed.toPointer(locations[2]));
+
+			storageManager = new StorageManager(testDir, 1024 * 1024, storageMode, size, 0);
+			storageManager.readCheckpoint(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+			for (int i = 0; i < 300; i += 2) { // the odd ones are skipped
+				storageManager.addCheckpointRecord(locations[i], generations[i]);
+			}
+			final Map<Long, Pointer> pointers = new ConcurrentHashMap<Long, Pointer>();
+			assertEquals(309, storageManager.recover(new RecordHandler() {
+				@Override
+				public boolean accept(RecordHeader header, Pointer pointer) {
+					pointers.put(header.getFingerprint(), pointer);
+					return true;
+				}
+			}));
+			assertEquals(149 + 10, pointers.size());
+			assertFalse(pointers.containsKey(1L));
+			assertFalse(pointers.containsKey(2L)); // dead
+			assertTrue(pointers.containsKey(4L));
+			assertTrue(pointers.containsKey(305L));
+			assertEquals(159 * 10 * 1024, storageManager.getUsed());
+		} finally {
+			crashed.close();
+		}
+	}
+
 	@After
 	public void clear() throws IOException {
 		if (this.storageManager != null) {
@@ -0,0 +1,113 @@
+package com.ctriposs.bigcache.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.bigcache.CacheConfig.Durability;
+import com.ctriposs.bigcache.CacheConfig.StorageMode;
+import com.ctriposs.bigcache.utils.FileUtil;
+import com.ctriposs.bigcache.utils.TestUtil;
+
+public class StorageSyncerTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "unit/storage_syncer_test/";
+
+	private StorageManager storageManager;
+
+	private StorageSyncer syncer;
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		// the syncs take a while as on a real disk, so the writers arriving meanwhile are synced together
+		storageManager = new StorageManager(testDir, 1024 * 1024, 2, StorageMode.PureFile, 0) {
+			@Override
+			public void sync() throws IOException {
+				super.sync();
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		syncer = new StorageSyncer(storageManager, Durability.GroupCommit, 60 * 60 * 1000);
+
+		storageManager.store("A".getBytes());
+		long start = System.currentTimeMillis();
+		syncer.commit(); // waits for a sync, not for the interval
+		assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+		assertEquals(1, syncer.getSyncCount());
+
+		final int threadCount = 8;
+		final int writeCount = 50;
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		for (int t = 0; t < threadCount; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < writeCount; i++) {
+							storageManager.store(new byte[100]);
+							syncer.commit();
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(0, errors.get());
+		// the writers arriving during a sync are synced together by the next one
+		assertTrue(syncer.getSyncCount() < threadCount * writeCount / 2);
+
+		syncer.close();
+		try {
+			syncer.commit();
+			fail();
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	@Test
+	public void testPeriodic() throws Exception {
+		storageManager = new StorageManager(testDir, 1024 * 1024, 2, StorageMode.PureFile, 0);
+		syncer = new StorageSyncer(storageManager, Durability.Periodic, 60 * 60 * 1000);
+
+		storageManager.store("A".getBytes());
+		syncer.commit(); // never waits
+		assertEquals(0, syncer.getSyncCount());
+		syncer.sync();
+		assertEquals(1, syncer.getSyncCount());
+		syncer.sync(); // nothing new
+		assertEquals(1, syncer.getSyncCount());
+
+		// synced on close
+		storageManager.store("B".getBytes());
+		syncer.commit();
+		syncer.close();
+		assertEquals(2, syncer.getSyncCount());
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (syncer != null) {
+			syncer.close();
+		}
+		if (storageManager != null) {
+			storageManager.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+}
@@ -0,0 +1,47 @@
+package com.ctriposs.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CoarseTickerTest {
+
+	@Test
+	public void testTick() throws IOException {
+		final long[] time = { 1000 };
+		Ticker source = new Ticker() {
+			@Override
+			public long read() {
+				return time[0];
+			}
+		};
+		CoarseTicker ticker = new CoarseTicker(source, 1000000);
+		try {
+			assertEquals(1000, ticker.read());
+			time[0] = 2000;
+			assertEquals(1000, ticker.read()); // not refreshed yet
+			ticker.tick();
+			assertEquals(2000, ticker.read());
+			time[0] = 1500;
+			ticker.tick();
+			assertEquals(2000, ticker.read()); // never go back
+		} finally {
+			ticker.close();
+		}
+	}
+
+	@Test
+	public void testBackgroundRefresh() throws Exception {
+		CoarseTicker ticker = new CoarseTicker(10);
+		try {
+			long start = ticker.read();
+			Thread.sleep(200);
+			assertTrue(ticker.read() > start);
+			assertTrue(Math.abs(System.currentTimeMillis() - ticker.read()) < 100);
+		} finally {
+			ticker.close();
+		}
+	}
+}
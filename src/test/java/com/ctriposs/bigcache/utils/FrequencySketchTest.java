@@ -0,0 +1,59 @@
+package com.ctriposs.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test
+	public void testFrequency() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		assertEquals(0, sketch.frequency(42L));
+		for (int i = 0; i < 5; i++) {
+			sketch.increment(42L);
+		}
+		assertEquals(5, sketch.frequency(42L));
+		assertEquals(0, sketch.frequency(43L));
+
+		// saturated
+		for (int i = 0; i < 100; i++) {
+			sketch.increment(42L);
+		}
+		assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(42L));
+	}
+
+	@Test
+	public void testAging() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 10; i++) {
+			sketch.increment(42L);
+		}
+		// other keys counted until the counters are halved
+		for (long key = 1000; key < 1200; key++) {
+			sketch.increment(key);
+		}
+		int frequency = sketch.frequency(42L);
+		assertTrue(frequency < 10);
+		assertTrue(frequency >= 5);
+	}
+
+	@Test
+	public void testEnsureCapacity() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		sketch.increment(42L);
+		sketch.ensureCapacity(8); // no shrink
+		assertEquals(1, sketch.frequency(42L));
+		sketch.ensureCapacity(1024); // counts lost
+		assertEquals(0, sketch.frequency(42L));
+
+		int collisions = 0;
+		for (long key = 0; key < 1000; key++) {
+			sketch.increment(key);
+		}
+		for (long key = 0; key < 1000; key++) {
+			if (sketch.frequency(key) > 1) collisions++;
+		}
+		assertTrue(collisions < 100);
+	}
+}
@@ -0,0 +1,82 @@
+package com.ctriposs.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ReferenceBitsTest {
+
+	@Test
+	public void testSetAndClear() throws IOException {
+		ReferenceBits bits = new ReferenceBits(1000);
+		assertEquals(1024, bits.size());
+		assertFalse(bits.get(42L));
+		bits.set(42L);
+		bits.set(42L);
+		assertTrue(bits.get(42L));
+		assertTrue(bits.clear(42L));
+		assertFalse(bits.get(42L));
+		assertFalse(bits.clear(42L));
+
+		// closed bits are never set
+		bits.close();
+		bits.set(42L);
+		assertFalse(bits.get(42L));
+		assertFalse(bits.clear(42L));
+		bits.close();
+	}
+
+	@Test
+	public void testEnsureSize() throws IOException {
+		ReferenceBits bits = new ReferenceBits(64);
+		for (long key = 0; key < 1000; key += 3) {
+			bits.set(key);
+		}
+		bits.ensureSize(100);
+		assertEquals(128, bits.size());
+		bits.ensureSize(10000);
+		assertEquals(16384, bits.size());
+		bits.ensureSize(10);
+		assertEquals(16384, bits.size());
+		// the marks are kept
+		for (long key = 0; key < 1000; key += 3) {
+			assertTrue(bits.get(key));
+		}
+		// and fewer keys share a bit once marked again
+		for (long key = 0; key < 1000; key++) {
+			bits.clear(key);
+		}
+		for (long key = 0; key < 1000; key += 3) {
+			bits.set(key);
+		}
+		int shared = 0;
+		for (long key = 1; key < 1000; key++) {
+			if (key % 3 != 0 && bits.get(key)) shared++;
+		}
+		assertTrue(shared < 100);
+		bits.close();
+		bits.ensureSize(100000);
+		assertEquals(0, bits.size());
+	}
+
+	@Test
+	public void testMinSize() throws IOException {
+		ReferenceBits bits = new ReferenceBits(1);
+		assertEquals(64, bits.size());
+		for (long key = 0; key < 64; key++) {
+			bits.set(key);
+		}
+		int marked = 0;
+		for (long key = 0; key < 64; key++) {
+			if (bits.clear(key)) marked++;
+		}
+		// the keys sharing a bit were counted once
+		assertTrue(marked > 0 && marked <= 64);
+		for (long key = 0; key < 64; key++) {
+			assertFalse(bits.get(key));
+		}
+		bits.close();
+	}
+}
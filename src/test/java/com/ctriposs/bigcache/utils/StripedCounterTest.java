@@ -0,0 +1,37 @@
+package com.ctriposs.bigcache.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void testConcurrentUpdates() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		final int threadCount = 8;
+		final int count = 100000;
+		final CountDownLatch latch = new CountDownLatch(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < count; j++) {
+						counter.increment();
+						counter.add(2);
+					}
+					latch.countDown();
+				}
+			}.start();
+		}
+		latch.await();
+		assertEquals(3L * threadCount * count, counter.sum());
+
+		counter.add(-5);
+		assertEquals(3L * threadCount * count - 5, counter.sum());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+}